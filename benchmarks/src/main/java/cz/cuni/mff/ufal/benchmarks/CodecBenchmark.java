@@ -0,0 +1,80 @@
+package cz.cuni.mff.ufal.benchmarks;
+
+import com.dslplatform.json.DslJson;
+import cz.cuni.mff.ufal.TranslationCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request encoding and response parsing, TranslationCodec next to the DslJson/URLEncoder code it replaced. Run with
+ * -prof gc to see the allocation rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+
+    @Param({"1", "10", "100"})
+    int lines;
+
+    private byte[] response;
+    private String text;
+    private final DslJson<Object> json = new DslJson<>();
+
+    @Setup
+    public void setup() {
+        StringBuilder sb = new StringBuilder("[");
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            sb.append(i > 0 ? ", " : "").append("\"Toto je přeložená věta číslo ").append(i).append(".\\n\"");
+            input.append("This is the source sentence number ").append(i).append(". ");
+        }
+        response = sb.append(']').toString().getBytes(StandardCharsets.UTF_8);
+        text = input.toString();
+    }
+
+    @Benchmark
+    public String parseCodec() throws IOException {
+        return TranslationCodec.get().parseTranslation(response);
+    }
+
+    @Benchmark
+    public String parseDslJson() throws IOException {
+        Iterator<String> it = json.iterateOver(String.class, new ByteArrayInputStream(response), new byte[1024]);
+        StringBuilder sb = new StringBuilder();
+        while (it.hasNext()) {
+            sb.append(it.next());
+            sb.append(' ');
+        }
+        return sb.toString().replace("\\n ", "\\n").stripTrailing();
+    }
+
+    @Benchmark
+    public byte[] encodeCodec() {
+        return TranslationCodec.get().encodeForm(text);
+    }
+
+    @Benchmark
+    public byte[] encodeUrlEncoder() {
+        return ("input_text=" + URLEncoder.encode(text, StandardCharsets.UTF_8)).getBytes(StandardCharsets.UTF_8);
+    }
+}
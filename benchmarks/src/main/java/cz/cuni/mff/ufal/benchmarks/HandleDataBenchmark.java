@@ -0,0 +1,77 @@
+package cz.cuni.mff.ufal.benchmarks;
+
+import cz.cuni.mff.ufal.LindatTranslationClient;
+import elitr.worker.ProcessingEventListener;
+import it.pervoice.eubridge.mcloud.jni.MCloudTextPacket;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ProcessingEventListener.handleData with a fake sink instead of MCloud. Every invocation hands PACKETS packets over
+ * and waits until all of them are sent, like a FLUSH does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class HandleDataBenchmark {
+
+    private static final int PACKETS = 16;
+
+    @Param({"0", "20"})
+    long latencyMillis;
+
+    private LindatStub stub;
+    private ProcessingEventListener listener;
+    private MCloudTextPacket[] packets;
+    private final LongAdder sent = new LongAdder();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        stub = new LindatStub(1, 80, latencyMillis);
+        LindatTranslationClient client = new LindatTranslationClient(stub.getApiUrl());
+        listener = new ProcessingEventListener(packet -> sent.increment(), client, "en", "cs");
+        packets = new MCloudTextPacket[PACKETS];
+        for (int i = 0; i < PACKETS; i++) {
+            Date start = new Date(i * 1000L);
+            packets[i] = new MCloudTextPacket(start, new Date(start.getTime() + 900), 0, "en",
+                    TranslatorBenchmark.TEXT + " " + i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        stub.close();
+        if (sent.sum() == 0) {
+            throw new IllegalStateException("No packet reached the sink");
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public void handleData() {
+        for (MCloudTextPacket packet : packets) {
+            listener.handleData(packet);
+        }
+        listener.awaitPending();
+    }
+}
@@ -0,0 +1,139 @@
+package cz.cuni.mff.ufal.benchmarks;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for the Lindat translation REST API (/languages, /models), good enough for LindatTranslationClient.
+ *
+ * Every input line is "translated" to responseLines segments of lineLength characters, the last one ending with a
+ * newline like Lindat does. The response is delayed by latencyMillis without blocking the server threads, so the stub
+ * behaves like a backend with that much decoding time and unlimited capacity.
+ */
+public class LindatStub implements AutoCloseable {
+
+    public static final String[][] LANGUAGE_PAIRS = {{"en", "cs"}, {"cs", "en"}, {"en", "de"}, {"de", "en"},
+            {"cs", "de"}, {"cs", "fr"}};
+    public static final String[] MODELS = {"en-cs", "cs-en", "doc-en-cs"};
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService delayer;
+    private final int responseLines;
+    private final int lineLength;
+    private final long latencyMillis;
+    private final AtomicLong requests = new AtomicLong();
+
+    public LindatStub(int responseLines, int lineLength, long latencyMillis) throws IOException {
+        this.responseLines = responseLines;
+        this.lineLength = lineLength;
+        this.latencyMillis = latencyMillis;
+        executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        delayer = Executors.newSingleThreadScheduledExecutor();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        server.setExecutor(executor);
+        server.createContext("/api/v1/languages", this::languages);
+        server.createContext("/api/v1/models", this::models);
+        server.start();
+    }
+
+    public String getApiUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/api/v1";
+    }
+
+    /**
+     * @return number of translation requests served
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        delayer.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    private void languages(HttpExchange exchange) throws IOException {
+        if ("GET".equals(exchange.getRequestMethod())) {
+            StringBuilder sb = new StringBuilder("{\"_links\": {\"languages\": [");
+            for (int i = 0; i < LANGUAGE_PAIRS.length; i++) {
+                sb.append(i > 0 ? ", " : "").append("{\"source\": \"").append(LANGUAGE_PAIRS[i][0])
+                        .append("\", \"target\": \"").append(LANGUAGE_PAIRS[i][1]).append("\"}");
+            }
+            respond(exchange, 200, sb.append("]}}").toString());
+        } else {
+            translate(exchange);
+        }
+    }
+
+    private void models(HttpExchange exchange) throws IOException {
+        if ("GET".equals(exchange.getRequestMethod()) && exchange.getRequestURI().getPath().endsWith("/models")) {
+            StringBuilder sb = new StringBuilder("{\"_links\": {\"models\": [");
+            for (int i = 0; i < MODELS.length; i++) {
+                sb.append(i > 0 ? ", " : "").append("{\"model\": \"").append(MODELS[i]).append("\"}");
+            }
+            respond(exchange, 200, sb.append("]}}").toString());
+        } else {
+            translate(exchange);
+        }
+    }
+
+    private void translate(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.US_ASCII);
+        String text = URLDecoder.decode(body.substring(body.indexOf('=') + 1), StandardCharsets.UTF_8);
+        String[] lines = text.split("\n", -1);
+        StringBuilder sb = new StringBuilder("[");
+        for (int line = 0; line < lines.length; line++) {
+            for (int i = 0; i < responseLines; i++) {
+                sb.append(sb.length() > 1 ? ", " : "").append('"').append(segment(line, i));
+                sb.append(i == responseLines - 1 ? "\\n\"" : "\"");
+            }
+        }
+        String response = sb.append(']').toString();
+        if (latencyMillis > 0) {
+            delayer.schedule(() -> {
+                try {
+                    respond(exchange, 200, response);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, latencyMillis, TimeUnit.MILLISECONDS);
+        } else {
+            respond(exchange, 200, response);
+        }
+    }
+
+    private String segment(int line, int index) {
+        StringBuilder sb = new StringBuilder(lineLength);
+        sb.append("Přeložená věta ").append(line).append('.').append(index);
+        while (sb.length() < lineLength - 1) {
+            sb.append(" slovo");
+        }
+        sb.setLength(Math.max(1, lineLength - 1));
+        return sb.append('.').toString();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package cz.cuni.mff.ufal.benchmarks;
+
+import cz.cuni.mff.ufal.LindatTranslationClient;
+import cz.cuni.mff.ufal.Translator;
+import elitr.worker.ProcessingEventListener;
+import it.pervoice.eubridge.mcloud.jni.MCloudPacket;
+import it.pervoice.eubridge.mcloud.jni.MCloudTextPacket;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Open-loop load generator: replays a transcript through ProcessingEventListener.handleData of many simulated
+ * sessions at once, each session with its own listener like a worker serving a client, all of them sharing the
+ * translator configured by the environment (batching, cache, ...) around a LindatTranslationClient.
+ *
+ * The packets are due at fixed times, --rate packets per second spread over the sessions or, without a rate, at the
+ * transcript's own timing sped up --speed times. A session that falls behind sends its late packets right away and
+ * their latency is measured from when they were due, not from when they were handed over, so a stall is not hidden
+ * by the packets that weren't sent during it (coordinated omission). The service time from the handover is reported
+ * too. The throughput counts the translations completed within the measured window, under overload it stays below
+ * the rate and the packets due but not translated by the end of the window are reported as the backlog.
+ *
+ * The transcript has one segment per line, "start_ms end_ms text", lines starting with # are skipped. Without
+ * --api-url a {@link LindatStub} is started with --stub-latency-ms.
+ *
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar cz.cuni.mff.ufal.benchmarks.ReplayLoadGenerator \
+ *     --transcript talk.txt --sessions 50 --rate 400 --duration 60
+ * </pre>
+ */
+public class ReplayLoadGenerator {
+
+    private static final class Segment {
+        private final long startMillis;
+        private final long endMillis;
+        private final String text;
+
+        private Segment(long startMillis, long endMillis, String text) {
+            this.startMillis = startMillis;
+            this.endMillis = endMillis;
+            this.text = text;
+        }
+    }
+
+    /**
+     * One simulated client, replays the transcript from its own offset so the sessions don't translate the same
+     * text at the same time.
+     */
+    private final class Session implements Runnable {
+        private final int id;
+        private final ProcessingEventListener listener;
+        // due time of the packets not sent back yet, by their start time which is unique in the session
+        private final Map<Long, long[]> pending = new ConcurrentHashMap<>();
+
+        private Session(int id, Translator translator) {
+            this.id = id;
+            this.listener = new ProcessingEventListener(this::sent, translator, sourceLanguage, targetLanguage);
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (long packet = 0; ; packet++) {
+                    long due = dueNanos(packet);
+                    if (due - end >= 0) {
+                        break;
+                    }
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                    Segment segment = transcript.get((int) ((id * 7919L + packet) % transcript.size()));
+                    Date start = new Date(packet);
+                    MCloudTextPacket textPacket = new MCloudTextPacket(start,
+                            new Date(packet + segment.endMillis - segment.startMillis), 0, sourceLanguage,
+                            segment.text);
+                    long handedOver = System.nanoTime();
+                    pending.put(packet, new long[]{due, handedOver});
+                    offered.incrementAndGet();
+                    listener.handleData(textPacket);
+                }
+                listener.awaitPending();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                failed.addAndGet(pending.size());
+                done.countDown();
+            }
+        }
+
+        private long dueNanos(long packet) {
+            if (rate > 0) {
+                // the sessions take turns, together they send rate packets a second
+                return begin + (long) ((packet * sessions + id) * 1e9 / rate);
+            }
+            long loops = packet / transcript.size();
+            Segment segment = transcript.get((int) (packet % transcript.size()));
+            long millis = loops * transcriptMillis + segment.startMillis - transcript.get(0).startMillis;
+            // spread the sessions over the first second
+            return begin + (long) (millis * 1e6 / speed) + TimeUnit.SECONDS.toNanos(1) * id / sessions;
+        }
+
+        private void sent(MCloudPacket packet) {
+            long now = System.nanoTime();
+            long[] times = pending.remove(((MCloudTextPacket) packet).getStartTime().getTime());
+            if (times == null) {
+                return;
+            }
+            if (now - end < 0) {
+                completedBeforeEnd.incrementAndGet();
+                if (now - measureFrom >= 0) {
+                    completedInWindow.incrementAndGet();
+                }
+            }
+            if (times[0] - measureFrom >= 0) {
+                latencies.record(now - times[0]);
+                serviceTimes.record(now - times[1]);
+            }
+        }
+    }
+
+    /**
+     * Keeps every sample, the runs are short enough and the percentiles come out exact.
+     */
+    private static final class Samples {
+        private long[] values = new long[1 << 16];
+        private int size;
+
+        synchronized void record(long nanos) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = nanos;
+        }
+
+        synchronized long[] sorted() {
+            long[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+
+    private final List<Segment> transcript;
+    private final long transcriptMillis;
+    private final String sourceLanguage;
+    private final String targetLanguage;
+    private final int sessions;
+    private final double rate;
+    private final double speed;
+    private final long warmupNanos;
+    private final long durationNanos;
+    private final AtomicLong offered = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong completedInWindow = new AtomicLong();
+    private final AtomicLong completedBeforeEnd = new AtomicLong();
+    private final Samples latencies = new Samples();
+    private final Samples serviceTimes = new Samples();
+    private CountDownLatch done;
+    private long begin;
+    private long measureFrom;
+    private long end;
+
+    private ReplayLoadGenerator(List<Segment> transcript, String sourceLanguage, String targetLanguage, int sessions,
+                                double rate, double speed, long warmupSeconds, long durationSeconds) {
+        this.transcript = transcript;
+        Segment last = transcript.get(transcript.size() - 1);
+        // one second of silence before the transcript starts again
+        this.transcriptMillis = last.endMillis - transcript.get(0).startMillis + 1000;
+        this.sourceLanguage = sourceLanguage;
+        this.targetLanguage = targetLanguage;
+        this.sessions = sessions;
+        this.rate = rate;
+        this.speed = speed;
+        this.warmupNanos = TimeUnit.SECONDS.toNanos(warmupSeconds);
+        this.durationNanos = TimeUnit.SECONDS.toNanos(durationSeconds);
+    }
+
+    public static void main(String[] args) throws Exception {
+        String transcriptPath = null;
+        String apiUrl = null;
+        String pair = "en-cs";
+        int sessions = 10;
+        double rate = 100;
+        double speed = 1;
+        long warmupSeconds = 10;
+        long durationSeconds = 30;
+        long stubLatencyMillis = 20;
+        for (int i = 0; i < args.length; i++) {
+            String value = i + 1 < args.length ? args[i + 1] : null;
+            switch (args[i]) {
+                case "--transcript": transcriptPath = value; break;
+                case "--api-url": apiUrl = value; break;
+                case "--pair": pair = value; break;
+                case "--sessions": sessions = Integer.parseInt(value); break;
+                case "--rate": rate = Double.parseDouble(value); break;
+                case "--speed": speed = Double.parseDouble(value); break;
+                case "--warmup": warmupSeconds = Long.parseLong(value); break;
+                case "--duration": durationSeconds = Long.parseLong(value); break;
+                case "--stub-latency-ms": stubLatencyMillis = Long.parseLong(value); break;
+                default:
+                    System.err.println("Unknown option " + args[i] + ", expected --transcript FILE, --api-url URL,"
+                            + " --pair SRC-TGT, --sessions N, --rate PACKETS_PER_SECOND (0 = transcript timing),"
+                            + " --speed FACTOR, --warmup SECONDS, --duration SECONDS, --stub-latency-ms MS");
+                    System.exit(2);
+            }
+            i++;
+        }
+        List<Segment> transcript = transcriptPath != null ? readTranscript(transcriptPath) : syntheticTranscript();
+        String[] languages = pair.split("-", 2);
+        LindatStub stub = apiUrl == null ? new LindatStub(1, 80, stubLatencyMillis) : null;
+        try {
+            LindatTranslationClient client = new LindatTranslationClient(stub != null ? stub.getApiUrl() : apiUrl);
+            Translator translator = ProcessingEventListener.createTranslator(client);
+            new ReplayLoadGenerator(transcript, languages[0], languages[1], sessions, rate, speed, warmupSeconds,
+                    durationSeconds).run(translator);
+        } finally {
+            if (stub != null) {
+                stub.close();
+            }
+        }
+    }
+
+    private void run(Translator translator) throws InterruptedException {
+        System.out.println("Replaying " + transcript.size() + " segments in " + sessions + " sessions, "
+                + (rate > 0 ? rate + " packets/s" : speed + "x the transcript timing") + ", "
+                + TimeUnit.NANOSECONDS.toSeconds(warmupNanos) + " s warmup, "
+                + TimeUnit.NANOSECONDS.toSeconds(durationNanos) + " s measured");
+        List<Session> simulated = new ArrayList<>(sessions);
+        for (int i = 0; i < sessions; i++) {
+            simulated.add(new Session(i, translator));
+        }
+        done = new CountDownLatch(sessions);
+        // a little time to start the threads
+        begin = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        measureFrom = begin + warmupNanos;
+        end = measureFrom + durationNanos;
+        for (Session session : simulated) {
+            Thread thread = new Thread(session, "session-" + session.id);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        done.await();
+        report();
+    }
+
+    private void report() {
+        long[] latency = latencies.sorted();
+        long[] service = serviceTimes.sorted();
+        double seconds = durationNanos / 1e9;
+        // every offered packet was due before the end, the late ones were handed over after it
+        long backlog = offered.get() - completedBeforeEnd.get();
+        System.out.printf("offered %d packets, %d not translated%n", offered.get(), failed.get());
+        System.out.printf("throughput %.1f packets/s over %.1f s, %d packets due but not translated at the end%n",
+                completedInWindow.get() / seconds, seconds, backlog);
+        System.out.println("percentile   latency from due time (ms)   service time (ms)");
+        for (double percentile : new double[]{50, 90, 99, 99.9, 100}) {
+            System.out.printf("%10s   %26.2f   %17.2f%n", percentile == 100 ? "max" : percentile,
+                    percentile(latency, percentile), percentile(service, percentile));
+        }
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return Double.NaN;
+        }
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+    }
+
+    private static List<Segment> readTranscript(String path) throws IOException {
+        List<Segment> segments = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(path), StandardCharsets.UTF_8)) {
+            if (line.isBlank() || line.startsWith("#")) {
+                continue;
+            }
+            String[] parts = line.trim().split("\\s+", 3);
+            if (parts.length < 3) {
+                throw new IOException("Expected \"start_ms end_ms text\": " + line);
+            }
+            segments.add(new Segment(Long.parseLong(parts[0]), Long.parseLong(parts[1]), parts[2]));
+        }
+        if (segments.isEmpty()) {
+            throw new IOException("No segments in " + path);
+        }
+        return segments;
+    }
+
+    /**
+     * Subtitle-sized sentences, one every two seconds.
+     */
+    private static List<Segment> syntheticTranscript() {
+        List<Segment> segments = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            segments.add(new Segment(i * 2000L, i * 2000L + 1800, TranslatorBenchmark.TEXT + " " + i));
+        }
+        return segments;
+    }
+}
@@ -0,0 +1,76 @@
+package cz.cuni.mff.ufal.benchmarks;
+
+import cz.cuni.mff.ufal.LindatTranslationClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LindatTranslationClient against the local stub, i.e. the client overhead plus the configured backend latency.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class TranslatorBenchmark {
+
+    static final String TEXT = "This is a simple test sentence, long about as much as an average subtitle.";
+
+    @Param({"0", "20"})
+    long latencyMillis;
+
+    @Param({"1", "10"})
+    int responseLines;
+
+    private LindatStub stub;
+    private LindatTranslationClient client;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        stub = new LindatStub(responseLines, 80, latencyMillis);
+        client = new LindatTranslationClient(stub.getApiUrl());
+        client.getAvailableLanguagePairs();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        stub.close();
+    }
+
+    @Benchmark
+    public String translatePair() {
+        return client.translate(TEXT, "en", "cs");
+    }
+
+    @Benchmark
+    public String translateModel() {
+        return client.translate(TEXT, "en-cs");
+    }
+
+    @Benchmark
+    public String translatePairAsync() {
+        return client.translateAsync(TEXT, "en", "cs").join();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public String translatePairConcurrent() {
+        return client.translate(TEXT, "en", "cs");
+    }
+}
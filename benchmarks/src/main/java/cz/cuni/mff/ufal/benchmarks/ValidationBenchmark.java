@@ -0,0 +1,54 @@
+package cz.cuni.mff.ufal.benchmarks;
+
+import cz.cuni.mff.ufal.Capabilities;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.AbstractMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Language pair validation done for every translate call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ValidationBenchmark {
+
+    private Capabilities capabilities;
+    private String source = "cs";
+    private String target = "fr";
+
+    @Setup
+    public void setup() {
+        Set<Map.Entry<String, String>> pairs = new HashSet<>();
+        for (String[] pair : LindatStub.LANGUAGE_PAIRS) {
+            pairs.add(new AbstractMap.SimpleEntry<>(pair[0], pair[1]));
+        }
+        capabilities = new Capabilities(pairs, Set.of(LindatStub.MODELS));
+    }
+
+    @Benchmark
+    public boolean supports() {
+        return capabilities.supports(source, target);
+    }
+
+    @Benchmark
+    public boolean containsEntry() {
+        return capabilities.getLanguagePairs().contains(new AbstractMap.SimpleEntry<>(source, target));
+    }
+}
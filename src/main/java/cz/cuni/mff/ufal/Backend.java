@@ -0,0 +1,205 @@
+package cz.cuni.mff.ufal;
+
+import cz.cuni.mff.ufal.metrics.Counter;
+import cz.cuni.mff.ufal.metrics.Histogram;
+import cz.cuni.mff.ufal.metrics.Metrics;
+
+import java.net.http.HttpClient;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One Lindat replica with its own concurrency limit and latency statistics. The latency is tracked as an EWMA of
+ * successful responses, failures count as {@link #FAILURE_PENALTY_NANOS}, so the balancer moves away from a failing
+ * replica even before it is ejected. Every language pair or model has its own {@link CircuitBreaker}, a replica may
+ * fail just some of its models.
+ */
+public final class Backend {
+
+    private static final double ALPHA = 0.3;
+    private static final long FAILURE_PENALTY_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final long MAX_EJECTION_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+    private final String apiUrl;
+    private final ConcurrencyLimiter limiter;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Histogram latency;
+    private final Counter requests;
+    private final Counter errors;
+    private final Counter ejections;
+    private final int breakerFailures;
+    private final long breakerOpenSeconds;
+    private final ConcurrentMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    // by HTTP version, compressed request and compressed response, created on first use
+    private final Counter[] wireRequests = new Counter[8];
+    private volatile boolean acceptsCompressedRequests = true;
+
+    private double ewmaNanos;
+    private int consecutiveFailures;
+    private int timesEjected;
+    private long ejectedUntil;
+    private boolean ejected;
+
+    public Backend(String apiUrl, ConcurrencyLimiter limiter, int breakerFailures, long breakerOpenSeconds){
+        this.apiUrl = apiUrl;
+        this.limiter = limiter;
+        this.breakerFailures = breakerFailures;
+        this.breakerOpenSeconds = breakerOpenSeconds;
+        latency = Metrics.histogram("lindat_backend_seconds", "Latency of the requests to a backend", "backend",
+                apiUrl);
+        requests = Metrics.counter("lindat_backend_requests_total", "Requests sent to a backend", "backend", apiUrl);
+        errors = Metrics.counter("lindat_backend_errors_total", "Failed requests to a backend", "backend", apiUrl);
+        ejections = Metrics.counter("lindat_backend_ejections_total", "Times a backend was taken out of rotation",
+                "backend", apiUrl);
+        Metrics.gauge("lindat_backend_ewma_millis", "Moving average of the backend latency",
+                () -> (long) (getEwmaNanos() / 1e6), "backend", apiUrl);
+        Metrics.gauge("lindat_backend_in_flight", "Requests in flight to a backend", inFlight::get, "backend",
+                apiUrl);
+        Metrics.gauge("lindat_backend_ejected", "1 while the backend is out of rotation",
+                () -> isEjected() ? 1 : 0, "backend", apiUrl);
+    }
+
+    public String getApiUrl() {
+        return apiUrl;
+    }
+
+    public ConcurrencyLimiter getLimiter() {
+        return limiter;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public Histogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * @param scope language pair ("en-cs") or model ("model:en-cs")
+     */
+    public CircuitBreaker breaker(String scope) {
+        CircuitBreaker breaker = breakers.get(scope);
+        if(breaker == null){
+            breaker = breakers.computeIfAbsent(scope, key -> {
+                CircuitBreaker created = new CircuitBreaker(breakerFailures, breakerOpenSeconds);
+                Metrics.gauge("lindat_breaker_state", "Circuit state: 0 closed, 1 open, 2 half open",
+                        () -> created.getState().ordinal(), "backend", apiUrl, "scope", key);
+                Metrics.counter("lindat_breaker_opened_total", "Times the circuit opened", created::getOpened,
+                        "backend", apiUrl, "scope", key);
+                return created;
+            });
+        }
+        return breaker;
+    }
+
+    public synchronized double getEwmaNanos() {
+        return ewmaNanos;
+    }
+
+    /**
+     * @return expected wait for a new request, lower is better
+     */
+    synchronized double cost(){
+        return ewmaNanos * (inFlight.get() + 1);
+    }
+
+    /**
+     * @return System.nanoTime() of the request start
+     */
+    long start(){
+        requests.increment();
+        inFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * @return number of consecutive failures including this one, 0 on success
+     */
+    synchronized int finish(long start, boolean failed){
+        inFlight.decrementAndGet();
+        long nanos = System.nanoTime() - start;
+        if(failed){
+            errors.increment();
+            update(Math.max(nanos, FAILURE_PENALTY_NANOS));
+            return ++consecutiveFailures;
+        }
+        latency.record(nanos);
+        update(nanos);
+        consecutiveFailures = 0;
+        timesEjected = 0;
+        return 0;
+    }
+
+    synchronized boolean isEjected(){
+        return ejected && System.nanoTime() - ejectedUntil < 0;
+    }
+
+    /**
+     * Takes the backend out of rotation, for twice as long each time it fails again right after coming back, up to
+     * 10 minutes.
+     */
+    synchronized void eject(long baseNanos){
+        long nanos = Math.min(MAX_EJECTION_NANOS, baseNanos << Math.min(timesEjected, 20));
+        timesEjected++;
+        ejected = true;
+        ejectedUntil = System.nanoTime() + nanos;
+        ejections.increment();
+    }
+
+    /**
+     * Called when an ejected backend comes back, the EWMA starts from the given value so it gets a share of the
+     * traffic to prove itself.
+     */
+    synchronized boolean readmit(double ewmaNanos){
+        if(!ejected || isEjected()){
+            return false;
+        }
+        ejected = false;
+        consecutiveFailures = 0;
+        this.ewmaNanos = ewmaNanos;
+        return true;
+    }
+
+    private void update(long nanos){
+        ewmaNanos = ewmaNanos == 0 ? nanos : ewmaNanos + ALPHA * (nanos - ewmaNanos);
+    }
+
+    /**
+     * @return false once the backend refused a compressed request
+     */
+    public boolean acceptsCompressedRequests() {
+        return acceptsCompressedRequests;
+    }
+
+    public void refuseCompressedRequests() {
+        acceptsCompressedRequests = false;
+    }
+
+    /**
+     * Counts a response by the wire mode it came over.
+     */
+    public void onWire(HttpClient.Version version, boolean compressedRequest, boolean compressedResponse) {
+        int index = (version == HttpClient.Version.HTTP_2 ? 4 : 0) + (compressedRequest ? 2 : 0)
+                + (compressedResponse ? 1 : 0);
+        Counter counter = wireRequests[index];
+        if (counter == null) {
+            // Metrics returns the same counter when two threads get here at once
+            counter = Metrics.counter("lindat_wire_requests_total",
+                    "Requests to a backend by HTTP version and compression", "backend", apiUrl,
+                    "version", version == HttpClient.Version.HTTP_2 ? "2" : "1.1",
+                    "request_encoding", compressedRequest ? "gzip" : "identity",
+                    "response_encoding", compressedResponse ? "gzip" : "identity");
+            wireRequests[index] = counter;
+        }
+        counter.increment();
+    }
+
+    @Override
+    public String toString() {
+        return apiUrl;
+    }
+}
@@ -0,0 +1,59 @@
+package cz.cuni.mff.ufal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Batch translation through a store of translations ({@link CachingTranslator}, {@link TranslationMemoryTranslator}):
+ * the texts found are not sent, the rest goes to the delegate as one batch and is stored.
+ */
+final class BatchLookup {
+
+    private BatchLookup() {
+    }
+
+    /**
+     * @param scope   language pair ("en-cs") or model ("model:en-cs") of the {@link TranslationCache#key keys}
+     * @param lookup  translation stored under the key, or null
+     * @param request sends the texts not found to the delegate
+     * @param store   stores the translation under the key
+     */
+    static CompletableFuture<List<String>> translate(List<String> texts, String scope, Function<String, String> lookup,
+                                                     Function<List<String>, CompletableFuture<List<String>>> request,
+                                                     BiConsumer<String, String> store){
+        List<String> translations = new ArrayList<>(texts.size());
+        List<Integer> missing = new ArrayList<>();
+        List<String> missingTexts = new ArrayList<>();
+        List<String> missingKeys = new ArrayList<>();
+        for(int i = 0; i < texts.size(); i++){
+            String key = TranslationCache.key(scope, texts.get(i));
+            String translation = lookup.apply(key);
+            translations.add(translation);
+            if(translation == null){
+                missing.add(i);
+                missingTexts.add(texts.get(i));
+                missingKeys.add(key);
+            }
+        }
+        if(missing.isEmpty()){
+            return CompletableFuture.completedFuture(translations);
+        }
+        return request.apply(missingTexts).thenApply(result -> {
+            if(result.size() != missingTexts.size()){
+                throw new TranslationException("Got " + result.size() + " translations for a batch of "
+                        + missingTexts.size() + " texts");
+            }
+            for(int i = 0; i < result.size(); i++){
+                String translation = result.get(i);
+                if(translation != null && !translation.isEmpty()){
+                    store.accept(missingKeys.get(i), translation);
+                }
+                translations.set(missing.get(i), translation);
+            }
+            return translations;
+        });
+    }
+}
@@ -0,0 +1,195 @@
+package cz.cuni.mff.ufal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the texts passed to translateAsync for the same language pair (or model) for a short window and sends them
+ * to the delegate as one translateBatchAsync call. A batch is sent when the window elapses or when it reaches
+ * maxBatchSize texts or maxBatchChars characters, whichever comes first. Every caller gets its own translation back.
+ * The batch is sent with the earliest {@link TraceContext} deadline of its texts, and with their session when they all
+ * have the same one.
+ *
+ * The blocking translate methods and streamed translations are passed to the delegate unchanged.
+ */
+public class BatchingTranslator implements Translator {
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "translation-batcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static class Batch {
+        private final String sourceLanguage;
+        private final String targetLanguage;
+        private final String modelName;
+        private final List<String> texts = new ArrayList<>();
+        private final List<CompletableFuture<String>> futures = new ArrayList<>();
+        private int chars;
+        private String session;
+        private boolean mixedSessions;
+        private Long deadline;
+
+        private Batch(String sourceLanguage, String targetLanguage, String modelName) {
+            this.sourceLanguage = sourceLanguage;
+            this.targetLanguage = targetLanguage;
+            this.modelName = modelName;
+        }
+    }
+
+    private final Translator delegate;
+    private final long windowMillis;
+    private final int maxBatchSize;
+    private final int maxBatchChars;
+    private final Map<String, Batch> pending = new HashMap<>();
+
+    public BatchingTranslator(Translator delegate, long windowMillis, int maxBatchSize, int maxBatchChars){
+        if(windowMillis <= 0 || maxBatchSize < 1 || maxBatchChars < 1){
+            throw new IllegalArgumentException("windowMillis, maxBatchSize and maxBatchChars must be positive.");
+        }
+        this.delegate = delegate;
+        this.windowMillis = windowMillis;
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchChars = maxBatchChars;
+    }
+
+    @Override
+    public String translate(String text, String sourceLanguage, String targetLanguage) {
+        return delegate.translate(text, sourceLanguage, targetLanguage);
+    }
+
+    @Override
+    public String translate(String text, String modelName) {
+        return delegate.translate(text, modelName);
+    }
+
+    @Override
+    public CompletableFuture<String> translateAsync(String text, String sourceLanguage, String targetLanguage) {
+        return enqueue(sourceLanguage + "-" + targetLanguage, text, sourceLanguage, targetLanguage, null);
+    }
+
+    @Override
+    public CompletableFuture<String> translateAsync(String text, String modelName) {
+        return enqueue("model:" + modelName, text, null, null, modelName);
+    }
+
+    @Override
+    public CompletableFuture<Void> translateStreaming(String text, String sourceLanguage, String targetLanguage,
+                                                     PartListener onPart) {
+        return delegate.translateStreaming(text, sourceLanguage, targetLanguage, onPart);
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> getAvailableLanguagePairs() {
+        return delegate.getAvailableLanguagePairs();
+    }
+
+    @Override
+    public Set<String> getAvailableModels() {
+        return delegate.getAvailableModels();
+    }
+
+    private CompletableFuture<String> enqueue(String key, String text, String sourceLanguage, String targetLanguage,
+                                              String modelName){
+        CompletableFuture<String> future = new CompletableFuture<>();
+        String session = TraceContext.get();
+        Long deadline = TraceContext.getDeadline();
+        List<Batch> ready = new ArrayList<>(2);
+        synchronized (pending) {
+            Batch batch = pending.get(key);
+            if(batch != null && batch.chars + text.length() > maxBatchChars){
+                pending.remove(key);
+                ready.add(batch);
+                batch = null;
+            }
+            if(batch == null){
+                Batch created = new Batch(sourceLanguage, targetLanguage, modelName);
+                pending.put(key, created);
+                scheduler.schedule(() -> flush(key, created), windowMillis, TimeUnit.MILLISECONDS);
+                batch = created;
+            }
+            batch.texts.add(text);
+            batch.futures.add(future);
+            batch.chars += text.length();
+            if(batch.texts.size() == 1){
+                batch.session = session;
+            }else if(!batch.mixedSessions && !Objects.equals(batch.session, session)){
+                batch.mixedSessions = true;
+                batch.session = null;
+            }
+            if(deadline != null && (batch.deadline == null || deadline - batch.deadline < 0)){
+                batch.deadline = deadline;
+            }
+            if(batch.texts.size() >= maxBatchSize){
+                pending.remove(key);
+                ready.add(batch);
+            }
+        }
+        for(Batch batch: ready){
+            dispatch(batch);
+        }
+        return future;
+    }
+
+    private void flush(String key, Batch batch){
+        synchronized (pending) {
+            if(!pending.remove(key, batch)){
+                // already sent because it got full
+                return;
+            }
+        }
+        dispatch(batch);
+    }
+
+    /**
+     * Runs on the scheduler thread or on the thread of the text that filled the batch, the delegate picks the trace
+     * context of the batch up from the thread.
+     */
+    private void dispatch(Batch batch){
+        CompletableFuture<List<String>> translations;
+        String session = TraceContext.get();
+        Long deadline = TraceContext.getDeadline();
+        TraceContext.set(batch.session, batch.deadline);
+        try {
+            if (batch.modelName != null) {
+                translations = delegate.translateBatchAsync(batch.texts, batch.modelName);
+            } else {
+                translations = delegate.translateBatchAsync(batch.texts, batch.sourceLanguage, batch.targetLanguage);
+            }
+        } catch (RuntimeException e){
+            translations = CompletableFuture.failedFuture(e);
+        } finally {
+            TraceContext.set(session, deadline);
+        }
+        translations.whenComplete((result, e) -> {
+            try {
+                Throwable failure = e;
+                if(failure == null && (result == null || result.size() != batch.texts.size())){
+                    failure = new TranslationException("Got " + (result == null ? 0 : result.size())
+                            + " translations for a batch of " + batch.texts.size() + " texts");
+                }
+                for(int i = 0; i < batch.futures.size(); i++){
+                    if(failure != null){
+                        batch.futures.get(i).completeExceptionally(failure);
+                    }else {
+                        batch.futures.get(i).complete(result.get(i));
+                    }
+                }
+            } catch (Throwable t){
+                // none may be left waiting
+                for(CompletableFuture<String> future: batch.futures){
+                    future.completeExceptionally(t);
+                }
+            }
+        });
+    }
+}
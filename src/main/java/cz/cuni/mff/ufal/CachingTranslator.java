@@ -0,0 +1,148 @@
+package cz.cuni.mff.ufal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Looks the translations up in a {@link TranslationCache} before asking the delegate. Empty translations and failed
+ * requests are not cached. Concurrent async requests for the same text share one call to the delegate. A batch sends
+ * only the texts not in the cache, as one batch.
+ */
+public class CachingTranslator implements Translator {
+
+    private final Translator delegate;
+    private final TranslationCache cache;
+    private final Map<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+
+    public CachingTranslator(Translator delegate, TranslationCache cache){
+        this.delegate = delegate;
+        this.cache = cache;
+    }
+
+    @Override
+    public String translate(String text, String sourceLanguage, String targetLanguage) {
+        String key = TranslationCache.key(sourceLanguage + "-" + targetLanguage, text);
+        String translation = cache.get(key);
+        if(translation == null){
+            translation = delegate.translate(text, sourceLanguage, targetLanguage);
+            store(key, translation);
+        }
+        return translation;
+    }
+
+    @Override
+    public String translate(String text, String modelName) {
+        String key = TranslationCache.key("model:" + modelName, text);
+        String translation = cache.get(key);
+        if(translation == null){
+            translation = delegate.translate(text, modelName);
+            store(key, translation);
+        }
+        return translation;
+    }
+
+    @Override
+    public CompletableFuture<String> translateAsync(String text, String sourceLanguage, String targetLanguage) {
+        String key = TranslationCache.key(sourceLanguage + "-" + targetLanguage, text);
+        String translation = cache.get(key);
+        if(translation != null){
+            return CompletableFuture.completedFuture(translation);
+        }
+        return shared(key, () -> delegate.translateAsync(text, sourceLanguage, targetLanguage));
+    }
+
+    @Override
+    public CompletableFuture<String> translateAsync(String text, String modelName) {
+        String key = TranslationCache.key("model:" + modelName, text);
+        String translation = cache.get(key);
+        if(translation != null){
+            return CompletableFuture.completedFuture(translation);
+        }
+        return shared(key, () -> delegate.translateAsync(text, modelName));
+    }
+
+    @Override
+    public CompletableFuture<List<String>> translateBatchAsync(List<String> texts, String sourceLanguage,
+                                                               String targetLanguage) {
+        return BatchLookup.translate(texts, sourceLanguage + "-" + targetLanguage, cache::get,
+                missing -> delegate.translateBatchAsync(missing, sourceLanguage, targetLanguage), cache::put);
+    }
+
+    @Override
+    public CompletableFuture<List<String>> translateBatchAsync(List<String> texts, String modelName) {
+        return BatchLookup.translate(texts, "model:" + modelName, cache::get,
+                missing -> delegate.translateBatchAsync(missing, modelName), cache::put);
+    }
+
+    @Override
+    public CompletableFuture<Void> translateStreaming(String text, String sourceLanguage, String targetLanguage,
+                                                     PartListener onPart) {
+        String key = TranslationCache.key(sourceLanguage + "-" + targetLanguage, text);
+        String translation = cache.get(key);
+        if(translation != null){
+            onPart.onPart(translation, 0, text.length());
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<String> shared = inFlight.get(key);
+        if(shared != null){
+            return shared.thenAccept(whole -> onPart.onPart(whole, 0, text.length()));
+        }
+        List<String> parts = Collections.synchronizedList(new ArrayList<>());
+        return delegate.translateStreaming(text, sourceLanguage, targetLanguage, (part, sourceStart, sourceEnd) -> {
+                    parts.add(part);
+                    onPart.onPart(part, sourceStart, sourceEnd);
+                })
+                .thenRun(() -> store(key, FanOutTranslator.joinParts(parts)));
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> getAvailableLanguagePairs() {
+        return delegate.getAvailableLanguagePairs();
+    }
+
+    @Override
+    public Set<String> getAvailableModels() {
+        return delegate.getAvailableModels();
+    }
+
+    public TranslationCache getCache() {
+        return cache;
+    }
+
+    private CompletableFuture<String> shared(String key, Supplier<CompletableFuture<String>> request){
+        CompletableFuture<String> future = new CompletableFuture<>();
+        CompletableFuture<String> existing = inFlight.putIfAbsent(key, future);
+        if(existing != null){
+            return existing;
+        }
+        CompletableFuture<String> translation;
+        try {
+            translation = request.get();
+        } catch (RuntimeException e){
+            inFlight.remove(key, future);
+            throw e;
+        }
+        translation.whenComplete((result, e) -> {
+            if(e != null){
+                future.completeExceptionally(e);
+            }else {
+                store(key, result);
+                future.complete(result);
+            }
+            inFlight.remove(key, future);
+        });
+        return future;
+    }
+
+    private void store(String key, String translation){
+        if(translation != null && !translation.isEmpty()){
+            cache.put(key, translation);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package cz.cuni.mff.ufal;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable snapshot of the language pairs and models a translation service offers.
+ */
+public final class Capabilities {
+
+    public static final Capabilities EMPTY = new Capabilities(Collections.emptySet(), Collections.emptySet());
+
+    private final Map<String, Set<String>> targetsBySource;
+    private final Set<Map.Entry<String, String>> languagePairs;
+    private final Set<String> models;
+
+    public Capabilities(Set<Map.Entry<String, String>> languagePairs, Set<String> models){
+        Map<String, Set<String>> targets = new HashMap<>();
+        Set<Map.Entry<String, String>> pairs = new HashSet<>();
+        for(Map.Entry<String, String> pair: languagePairs){
+            targets.computeIfAbsent(pair.getKey(), source -> new HashSet<>()).add(pair.getValue());
+            pairs.add(new AbstractMap.SimpleImmutableEntry<>(pair.getKey(), pair.getValue()));
+        }
+        targets.replaceAll((source, set) -> Collections.unmodifiableSet(set));
+        this.targetsBySource = Collections.unmodifiableMap(targets);
+        this.languagePairs = Collections.unmodifiableSet(pairs);
+        this.models = Collections.unmodifiableSet(new HashSet<>(models));
+    }
+
+    /**
+     * Doesn't allocate, safe to call for every request.
+     */
+    public boolean supports(String sourceLanguage, String targetLanguage){
+        Set<String> targets = targetsBySource.get(sourceLanguage);
+        return targets != null && targets.contains(targetLanguage);
+    }
+
+    public boolean hasModel(String modelName){
+        return models.contains(modelName);
+    }
+
+    public Set<Map.Entry<String, String>> getLanguagePairs(){
+        return languagePairs;
+    }
+
+    public Set<String> getModels(){
+        return models;
+    }
+
+    public boolean isEmpty(){
+        return languagePairs.isEmpty() && models.isEmpty();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Capabilities)) {
+            return false;
+        }
+        Capabilities that = (Capabilities) o;
+        return languagePairs.equals(that.languagePairs) && models.equals(that.models);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * languagePairs.hashCode() + models.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "Capabilities{languagePairs=" + languagePairs.size() + ", models=" + models.size() + "}";
+    }
+}
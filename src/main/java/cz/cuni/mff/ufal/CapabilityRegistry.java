@@ -0,0 +1,190 @@
+package cz.cuni.mff.ufal;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Thread-safe holder of the current {@link Capabilities}. The snapshot is loaded on the first call to get() and then
+ * refreshed in the background every ttlSeconds. A failed refresh (null or empty result) keeps the previous snapshot
+ * and file.
+ *
+ * With a snapshot file the first get() doesn't wait for the loader: it returns the capabilities persisted by the
+ * previous run and revalidates them in the background right away. Every successful load is written back to the file.
+ * The file is ignored when it was written for a different key (e.g. other backend URLs).
+ */
+public class CapabilityRegistry {
+
+    private static final String HEADER = "# capabilities of ";
+    private static final String PAIR = "pair";
+    private static final String MODEL = "model";
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "capability-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Supplier<Capabilities> loader;
+    private final long ttlSeconds;
+    private final Path snapshotPath;
+    private final String snapshotKey;
+    private volatile Capabilities snapshot;
+
+    /**
+     * @param ttlSeconds refresh period, 0 means never refresh
+     */
+    public CapabilityRegistry(Supplier<Capabilities> loader, long ttlSeconds){
+        this(loader, ttlSeconds, null, null);
+    }
+
+    /**
+     * @param snapshotPath file persisting the capabilities across restarts, null disables it
+     * @param snapshotKey identifies what the capabilities are of, a file with another key is not used
+     */
+    public CapabilityRegistry(Supplier<Capabilities> loader, long ttlSeconds, Path snapshotPath, String snapshotKey){
+        this.loader = loader;
+        this.ttlSeconds = ttlSeconds;
+        this.snapshotPath = snapshotPath;
+        this.snapshotKey = snapshotKey;
+    }
+
+    public Capabilities get(){
+        Capabilities current = snapshot;
+        if(current == null){
+            synchronized (this){
+                current = snapshot;
+                if(current == null){
+                    Capabilities persisted = readSnapshot();
+                    if(persisted != null){
+                        current = persisted;
+                        snapshot = current;
+                        scheduler.execute(this::refresh);
+                    }else {
+                        current = load();
+                        writeSnapshot(current);
+                        snapshot = current;
+                    }
+                    if(ttlSeconds > 0){
+                        scheduler.scheduleWithFixedDelay(this::refresh, ttlSeconds, ttlSeconds, TimeUnit.SECONDS);
+                    }
+                }
+            }
+        }
+        return current;
+    }
+
+    public void refresh(){
+        Capabilities loaded;
+        try {
+            loaded = load();
+        } catch (RuntimeException e){
+            e.printStackTrace();
+            return;
+        }
+        Capabilities previous = snapshot;
+        // the file first, so whoever sees the new snapshot finds it persisted
+        if(!loaded.isEmpty() && !loaded.equals(previous)){
+            if(previous != null){
+                System.err.println("Capabilities changed from " + previous + " to " + loaded
+                        + ", workers are registered only for the pairs known at startup");
+            }
+            writeSnapshot(loaded);
+        }
+        if(!loaded.isEmpty() || previous == null){
+            snapshot = loaded;
+        }
+    }
+
+    private Capabilities load(){
+        Capabilities loaded = loader.get();
+        return loaded != null ? loaded : Capabilities.EMPTY;
+    }
+
+    /**
+     * @return the persisted capabilities, null if there are none usable
+     */
+    private Capabilities readSnapshot(){
+        if(snapshotPath == null){
+            return null;
+        }
+        Set<Map.Entry<String, String>> languagePairs = new HashSet<>();
+        Set<String> models = new HashSet<>();
+        try(BufferedReader reader = Files.newBufferedReader(snapshotPath, StandardCharsets.UTF_8)){
+            if(!(HEADER + snapshotKey).equals(reader.readLine())){
+                System.err.println("Ignoring the capabilities snapshot " + snapshotPath + " of another API_URL");
+                return null;
+            }
+            String line;
+            while((line = reader.readLine()) != null){
+                String[] fields = line.split("\t");
+                if(fields.length == 3 && PAIR.equals(fields[0])){
+                    languagePairs.add(new AbstractMap.SimpleImmutableEntry<>(fields[1], fields[2]));
+                }else if(fields.length == 2 && MODEL.equals(fields[0])){
+                    models.add(fields[1]);
+                }else {
+                    System.err.println("Ignoring the malformed capabilities snapshot " + snapshotPath);
+                    return null;
+                }
+            }
+        } catch (NoSuchFileException e){
+            return null;
+        } catch (IOException e){
+            e.printStackTrace();
+            return null;
+        }
+        Capabilities persisted = new Capabilities(languagePairs, models);
+        if(persisted.isEmpty()){
+            return null;
+        }
+        System.err.println("Using the capabilities snapshot " + snapshotPath + ": " + persisted);
+        return persisted;
+    }
+
+    /**
+     * Writes a temporary file and moves it over the snapshot, a crash never leaves a half written one.
+     */
+    private void writeSnapshot(Capabilities capabilities){
+        if(snapshotPath == null || capabilities.isEmpty()){
+            return;
+        }
+        try {
+            Path parent = snapshotPath.toAbsolutePath().getParent();
+            Files.createDirectories(parent);
+            Path temporary = Files.createTempFile(parent, snapshotPath.getFileName().toString(), ".tmp");
+            try {
+                try(BufferedWriter writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)){
+                    writer.write(HEADER + snapshotKey);
+                    writer.newLine();
+                    for(Map.Entry<String, String> pair: capabilities.getLanguagePairs()){
+                        writer.write(PAIR + "\t" + pair.getKey() + "\t" + pair.getValue());
+                        writer.newLine();
+                    }
+                    for(String model: capabilities.getModels()){
+                        writer.write(MODEL + "\t" + model);
+                        writer.newLine();
+                    }
+                }
+                Files.move(temporary, snapshotPath, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        } catch (IOException e){
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package cz.cuni.mff.ufal;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops sending requests that are bound to fail. After failureThreshold consecutive failures the circuit opens and
+ * requests are rejected right away. Once openSeconds pass, a single probe request is let through (half open): its
+ * success closes the circuit, its failure opens it again.
+ */
+public final class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openNanos;
+
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+    private boolean probing;
+    private long opened;
+
+    public CircuitBreaker(int failureThreshold, long openSeconds){
+        this.failureThreshold = failureThreshold;
+        this.openNanos = TimeUnit.SECONDS.toNanos(openSeconds);
+    }
+
+    /**
+     * @return true if {@link #tryAcquire()} would let a request through, doesn't change the state
+     */
+    public synchronized boolean allowsRequest(){
+        switch (state){
+            case CLOSED:
+                return true;
+            case OPEN:
+                return System.nanoTime() - openedAt >= openNanos;
+            default:
+                return !probing;
+        }
+    }
+
+    /**
+     * @return true if the request may be sent, it has to be followed by onSuccess or onFailure
+     */
+    public synchronized boolean tryAcquire(){
+        if(state == State.OPEN && System.nanoTime() - openedAt >= openNanos){
+            state = State.HALF_OPEN;
+            probing = false;
+        }
+        switch (state){
+            case CLOSED:
+                return true;
+            case OPEN:
+                return false;
+            default:
+                if(probing){
+                    return false;
+                }
+                probing = true;
+                return true;
+        }
+    }
+
+    /**
+     * The acquired request was not sent after all.
+     */
+    public synchronized void onCancel(){
+        probing = false;
+    }
+
+    public synchronized void onSuccess(){
+        failures = 0;
+        probing = false;
+        state = State.CLOSED;
+    }
+
+    public synchronized void onFailure(){
+        probing = false;
+        if(state == State.HALF_OPEN || (failureThreshold > 0 && ++failures >= failureThreshold)){
+            state = State.OPEN;
+            openedAt = System.nanoTime();
+            failures = 0;
+            opened++;
+        }
+    }
+
+    public synchronized State getState(){
+        return state;
+    }
+
+    /**
+     * @return how many times the circuit opened
+     */
+    public synchronized long getOpened(){
+        return opened;
+    }
+}
@@ -0,0 +1,253 @@
+package cz.cuni.mff.ufal;
+
+import cz.cuni.mff.ufal.metrics.Counter;
+import cz.cuni.mff.ufal.metrics.Metrics;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of requests in flight to the backend. The limit follows the observed latency (AIMD): it grows by
+ * 1/limit with every fast response while at least half of it is used, and is cut by 10% when a response takes more
+ * than twice the baseline latency or fails. The latency grows with the text, so there is a baseline for every size
+ * class (texts of 2^(n-1) to 2^n - 1 characters): the long-term average latency of the class, which follows a backend
+ * that got permanently slower or faster. A class judges nothing until it has seen a few responses.
+ *
+ * Requests over the limit wait in a queue ordered by their deadline (earliest deadline first), which is maxWaitMillis
+ * after they came unless the caller gives an earlier one, so without deadlines it's FIFO. Those past their deadline,
+ * or that don't fit into the queue, are shed: their future fails with RejectedExecutionException.
+ * {@link #isSaturated()} tells the callers to stop taking new work once requests have kept waiting for
+ * saturatedAfterMillis.
+ */
+public final class ConcurrencyLimiter {
+
+    private static final int SIZE_CLASSES = 16;
+    // weight of a new sample in the baseline, it averages over the last ~100 responses of the class
+    private static final double BASELINE_WEIGHT = 0.01;
+    private static final int MIN_SAMPLES = 10;
+    private static final double TOLERANCE = 2.0;
+    private static final double BACKOFF = 0.9;
+    // jitter below this is not a sign of overload
+    private static final long SLACK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * A slot taken from the limiter, must be released exactly once.
+     */
+    public final class Permit {
+        private final long start = System.nanoTime();
+        private final int characters;
+
+        private Permit(int characters) {
+            this.characters = characters;
+        }
+
+        /**
+         * @param dropped true if the request failed or timed out, that counts as overload
+         */
+        public void release(boolean dropped){
+            ConcurrencyLimiter.this.release(System.nanoTime() - start, characters, dropped);
+        }
+    }
+
+    private static final class Waiter {
+        private final CompletableFuture<Permit> future = new CompletableFuture<>();
+        private final long deadline;
+        // breaks ties of equal deadlines in the order of arrival
+        private final long order;
+        private final int characters;
+
+        private Waiter(long deadline, long order, int characters) {
+            this.deadline = deadline;
+            this.order = order;
+            this.characters = characters;
+        }
+    }
+
+    private static final Comparator<Waiter> EARLIEST_DEADLINE = (a, b) -> {
+        long difference = a.deadline - b.deadline;
+        return difference != 0 ? (difference < 0 ? -1 : 1) : Long.compare(a.order, b.order);
+    };
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final int maxQueue;
+    private final long maxWaitNanos;
+    private final long saturatedAfterNanos;
+    private final PriorityQueue<Waiter> queue = new PriorityQueue<>(EARLIEST_DEADLINE);
+    private final Counter shed;
+    private final Counter decreases;
+
+    private double limit;
+    private int inFlight;
+    private final double[] baselineNanos = new double[SIZE_CLASSES];
+    // up to MIN_SAMPLES
+    private final int[] samples = new int[SIZE_CLASSES];
+    private long arrivals;
+    // System.nanoTime() when the queue stopped being empty
+    private long queuedSince;
+
+    public ConcurrencyLimiter(String name, int initialLimit, int minLimit, int maxLimit, int maxQueue,
+                              long maxWaitMillis){
+        this(name, initialLimit, minLimit, maxLimit, maxQueue, maxWaitMillis, 1000);
+    }
+
+    public ConcurrencyLimiter(String name, int initialLimit, int minLimit, int maxLimit, int maxQueue,
+                              long maxWaitMillis, long saturatedAfterMillis){
+        if(minLimit < 1 || initialLimit < minLimit || maxLimit < initialLimit){
+            throw new IllegalArgumentException("Need 1 <= minLimit <= initialLimit <= maxLimit.");
+        }
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.maxQueue = maxQueue;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        this.saturatedAfterNanos = TimeUnit.MILLISECONDS.toNanos(saturatedAfterMillis);
+        shed = Metrics.counter("limiter_shed_total", "Requests rejected by the concurrency limiter", "limiter", name);
+        decreases = Metrics.counter("limiter_decreases_total", "Times the concurrency limit was lowered", "limiter",
+                name);
+        Metrics.gauge("limiter_limit", "Current concurrency limit", this::getLimit, "limiter", name);
+        Metrics.gauge("limiter_in_flight", "Requests in flight", this::getInFlight, "limiter", name);
+        Metrics.gauge("limiter_queued", "Requests waiting for the concurrency limit", this::getQueued, "limiter",
+                name);
+    }
+
+    /**
+     * @return future completed with a permit once the request may be sent, or failed with RejectedExecutionException
+     */
+    public CompletableFuture<Permit> acquire(){
+        return acquire(0, null);
+    }
+
+    /**
+     * @param deadlineNanos System.nanoTime() by which the request has to be sent, it waits at most maxWaitMillis
+     *                      anyway
+     * @return future completed with a permit once the request may be sent, or failed with RejectedExecutionException
+     */
+    public CompletableFuture<Permit> acquire(long deadlineNanos){
+        return acquire(0, deadlineNanos);
+    }
+
+    /**
+     * @param characters    length of the text, its latency is compared to that of texts of a similar length
+     * @param deadlineNanos System.nanoTime() by which the request has to be sent, null for maxWaitMillis from now (it
+     *                      waits at most that long anyway)
+     * @return future completed with a permit once the request may be sent, or failed with RejectedExecutionException
+     */
+    public CompletableFuture<Permit> acquire(int characters, Long deadlineNanos){
+        List<Waiter> expired;
+        long now = System.nanoTime();
+        long maxDeadline = now + maxWaitNanos;
+        Waiter waiter;
+        boolean rejected = false;
+        synchronized (this) {
+            waiter = new Waiter(deadlineNanos != null && deadlineNanos - maxDeadline < 0 ? deadlineNanos
+                    : maxDeadline, arrivals++, characters);
+            expired = removeExpired();
+            if(now - waiter.deadline > 0){
+                rejected = true;
+            }else if(queue.isEmpty() && inFlight < (int) limit){
+                inFlight++;
+                waiter.future.complete(new Permit(characters));
+            }else if(queue.size() < maxQueue){
+                if(queue.isEmpty()){
+                    queuedSince = now;
+                }
+                queue.add(waiter);
+            }else {
+                rejected = true;
+            }
+        }
+        reject(expired);
+        if(rejected){
+            reject(waiter);
+        }
+        return waiter.future;
+    }
+
+    /**
+     * @return true when requests have been waiting for the limit for saturatedAfterMillis, new sessions should not be
+     * accepted
+     */
+    public synchronized boolean isSaturated(){
+        return !queue.isEmpty() && System.nanoTime() - queuedSince >= saturatedAfterNanos;
+    }
+
+    public synchronized long getLimit(){
+        return (long) limit;
+    }
+
+    public synchronized long getInFlight(){
+        return inFlight;
+    }
+
+    public synchronized long getQueued(){
+        return queue.size();
+    }
+
+    // package-private for the tests, which can't wait for real latencies
+    void release(long latencyNanos, int characters, boolean dropped){
+        List<Waiter> expired;
+        List<Waiter> ready = new ArrayList<>();
+        boolean decreased = false;
+        synchronized (this) {
+            inFlight--;
+            boolean slow = false;
+            if(!dropped){
+                int size = Math.min(SIZE_CLASSES - 1, 32 - Integer.numberOfLeadingZeros(characters));
+                slow = samples[size] >= MIN_SAMPLES
+                        && latencyNanos > baselineNanos[size] * TOLERANCE + SLACK_NANOS;
+                // the slow ones count too, so that a backend that got slower becomes the new normal
+                baselineNanos[size] = samples[size] == 0 ? latencyNanos
+                        : baselineNanos[size] + BASELINE_WEIGHT * (latencyNanos - baselineNanos[size]);
+                samples[size] = Math.min(MIN_SAMPLES, samples[size] + 1);
+            }
+            if(dropped || slow){
+                if(limit > minLimit){
+                    limit = Math.max(minLimit, limit * BACKOFF);
+                    decreased = true;
+                }
+            }else if(inFlight * 2 >= limit){
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+            expired = removeExpired();
+            while(!queue.isEmpty() && inFlight < (int) limit){
+                inFlight++;
+                ready.add(queue.poll());
+            }
+        }
+        if(decreased){
+            decreases.increment();
+        }
+        reject(expired);
+        for(Waiter waiter: ready){
+            waiter.future.complete(new Permit(waiter.characters));
+        }
+    }
+
+    // the earliest deadlines are at the head of the queue
+    private List<Waiter> removeExpired(){
+        List<Waiter> expired = new ArrayList<>(0);
+        long now = System.nanoTime();
+        while(!queue.isEmpty() && now - queue.peek().deadline > 0){
+            expired.add(queue.poll());
+        }
+        return expired;
+    }
+
+    private void reject(List<Waiter> waiters){
+        for(Waiter waiter: waiters){
+            reject(waiter);
+        }
+    }
+
+    private void reject(Waiter waiter){
+        shed.increment();
+        waiter.future.completeExceptionally(new RejectedExecutionException(
+                "Too many requests in flight, concurrency limit " + getLimit()));
+    }
+}
@@ -0,0 +1,253 @@
+package cz.cuni.mff.ufal;
+
+import cz.cuni.mff.ufal.metrics.Counter;
+import cz.cuni.mff.ufal.metrics.Metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+/**
+ * Splits texts of at least minChars characters into sentences and translates them as up to maxParallelism pieces of
+ * consecutive sentences at once, so a paragraph takes about as long as its longest piece instead of the whole.
+ * The translations of the pieces are joined in order by a space. Shorter texts go to the delegate as they are.
+ * {@link #translateStreaming} passes the translation of every piece on as soon as it and the ones before it are done,
+ * with the span of the source text the piece covers.
+ *
+ * The pieces may go to a different translator than the whole texts, e.g. around a {@link BatchingTranslator} that
+ * would merge them back into one request.
+ */
+public class FanOutTranslator implements Translator {
+
+    /**
+     * Consecutive sentences translated as one request, with their span in the source text.
+     */
+    static final class Piece {
+        final String text;
+        final int sourceStart;
+        final int sourceEnd;
+
+        private Piece(String text, int sourceStart, int sourceEnd) {
+            this.text = text;
+            this.sourceStart = sourceStart;
+            this.sourceEnd = sourceEnd;
+        }
+    }
+
+    private static final Counter fannedOut = Metrics.counter("translation_fanout_total",
+            "Texts translated as several pieces in parallel");
+    private static final Counter pieces = Metrics.counter("translation_fanout_pieces_total",
+            "Pieces sent for the texts translated in parallel");
+
+    private final Translator delegate;
+    private final Translator pieceTranslator;
+    private final int minChars;
+    private final int maxParallelism;
+
+    public FanOutTranslator(Translator delegate, int minChars, int maxParallelism){
+        this(delegate, delegate, minChars, maxParallelism);
+    }
+
+    public FanOutTranslator(Translator delegate, Translator pieceTranslator, int minChars, int maxParallelism){
+        if(maxParallelism < 1){
+            throw new IllegalArgumentException("maxParallelism must be positive.");
+        }
+        this.delegate = delegate;
+        this.pieceTranslator = pieceTranslator;
+        this.minChars = minChars;
+        this.maxParallelism = maxParallelism;
+    }
+
+    @Override
+    public String translate(String text, String sourceLanguage, String targetLanguage) {
+        List<String> split = split(text);
+        if(split == null){
+            return delegate.translate(text, sourceLanguage, targetLanguage);
+        }
+        return join(fanOut(split, piece -> pieceTranslator.translateAsync(piece, sourceLanguage, targetLanguage)));
+    }
+
+    @Override
+    public String translate(String text, String modelName) {
+        List<String> split = split(text);
+        if(split == null){
+            return delegate.translate(text, modelName);
+        }
+        return join(fanOut(split, piece -> pieceTranslator.translateAsync(piece, modelName)));
+    }
+
+    @Override
+    public CompletableFuture<String> translateAsync(String text, String sourceLanguage, String targetLanguage) {
+        List<String> split = split(text);
+        if(split == null){
+            return delegate.translateAsync(text, sourceLanguage, targetLanguage);
+        }
+        return fanOut(split, piece -> pieceTranslator.translateAsync(piece, sourceLanguage, targetLanguage));
+    }
+
+    @Override
+    public CompletableFuture<String> translateAsync(String text, String modelName) {
+        List<String> split = split(text);
+        if(split == null){
+            return delegate.translateAsync(text, modelName);
+        }
+        return fanOut(split, piece -> pieceTranslator.translateAsync(piece, modelName));
+    }
+
+    @Override
+    public CompletableFuture<Void> translateStreaming(String text, String sourceLanguage, String targetLanguage,
+                                                     PartListener onPart) {
+        List<Piece> pieces = pieces(text);
+        if(pieces == null){
+            return delegate.translateStreaming(text, sourceLanguage, targetLanguage, onPart);
+        }
+        List<String> split = new ArrayList<>(pieces.size());
+        for(Piece piece: pieces){
+            split.add(piece.text);
+        }
+        List<CompletableFuture<String>> parts = fanOutParts(split,
+                piece -> pieceTranslator.translateAsync(piece, sourceLanguage, targetLanguage));
+        // every piece waits for the ones before it
+        CompletableFuture<Void> passed = CompletableFuture.completedFuture(null);
+        for(int i = 0; i < parts.size(); i++){
+            Piece piece = pieces.get(i);
+            passed = passed.thenCombine(parts.get(i), (ignored, translated) -> {
+                if(!translated.isEmpty()){
+                    onPart.onPart(translated, piece.sourceStart, piece.sourceEnd);
+                }
+                return null;
+            });
+        }
+        return passed;
+    }
+
+    @Override
+    public CompletableFuture<List<String>> translateBatchAsync(List<String> texts, String sourceLanguage,
+                                                               String targetLanguage) {
+        return delegate.translateBatchAsync(texts, sourceLanguage, targetLanguage);
+    }
+
+    @Override
+    public CompletableFuture<List<String>> translateBatchAsync(List<String> texts, String modelName) {
+        return delegate.translateBatchAsync(texts, modelName);
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> getAvailableLanguagePairs() {
+        return delegate.getAvailableLanguagePairs();
+    }
+
+    @Override
+    public Set<String> getAvailableModels() {
+        return delegate.getAvailableModels();
+    }
+
+    /**
+     * @return the pieces to translate, null if the text is not worth splitting
+     */
+    List<String> split(String text){
+        List<Piece> pieces = pieces(text);
+        if(pieces == null){
+            return null;
+        }
+        List<String> split = new ArrayList<>(pieces.size());
+        for(Piece piece: pieces){
+            split.add(piece.text);
+        }
+        return split;
+    }
+
+    /**
+     * @return the pieces to translate with their spans in the text, null if the text is not worth splitting
+     */
+    List<Piece> pieces(String text){
+        if(maxParallelism < 2 || text == null || text.length() < minChars){
+            return null;
+        }
+        List<String> sentences = Sentences.split(text);
+        if(sentences.size() < 2){
+            return null;
+        }
+        int total = 0;
+        for(String sentence: sentences){
+            total += sentence.length();
+        }
+        // every piece but the last has at least target chars, so there are at most maxParallelism of them
+        int target = (total + maxParallelism - 1) / maxParallelism;
+        List<Piece> split = new ArrayList<>(maxParallelism);
+        StringBuilder piece = new StringBuilder();
+        int pieceStart = 0;
+        int end = 0;
+        for(String sentence: sentences){
+            // the sentences are stripped substrings in order, only whitespace lies between them
+            int start = text.indexOf(sentence, end);
+            end = start + sentence.length();
+            if(piece.length() > 0){
+                piece.append(' ');
+            }else {
+                pieceStart = start;
+            }
+            piece.append(sentence);
+            if(piece.length() >= target){
+                split.add(new Piece(piece.toString(), pieceStart, end));
+                piece.setLength(0);
+            }
+        }
+        if(piece.length() > 0){
+            split.add(new Piece(piece.toString(), pieceStart, end));
+        }
+        return split.size() < 2 ? null : split;
+    }
+
+    private static String join(CompletableFuture<String> translation){
+        try {
+            return translation.join();
+        } catch (CompletionException e) {
+            if(e.getCause() instanceof RuntimeException){
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Joins translated parts the way the translation of the whole text is joined.
+     */
+    static String joinParts(List<String> parts){
+        StringBuilder sb = new StringBuilder();
+        for(String translated: parts){
+            if(!translated.isEmpty()){
+                sb.append(translated).append(' ');
+            }
+        }
+        return sb.toString().stripTrailing();
+    }
+
+    private CompletableFuture<String> fanOut(List<String> split,
+                                             Function<String, CompletableFuture<String>> translation){
+        List<CompletableFuture<String>> parts = fanOutParts(split, translation);
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture[0]))
+                .thenApply(ignored -> {
+                    List<String> translated = new ArrayList<>(parts.size());
+                    for(CompletableFuture<String> part: parts){
+                        translated.add(part.join());
+                    }
+                    return joinParts(translated);
+                });
+    }
+
+    private List<CompletableFuture<String>> fanOutParts(List<String> split,
+                                                        Function<String, CompletableFuture<String>> translation){
+        fannedOut.increment();
+        pieces.add(split.size());
+        List<CompletableFuture<String>> parts = new ArrayList<>(split.size());
+        for(String piece: split){
+            parts.add(translation.apply(piece));
+        }
+        return parts;
+    }
+}
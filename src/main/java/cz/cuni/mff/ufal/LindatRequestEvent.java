@@ -0,0 +1,55 @@
+package cz.cuni.mff.ufal;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * One HTTP request to a Lindat backend, from asking its concurrency limiter for a permit to the response.
+ */
+@Name("cz.cuni.mff.ufal.LindatRequest")
+@Label("Lindat Request")
+@Category({"ELITR", "Translation"})
+@Description("Translation request sent to a Lindat backend")
+@Enabled(false)
+@StackTrace(false)
+final class LindatRequestEvent extends jdk.jfr.Event {
+
+    @Label("Session")
+    String session;
+
+    @Label("Scope")
+    @Description("Language pair or model")
+    String scope;
+
+    @Label("Backend")
+    String backend;
+
+    @Label("Characters")
+    int characters;
+
+    @Label("Request Size")
+    @DataAmount
+    int requestBytes;
+
+    @Label("Attempt")
+    @Description("0 for the first try, then the number of the retry")
+    int attempt;
+
+    @Label("Hedge")
+    boolean hedge;
+
+    @Label("Queue Wait")
+    @Description("Time waiting for a permit of the backend's concurrency limiter")
+    @Timespan
+    long queueWait;
+
+    @Label("Status")
+    @Description("HTTP status, 0 when there was no response")
+    int status;
+}
@@ -1,16 +1,39 @@
 package cz.cuni.mff.ufal;
 
 import com.dslplatform.json.DslJson;
+import cz.cuni.mff.ufal.metrics.Counter;
+import cz.cuni.mff.ufal.metrics.Histogram;
+import cz.cuni.mff.ufal.metrics.Metrics;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.URI;
-import java.net.URLEncoder;
 import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.file.Paths;
 import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 
 public class LindatTranslationClient implements Translator {
@@ -31,6 +54,62 @@ public class LindatTranslationClient implements Translator {
         }
     }
 
+    /**
+     * Metrics of the requests for one language pair or model.
+     */
+    private static final class RequestMetrics {
+        private final Histogram latency;
+        private final Counter requests;
+        private final Counter errors;
+        private final Counter characters;
+        private final String scope;
+
+        private RequestMetrics(String scope){
+            this.scope = scope;
+            latency = Metrics.histogram("lindat_request_seconds", "Latency of translation requests", "scope", scope);
+            requests = Metrics.counter("lindat_requests_total", "Translation requests sent", "scope", scope);
+            errors = Metrics.counter("lindat_request_errors_total", "Failed translation requests", "scope", scope);
+            characters = Metrics.counter("lindat_characters_total", "Characters sent for translation", "scope",
+                    scope);
+        }
+
+        private long start(String text){
+            requests.increment();
+            characters.add(text.length());
+            return System.nanoTime();
+        }
+    }
+
+    /**
+     * What's sent for one translation, the same for every retry and hedge.
+     */
+    private static final class Request {
+        private final String path;
+        private final byte[] form;
+        private final String scope;
+        private final int characters;
+        private final String session = TraceContext.get();
+        private final Long deadline = TraceContext.getDeadline();
+        // gzipped form, on first use in the h2 wire mode
+        private volatile byte[] compressedForm;
+
+        private Request(String path, String text, String scope){
+            this.path = path;
+            this.form = TranslationCodec.get().encodeForm(text);
+            this.scope = scope;
+            this.characters = text.length();
+        }
+
+        private byte[] compressedForm(){
+            byte[] compressed = compressedForm;
+            if(compressed == null){
+                compressed = gzip(form);
+                compressedForm = compressed;
+            }
+            return compressed;
+        }
+    }
+
     private static boolean isBlank(String string){
        if(string == null || string.isEmpty() || string.strip().isEmpty()){
            return true;
@@ -40,29 +119,274 @@ public class LindatTranslationClient implements Translator {
     }
 
     private static final String DEFAULT_URL = "http://localhost:5000/api/v1";
+    private static final long CAPABILITIES_TTL_SECONDS = Long.parseLong(
+            Optional.ofNullable(System.getenv("CAPABILITIES_TTL_SECONDS")).orElse("600"));
+    // "h2" multiplexes the requests over HTTP/2 connections and compresses them, "http1" sends them as they always were
+    private static final String HTTP_WIRE_MODE = Optional.ofNullable(System.getenv("HTTP_WIRE_MODE")).orElse("http1");
+    private static final boolean H2_MODE = "h2".equalsIgnoreCase(HTTP_WIRE_MODE);
+    private static final int HTTP_COMPRESS_MIN_BYTES = Integer.parseInt(
+            Optional.ofNullable(System.getenv("HTTP_COMPRESS_MIN_BYTES")).orElse("1024"));
+    private static final String CAPABILITIES_SNAPSHOT_PATH = System.getenv("CAPABILITIES_SNAPSHOT_PATH");
+    private static final int CONCURRENCY_LIMIT = Integer.parseInt(
+            Optional.ofNullable(System.getenv("CONCURRENCY_LIMIT")).orElse("32"));
+    private static final int CONCURRENCY_LIMIT_MIN = Integer.parseInt(
+            Optional.ofNullable(System.getenv("CONCURRENCY_LIMIT_MIN")).orElse("4"));
+    private static final int CONCURRENCY_LIMIT_MAX = Integer.parseInt(
+            Optional.ofNullable(System.getenv("CONCURRENCY_LIMIT_MAX")).orElse("512"));
+    private static final int CONCURRENCY_QUEUE_MAX = Integer.parseInt(
+            Optional.ofNullable(System.getenv("CONCURRENCY_QUEUE_MAX")).orElse("1000"));
+    private static final long CONCURRENCY_QUEUE_TIMEOUT_MS = Long.parseLong(
+            Optional.ofNullable(System.getenv("CONCURRENCY_QUEUE_TIMEOUT_MS")).orElse("5000"));
+    private static final long CONCURRENCY_SATURATED_MS = Long.parseLong(
+            Optional.ofNullable(System.getenv("CONCURRENCY_SATURATED_MS")).orElse("1000"));
+    private static final double HEDGE_QUANTILE = Double.parseDouble(
+            Optional.ofNullable(System.getenv("HEDGE_QUANTILE")).orElse("0"));
+    private static final int EJECT_FAILURES = Integer.parseInt(
+            Optional.ofNullable(System.getenv("EJECT_FAILURES")).orElse("5"));
+    private static final long EJECT_SECONDS = Long.parseLong(
+            Optional.ofNullable(System.getenv("EJECT_SECONDS")).orElse("30"));
+    private static final double EJECT_LATENCY_FACTOR = Double.parseDouble(
+            Optional.ofNullable(System.getenv("EJECT_LATENCY_FACTOR")).orElse("3"));
+    private static final int BREAKER_FAILURES = Integer.parseInt(
+            Optional.ofNullable(System.getenv("BREAKER_FAILURES")).orElse("5"));
+    private static final long BREAKER_OPEN_SECONDS = Long.parseLong(
+            Optional.ofNullable(System.getenv("BREAKER_OPEN_SECONDS")).orElse("10"));
+    private static final int RETRY_ATTEMPTS = Integer.parseInt(
+            Optional.ofNullable(System.getenv("RETRY_ATTEMPTS")).orElse("2"));
+    private static final long RETRY_BACKOFF_MS = Long.parseLong(
+            Optional.ofNullable(System.getenv("RETRY_BACKOFF_MS")).orElse("100"));
+    private static final double RETRY_BUDGET_RATIO = Double.parseDouble(
+            Optional.ofNullable(System.getenv("RETRY_BUDGET_RATIO")).orElse("0.1"));
+    // a percentile of fewer samples isn't worth much
+    private static final long HEDGE_MIN_SAMPLES = 20;
+    // retries allowed in a burst, before the ratio kicks in
+    private static final double RETRY_BUDGET_TOKENS = 10;
+
+    private static final Counter hedges = Metrics.counter("lindat_hedged_requests_total",
+            "Requests sent to a second backend because the first one was slow");
+    private static final Counter hedgeWins = Metrics.counter("lindat_hedge_wins_total",
+            "Hedged requests answered first by the second backend");
+    private static final Counter retries = Metrics.counter("lindat_retries_total", "Failed requests sent again");
+    private static final Counter retriesDenied = Metrics.counter("lindat_retries_denied_total",
+            "Failed requests not retried because the retry budget was used up");
+    private static final Counter compressionFallbacks = Metrics.counter("lindat_compression_fallbacks_total",
+            "Compressed requests refused by a backend and sent again uncompressed");
+    // gzipped responses are only asked for in the h2 wire mode
+    private static final HttpResponse.BodyHandler<byte[]> BODY_HANDLER = info -> isGzip(info.headers())
+            ? HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofByteArray(),
+                    LindatTranslationClient::gunzip)
+            : HttpResponse.BodySubscribers.ofByteArray();
+    private static final Counter breakerRejections = Metrics.counter("lindat_breaker_rejections_total",
+            "Requests failed right away because the circuit of every backend was open");
+    // hedges and retry backoffs
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "lindat-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // reads streamed responses, a blocking read on the HttpClient's executor could starve it
+    private static final ExecutorService streamReaders = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "lindat-stream");
+        thread.setDaemon(true);
+        return thread;
+    });
 
-    private String apiUrl;
+    private static LindatTranslationClient shared;
+
+    private final LoadBalancer balancer;
     private HttpClient client;
     private DslJson<Object> json;
-    private Set<Map.Entry<String, String>> availableLanguagePairs;
-    private Set<String> availableModels;
+    private final CapabilityRegistry capabilities;
+    private final RetryBudget retryBudget = new RetryBudget(RETRY_BUDGET_RATIO, RETRY_BUDGET_TOKENS);
+    private final ConcurrentMap<String, ConcurrentMap<String, RequestMetrics>> pairMetrics = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, RequestMetrics> modelMetrics = new ConcurrentHashMap<>();
 
     public LindatTranslationClient(){
         this(Optional.ofNullable(System.getenv("API_URL")).orElse(DEFAULT_URL));
     }
 
+    /**
+     * @param apiUrl URL of the Lindat API, or several comma separated URLs of its replicas
+     */
     public LindatTranslationClient(String apiUrl){
-        System.err.println("Using API_URL=" + apiUrl);
-       this.apiUrl =  apiUrl;
-       this.client = HttpClient.newBuilder()
-            .followRedirects(HttpClient.Redirect.ALWAYS)
-            .connectTimeout(Duration.ofSeconds(5))
-            .build();
+        this(apiUrl, newHttpClient().build());
+    }
+
+    public LindatTranslationClient(String apiUrl, HttpClient client){
+        this(createBackends(apiUrl), client);
+    }
+
+    public LindatTranslationClient(List<Backend> backends, HttpClient client){
+        System.err.println("Using API_URL=" + backends);
+        this.balancer = new LoadBalancer(backends, EJECT_FAILURES, EJECT_SECONDS, EJECT_LATENCY_FACTOR);
+        this.client = client;
         json = new DslJson<>();
+        capabilities = new CapabilityRegistry(this::fetchCapabilities, CAPABILITIES_TTL_SECONDS,
+                CAPABILITIES_SNAPSHOT_PATH != null ? Paths.get(CAPABILITIES_SNAPSHOT_PATH) : null,
+                backends.stream().map(Backend::getApiUrl).collect(Collectors.joining(",")));
+    }
+
+    /**
+     * In the h2 wire mode the client asks for HTTP/2, which multiplexes all the requests to a backend over one
+     * connection. A backend that doesn't speak it (no ALPN over TLS, no h2c upgrade over plain HTTP) keeps getting
+     * HTTP/1.1 requests, see lindat_wire_requests_total.
+     */
+    private static HttpClient.Builder newHttpClient(){
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                .followRedirects(HttpClient.Redirect.ALWAYS)
+                .connectTimeout(Duration.ofSeconds(5));
+        if(H2_MODE){
+            builder.version(HttpClient.Version.HTTP_2);
+        }
+        return builder;
+    }
+
+    private static List<Backend> createBackends(String apiUrls){
+        List<Backend> backends = new ArrayList<>();
+        for(String apiUrl: apiUrls.split(",")){
+            if(!isBlank(apiUrl)){
+                apiUrl = apiUrl.strip();
+                backends.add(new Backend(apiUrl, new ConcurrencyLimiter(apiUrl, CONCURRENCY_LIMIT,
+                        CONCURRENCY_LIMIT_MIN, CONCURRENCY_LIMIT_MAX, CONCURRENCY_QUEUE_MAX,
+                        CONCURRENCY_QUEUE_TIMEOUT_MS, CONCURRENCY_SATURATED_MS), BREAKER_FAILURES,
+                        BREAKER_OPEN_SECONDS));
+            }
+        }
+        return backends;
+    }
+
+    /**
+     * One client for the whole JVM, so all the workers share a single connection pool and a single view of the
+     * available language pairs. Uses $API_URL or localhost:5000.
+     *
+     * The HttpClient gets HTTP_CLIENT_THREADS threads (number of processors by default) and, unless
+     * jdk.httpclient.connectionPoolSize is set, keeps at most HTTP_POOL_SIZE idle connections (by default as many as
+     * the concurrency limiters let requests be in flight, CONCURRENCY_LIMIT_MAX per backend) for
+     * HTTP_KEEPALIVE_SECONDS (unless jdk.httpclient.keepalive.timeout is set, the JDK default otherwise).
+     */
+    public static synchronized LindatTranslationClient shared(){
+        if(shared == null){
+            String apiUrl = Optional.ofNullable(System.getenv("API_URL")).orElse(DEFAULT_URL);
+            // the JDK reads it once, before the language pairs and so the number of workers are known
+            String poolSize = Optional.ofNullable(System.getenv("HTTP_POOL_SIZE")).orElse(String.valueOf(
+                    Arrays.stream(apiUrl.split(",")).filter(url -> !isBlank(url)).count() * CONCURRENCY_LIMIT_MAX));
+            if(System.getProperty("jdk.httpclient.connectionPoolSize") == null){
+                System.setProperty("jdk.httpclient.connectionPoolSize", poolSize);
+            }
+            String keepAlive = System.getenv("HTTP_KEEPALIVE_SECONDS");
+            if(keepAlive != null && System.getProperty("jdk.httpclient.keepalive.timeout") == null){
+                System.setProperty("jdk.httpclient.keepalive.timeout", keepAlive);
+                // idle HTTP/2 connections, JDK 20+
+                System.setProperty("jdk.httpclient.keepalive.timeout.h2", keepAlive);
+            }
+            int threads = Integer.parseInt(Optional.ofNullable(System.getenv("HTTP_CLIENT_THREADS"))
+                    .orElse(String.valueOf(Runtime.getRuntime().availableProcessors())));
+            AtomicInteger threadCount = new AtomicInteger();
+            ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+                Thread thread = new Thread(r, "lindat-http-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            shared = new LindatTranslationClient(apiUrl, newHttpClient().executor(executor).build());
+        }
+        return shared;
     }
 
 
     public String translate(String text, String sourceLanguage, String targetLanguage){
+        return processInputText(text, languagesPath(text, sourceLanguage, targetLanguage),
+                metrics(sourceLanguage, targetLanguage));
+    }
+
+    public String translate(String text, String modelName) {
+        return processInputText(text, modelPath(text, modelName), metrics(modelName));
+    }
+
+    @Override
+    public CompletableFuture<String> translateAsync(String text, String sourceLanguage, String targetLanguage) {
+        return processInputTextAsync(text, languagesPath(text, sourceLanguage, targetLanguage),
+                metrics(sourceLanguage, targetLanguage));
+    }
+
+    @Override
+    public CompletableFuture<String> translateAsync(String text, String modelName) {
+        return processInputTextAsync(text, modelPath(text, modelName), metrics(modelName));
+    }
+
+    /**
+     * Sends all the texts as lines of one request. Lindat ends the translation of each input line with a newline,
+     * that's how the response is split back. Should the number of lines not match, the texts are translated one by
+     * one instead.
+     */
+    @Override
+    public CompletableFuture<List<String>> translateBatchAsync(List<String> texts, String sourceLanguage,
+                                                               String targetLanguage) {
+        if(texts.size() == 1 || texts.stream().anyMatch(text -> text.indexOf('\n') >= 0)){
+            return Translator.super.translateBatchAsync(texts, sourceLanguage, targetLanguage);
+        }
+        String text = String.join("\n", texts);
+        return processBatchAsync(texts, languagesPath(text, sourceLanguage, targetLanguage), text,
+                metrics(sourceLanguage, targetLanguage))
+                .thenCompose(translations -> translations != null ? CompletableFuture.completedFuture(translations)
+                        : Translator.super.translateBatchAsync(texts, sourceLanguage, targetLanguage));
+    }
+
+    @Override
+    public CompletableFuture<List<String>> translateBatchAsync(List<String> texts, String modelName) {
+        if(texts.size() == 1 || texts.stream().anyMatch(text -> text.indexOf('\n') >= 0)){
+            return Translator.super.translateBatchAsync(texts, modelName);
+        }
+        String text = String.join("\n", texts);
+        return processBatchAsync(texts, modelPath(text, modelName), text, metrics(modelName))
+                .thenCompose(translations -> translations != null ? CompletableFuture.completedFuture(translations)
+                        : Translator.super.translateBatchAsync(texts, modelName));
+    }
+
+    /**
+     * Passes every line of the response on as soon as it's read from the connection, with the source sentence it
+     * translates (the sentences left over when Lindat splits the text differently go with the last line). A streamed
+     * request is neither retried nor hedged, the parts already passed on can't be taken back. A request failing before
+     * its first part is translated again by translateAsync instead.
+     */
+    @Override
+    public CompletableFuture<Void> translateStreaming(String text, String sourceLanguage, String targetLanguage,
+                                                     PartListener onPart) {
+        RequestMetrics metrics = metrics(sourceLanguage, targetLanguage);
+        Request request = new Request(languagesPath(text, sourceLanguage, targetLanguage), text, metrics.scope);
+        long start = metrics.start(text);
+        AtomicBoolean passed = new AtomicBoolean();
+        return stream(request, text, (part, sourceStart, sourceEnd) -> {
+                    passed.set(true);
+                    onPart.onPart(part, sourceStart, sourceEnd);
+                })
+                .whenComplete((ignored, e) -> {
+                    metrics.latency.recordSince(start);
+                    if(e != null){
+                        metrics.errors.increment();
+                    }
+                })
+                .handle((ignored, e) -> e)
+                .thenCompose(e -> {
+                    if(e == null){
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    if(passed.get()){
+                        return CompletableFuture.failedFuture(failure(e));
+                    }
+                    return Translator.super.translateStreaming(text, sourceLanguage, targetLanguage, onPart);
+                });
+    }
+
+    private RequestMetrics metrics(String sourceLanguage, String targetLanguage){
+        return pairMetrics.computeIfAbsent(sourceLanguage, source -> new ConcurrentHashMap<>())
+                .computeIfAbsent(targetLanguage, target -> new RequestMetrics(sourceLanguage + "-" + target));
+    }
+
+    private RequestMetrics metrics(String modelName){
+        return modelMetrics.computeIfAbsent(modelName, model -> new RequestMetrics("model:" + model));
+    }
+
+    private String languagesPath(String text, String sourceLanguage, String targetLanguage){
         if(isBlank(text) || isBlank(sourceLanguage) || isBlank(targetLanguage)){
             throw new IllegalArgumentException("text, sourceLanguage and targetLanguage cannot be null.");
         }
@@ -70,80 +394,517 @@ public class LindatTranslationClient implements Translator {
             throw new IllegalArgumentException(String.format("Translation from %s to %s is not available",
                     sourceLanguage, targetLanguage));
         }
-        URI uri = URI.create(this.apiUrl + ApiPaths.LANGUAGES + String.format("?src=%s&tgt=%s", sourceLanguage,
-                targetLanguage));
-        return processInputText(text, uri);
+        return ApiPaths.LANGUAGES + String.format("?src=%s&tgt=%s", sourceLanguage, targetLanguage);
     }
 
-    public String translate(String text, String modelName) {
+    private String modelPath(String text, String modelName){
         if(isBlank(text) || isBlank(modelName)){
             throw new IllegalArgumentException("Neither text nor modelName can be null.");
         }
-        URI uri = URI.create(this.apiUrl + ApiPaths.MODELS + String.format("/%s", modelName));
-        return processInputText(text, uri);
+        return ApiPaths.MODELS + String.format("/%s", modelName);
     }
 
     @Override
     public Set<Map.Entry<String, String>> getAvailableLanguagePairs() {
-        if(availableLanguagePairs == null){
-            availableLanguagePairs = new HashSet<>();
-            URI uri = URI.create(this.apiUrl + ApiPaths.LANGUAGES);
-            var arr = processListing(uri, "_links", "languages");
-            for(Object langObject: arr){
-                Map langDef = (Map)langObject;
-                String source = (String)langDef.get("source");
-                String target = (String)langDef.get("target");
-                availableLanguagePairs.add(new AbstractMap.SimpleEntry<>(source, target));
-            }
-        }
-        return availableLanguagePairs;
+        return capabilities.get().getLanguagePairs();
     }
 
     @Override
     public Set<String> getAvailableModels() {
-        if(availableModels == null){
-            availableModels = new HashSet<>();
-            URI uri = URI.create(this.apiUrl + ApiPaths.MODELS);
-            var arr = processListing(uri, "_links", "models");
-            for(Object langObject: arr){
-                Map langDef = (Map)langObject;
-                String modelName = (String)langDef.get("model");
-                availableModels.add(modelName);
+        return capabilities.get().getModels();
+    }
+
+    public Capabilities getCapabilities() {
+        return capabilities.get();
+    }
+
+    /**
+     * @return true when every backend is at its concurrency limit and requests keep queuing up, see
+     * {@link ConcurrencyLimiter#isSaturated()}
+     */
+    public boolean isSaturated() {
+        for(Backend backend: balancer.getBackends()){
+            if(!backend.getLimiter().isSaturated()){
+                return false;
             }
         }
-        return availableModels;
+        return true;
+    }
+
+    public List<Backend> getBackends() {
+        return balancer.getBackends();
+    }
+
+    /**
+     * The replicas are supposed to serve the same models, the first one that answers both listings is used.
+     *
+     * @return null if no replica did, a partial listing would replace the complete one in the registry
+     */
+    private Capabilities fetchCapabilities(){
+        for(Backend backend: balancer.getBackends()){
+            Capabilities capabilities = fetchCapabilities(backend.getApiUrl());
+            if(capabilities != null && !capabilities.isEmpty()){
+                return capabilities;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return null if either listing failed
+     */
+    private Capabilities fetchCapabilities(String apiUrl){
+        Set<Map.Entry<String, String>> languagePairs = new HashSet<>();
+        URI uri = URI.create(apiUrl + ApiPaths.LANGUAGES);
+        var arr = processListing(uri, "_links", "languages");
+        if(arr == null){
+            return null;
+        }
+        for(Object langObject: arr){
+            Map langDef = (Map)langObject;
+            String source = (String)langDef.get("source");
+            String target = (String)langDef.get("target");
+            languagePairs.add(new AbstractMap.SimpleEntry<>(source, target));
+        }
+        Set<String> models = new HashSet<>();
+        uri = URI.create(apiUrl + ApiPaths.MODELS);
+        arr = processListing(uri, "_links", "models");
+        if(arr == null){
+            return null;
+        }
+        for(Object langObject: arr){
+            Map langDef = (Map)langObject;
+            String modelName = (String)langDef.get("model");
+            models.add(modelName);
+        }
+        return new Capabilities(languagePairs, models);
     }
 
-    private String processInputText(String text, URI uri){
+    /**
+     * @throws TranslationException when the translation fails
+     */
+    private String processInputText(String text, String path, RequestMetrics metrics){
         try {
-            HttpRequest.BodyPublisher body = HttpRequest.BodyPublishers.ofString("input_text=" + URLEncoder.encode(text,
-                    "UTF-8"));
-            HttpRequest request = HttpRequest.newBuilder()
-                    .POST(body)
-                    .uri(uri)
-                    .setHeader("Content-Type", "application/x-www-form-urlencoded")
-                    .setHeader("Accept", "application/json")
-                    .timeout(Duration.ofSeconds(30))
-                    .build();
-            //String resp = client.send(request, HttpResponse.BodyHandlers.ofString()).body();
-            //return resp;
-            HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
-            Iterator<String> lines = json.iterateOver(String.class, response.body(), new byte[1024]);
-            StringBuilder sb = new StringBuilder();
-            while(lines.hasNext()){
-                sb.append(lines.next());
-                sb.append(' ');
+            return processInputTextAsync(text, path, metrics).join();
+        } catch (CompletionException e) {
+            throw failure(e);
+        }
+    }
+
+    /**
+     * The whole body is buffered by the HttpClient so the parsing in thenApply never waits on the network. Fails with
+     * TranslationException.
+     */
+    private CompletableFuture<String> processInputTextAsync(String text, String path, RequestMetrics metrics){
+        long start = metrics.start(text);
+        Request request = new Request(path, text, metrics.scope);
+        return send(request)
+                .whenComplete((response, e) -> metrics.latency.recordSince(start))
+                .thenApply(response -> {
+                    ResponseParseEvent event = new ResponseParseEvent();
+                    event.begin();
+                    try {
+                        return TranslationCodec.get().parseTranslation(response.body());
+                    } catch (IOException e) {
+                        throw new TranslationException("Invalid response from Lindat", e);
+                    } finally {
+                        commit(event, request, response);
+                    }
+                })
+                .whenComplete((translation, e) -> {
+                    if(e != null){
+                        metrics.errors.increment();
+                    }
+                });
+    }
+
+    /**
+     * @return translation of every input line or null when the response can't be split back to the input lines
+     */
+    private CompletableFuture<List<String>> processBatchAsync(List<String> texts, String path, String text,
+                                                              RequestMetrics metrics){
+        long start = metrics.start(text);
+        Request request = new Request(path, text, metrics.scope);
+        return send(request)
+                .whenComplete((response, e) -> metrics.latency.recordSince(start))
+                .thenApply(response -> {
+                    ResponseParseEvent event = new ResponseParseEvent();
+                    event.begin();
+                    List<String> lines;
+                    try {
+                        lines = parseLines(response.body());
+                    } finally {
+                        commit(event, request, response);
+                    }
+                    List<String> translations = new ArrayList<>(texts.size());
+                    int from = 0;
+                    for(int i = 0; i < lines.size(); i++){
+                        if(lines.get(i).endsWith("\n") || i == lines.size() - 1){
+                            translations.add(joinTranslation(lines.subList(from, i + 1)));
+                            from = i + 1;
+                        }
+                    }
+                    return translations.size() == texts.size() ? translations : null;
+                })
+                .whenComplete((translations, e) -> {
+                    if(e != null){
+                        metrics.errors.increment();
+                    }
+                });
+    }
+
+    /**
+     * Sends the request, retrying failures up to RETRY_ATTEMPTS times on another backend if there is one. The retries
+     * wait a random time up to RETRY_BACKOFF_MS * 2^attempt (the first one up to RETRY_BACKOFF_MS, none with 0) and
+     * are limited by the retry budget. Requests shed by the concurrency limiter are not retried. Fails with
+     * TranslationException, right away if the circuit of every backend is open for this scope.
+     */
+    private CompletableFuture<HttpResponse<byte[]>> send(Request request){
+        retryBudget.onRequest();
+        CompletableFuture<HttpResponse<byte[]>> result = new CompletableFuture<>();
+        attempt(request, 0, null, result);
+        return result;
+    }
+
+    private void attempt(Request request, int attempt, Backend previous,
+                         CompletableFuture<HttpResponse<byte[]>> result){
+        Backend chosen = balancer.choose(previous, request.scope);
+        if(chosen == null && previous != null){
+            // the only one left
+            chosen = balancer.choose(null, request.scope);
+        }
+        if(chosen == null){
+            breakerRejections.increment();
+            result.completeExceptionally(new TranslationException("Circuit open for " + request.scope
+                    + " on all backends"));
+            return;
+        }
+        Backend backend = chosen;
+        sendHedged(backend, request, attempt).whenComplete((response, e) -> {
+            try {
+                retryOrComplete(request, attempt, backend, result, response, e);
+            } catch (RuntimeException | Error unexpected){
+                // a swallowed exception here would leave the packet waiting forever
+                result.completeExceptionally(unexpected);
+            }
+        });
+    }
+
+    private void retryOrComplete(Request request, int attempt, Backend backend,
+                                 CompletableFuture<HttpResponse<byte[]>> result, HttpResponse<byte[]> response,
+                                 Throwable e){
+        if(e == null && !isOverloaded(response)){
+            result.complete(response);
+            return;
+        }
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        if(!(cause instanceof RejectedExecutionException) && attempt < RETRY_ATTEMPTS){
+            if(retryBudget.tryRetry()){
+                retries.increment();
+                long maxBackoff = TimeUnit.MILLISECONDS.toNanos(RETRY_BACKOFF_MS) << attempt;
+                if(maxBackoff <= 0){
+                    attempt(request, attempt + 1, backend, result);
+                }else {
+                    scheduler.schedule(() -> attempt(request, attempt + 1, backend, result),
+                            ThreadLocalRandom.current().nextLong(maxBackoff), TimeUnit.NANOSECONDS);
+                }
+                return;
+            }
+            retriesDenied.increment();
+        }
+        result.completeExceptionally(e != null ? failure(e)
+                : new TranslationException(backend + " answered " + response.statusCode()));
+    }
+
+    /**
+     * Sends the request to the backend. With HEDGE_QUANTILE set, the request is also sent to a second backend when
+     * the first one doesn't answer within that quantile of its latency, the first successful response wins.
+     */
+    private CompletableFuture<HttpResponse<byte[]>> sendHedged(Backend backend, Request request, int attempt){
+        CompletableFuture<HttpResponse<byte[]>> primary = sendAsync(backend, request, attempt, false);
+        if(HEDGE_QUANTILE <= 0 || balancer.getBackends().size() < 2
+                || backend.getLatency().getCount() < HEDGE_MIN_SAMPLES){
+            return primary;
+        }
+        double delaySeconds = backend.getLatency().getQuantileUpperBound(HEDGE_QUANTILE);
+        if(Double.isInfinite(delaySeconds)){
+            return primary;
+        }
+        CompletableFuture<HttpResponse<byte[]>> result = new CompletableFuture<>();
+        AtomicInteger outstanding = new AtomicInteger(1);
+        primary.whenComplete((response, e) -> completeHedged(result, outstanding, response, e, false));
+        scheduler.schedule(() -> {
+            Backend second = balancer.choose(backend, request.scope);
+            if(result.isDone() || second == null){
+                return;
+            }
+            hedges.increment();
+            outstanding.incrementAndGet();
+            sendAsync(second, request, attempt, true)
+                    .whenComplete((response, e) -> completeHedged(result, outstanding, response, e, true));
+        }, (long) (delaySeconds * 1e6), TimeUnit.MICROSECONDS);
+        return result;
+    }
+
+    /**
+     * Completes the result with the first good response, or with the last one when all of them failed.
+     */
+    static void completeHedged(CompletableFuture<HttpResponse<byte[]>> result, AtomicInteger outstanding,
+                               HttpResponse<byte[]> response, Throwable e, boolean hedge){
+        boolean last = outstanding.decrementAndGet() == 0;
+        if(e == null && !isOverloaded(response)){
+            if(result.complete(response) && hedge){
+                hedgeWins.increment();
+            }
+        }else if(last){
+            if(e != null){
+                result.completeExceptionally(e);
+            }else {
+                result.complete(response);
             }
-            return sb.toString().replace("\\n ", "\\n").stripTrailing();
+        }
+    }
 
+    /**
+     * Sends the request once the backend's circuit and limiter allow it, the limiter lets the requests with the
+     * earliest {@link TraceContext#setDeadline deadline} go first. Fails with TranslationException when the circuit
+     * is open, with RejectedExecutionException when the request is shed.
+     */
+    private CompletableFuture<HttpResponse<byte[]>> sendAsync(Backend backend, Request request, int attempt,
+                                                              boolean hedge){
+        CircuitBreaker breaker = backend.breaker(request.scope);
+        if(!breaker.tryAcquire()){
+            return CompletableFuture.failedFuture(new TranslationException("Circuit open for " + request.scope
+                    + " on " + backend));
+        }
+        LindatRequestEvent event = new LindatRequestEvent();
+        event.begin();
+        long queued = System.nanoTime();
+        return backend.getLimiter().acquire(request.characters, request.deadline)
+                .whenComplete((permit, e) -> {
+                    if(e != null){
+                        breaker.onCancel();
+                        event.queueWait = System.nanoTime() - queued;
+                        commit(event, backend, request, attempt, hedge, null);
+                    }
+                })
+                .thenCompose(permit -> {
+                    long start = backend.start();
+                    return exchange(backend, request)
+                            .whenComplete((response, e) -> {
+                                boolean dropped = e != null || isOverloaded(response);
+                                permit.release(dropped);
+                                balancer.finish(backend, start, dropped);
+                                if(dropped){
+                                    breaker.onFailure();
+                                }else {
+                                    breaker.onSuccess();
+                                }
+                                event.queueWait = start - queued;
+                                commit(event, backend, request, attempt, hedge, response);
+                            });
+                });
+    }
+
+    /**
+     * Sends the request to a backend like sendAsync, but keeps the limiter's permit until the whole response is read.
+     * The response is read on a streamReaders thread, every line is passed on as soon as it's parsed.
+     */
+    private CompletableFuture<Void> stream(Request request, String text, PartListener onPart){
+        Backend backend = balancer.choose(null, request.scope);
+        if(backend == null){
+            breakerRejections.increment();
+            return CompletableFuture.failedFuture(new TranslationException("Circuit open for " + request.scope
+                    + " on all backends"));
+        }
+        CircuitBreaker breaker = backend.breaker(request.scope);
+        if(!breaker.tryAcquire()){
+            return CompletableFuture.failedFuture(new TranslationException("Circuit open for " + request.scope
+                    + " on " + backend));
+        }
+        LindatRequestEvent event = new LindatRequestEvent();
+        event.begin();
+        long queued = System.nanoTime();
+        return backend.getLimiter().acquire(request.characters, request.deadline)
+                .whenComplete((permit, e) -> {
+                    if(e != null){
+                        breaker.onCancel();
+                        event.queueWait = System.nanoTime() - queued;
+                        commit(event, backend, request, 0, false, null);
+                    }
+                })
+                .thenCompose(permit -> {
+                    long start = backend.start();
+                    AtomicReference<HttpResponse<InputStream>> received = new AtomicReference<>();
+                    return client.sendAsync(buildTranslationRequest(backend, request, false),
+                                    HttpResponse.BodyHandlers.ofInputStream())
+                            .thenAcceptAsync(response -> {
+                                received.set(response);
+                                readParts(backend, response, text, onPart);
+                            }, streamReaders)
+                            .whenComplete((ignored, e) -> {
+                                HttpResponse<InputStream> response = received.get();
+                                boolean dropped = response == null || isOverloaded(response);
+                                permit.release(dropped);
+                                balancer.finish(backend, start, dropped);
+                                if(dropped){
+                                    breaker.onFailure();
+                                }else {
+                                    breaker.onSuccess();
+                                }
+                                event.queueWait = start - queued;
+                                commit(event, backend, request, 0, false, response);
+                            });
+                });
+    }
+
+    /**
+     * Passes the lines of the response on as the parts translating the sentences of the text, in order.
+     */
+    private static void readParts(Backend backend, HttpResponse<InputStream> response, String text,
+                                  PartListener onPart){
+        List<String> sentences = Sentences.split(text);
+        int[] starts = new int[sentences.size()];
+        int from = 0;
+        for(int i = 0; i < starts.length; i++){
+            starts[i] = text.indexOf(sentences.get(i), from);
+            from = starts[i] + sentences.get(i).length();
+        }
+        int[] lines = {0};
+        try(InputStream body = isGzip(response.headers()) ? new GZIPInputStream(response.body()) : response.body()){
+            if(response.statusCode() != 200){
+                throw new TranslationException(backend + " answered " + response.statusCode());
+            }
+            TranslationCodec.get().forEachLine(body, line -> {
+                int i = Math.min(lines[0]++, starts.length - 1);
+                String part = line.strip();
+                if(!part.isEmpty()){
+                    onPart.onPart(part, starts[i], i + 1 < starts.length ? starts[i + 1] : text.length());
+                }
+            });
         } catch (IOException e) {
-            e.printStackTrace();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * In the h2 wire mode forms of at least HTTP_COMPRESS_MIN_BYTES are gzipped and a gzipped response is accepted. A
+     * backend answering 400 or 415 to a compressed request gets it again uncompressed, and no compressed requests
+     * from then on.
+     */
+    private CompletableFuture<HttpResponse<byte[]>> exchange(Backend backend, Request request){
+        boolean compress = H2_MODE && request.form.length >= HTTP_COMPRESS_MIN_BYTES
+                && backend.acceptsCompressedRequests();
+        return client.sendAsync(buildTranslationRequest(backend, request, compress), BODY_HANDLER)
+                .thenCompose(response -> {
+                    if(compress && (response.statusCode() == 400 || response.statusCode() == 415)){
+                        if(backend.acceptsCompressedRequests()){
+                            System.err.println(backend + " refused a compressed request, sending uncompressed ones");
+                            backend.refuseCompressedRequests();
+                        }
+                        compressionFallbacks.increment();
+                        return exchange(backend, request);
+                    }
+                    backend.onWire(response.version(), compress, isGzip(response.headers()));
+                    return CompletableFuture.completedFuture(response);
+                });
+    }
+
+    /**
+     * The events are disabled by default, then this costs next to nothing.
+     */
+    private static void commit(LindatRequestEvent event, Backend backend, Request request, int attempt,
+                               boolean hedge, HttpResponse<?> response){
+        event.end();
+        if(event.shouldCommit()){
+            event.session = request.session;
+            event.scope = request.scope;
+            event.backend = backend.getApiUrl();
+            event.characters = request.characters;
+            event.requestBytes = request.form.length;
+            event.attempt = attempt;
+            event.hedge = hedge;
+            event.status = response != null ? response.statusCode() : 0;
+            event.commit();
+        }
+    }
+
+    private static void commit(ResponseParseEvent event, Request request, HttpResponse<byte[]> response){
+        event.end();
+        if(event.shouldCommit()){
+            event.session = request.session;
+            event.scope = request.scope;
+            event.responseBytes = response.body().length;
+            event.commit();
+        }
+    }
+
+    private static TranslationException failure(Throwable e){
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        if(cause instanceof TranslationException){
+            return (TranslationException) cause;
+        }
+        return new TranslationException("Translation request failed: " + cause, cause);
+    }
+
+    private static boolean isOverloaded(HttpResponse<?> response){
+        return response.statusCode() == 429 || response.statusCode() >= 500;
+    }
+
+    private HttpRequest buildTranslationRequest(Backend backend, Request request, boolean compress){
+        HttpRequest.Builder builder = HttpRequest.newBuilder()
+                .POST(HttpRequest.BodyPublishers.ofByteArray(compress ? request.compressedForm() : request.form))
+                .uri(URI.create(backend.getApiUrl() + request.path))
+                .setHeader("Content-Type", "application/x-www-form-urlencoded")
+                .setHeader("Accept", "application/json")
+                .timeout(Duration.ofSeconds(30));
+        if(compress){
+            builder.setHeader("Content-Encoding", "gzip");
+        }
+        if(H2_MODE){
+            builder.setHeader("Accept-Encoding", "gzip");
         }
-        return "";
+        return builder.build();
     }
 
+    private static boolean isGzip(HttpHeaders headers){
+        return headers.firstValue("Content-Encoding").map(encoding -> encoding.equalsIgnoreCase("gzip"))
+                .orElse(false);
+    }
+
+    private static byte[] gzip(byte[] bytes){
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 2 + 32);
+        try(GZIPOutputStream out = new GZIPOutputStream(compressed)){
+            out.write(bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return compressed.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] bytes){
+        try(GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes))){
+            return in.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private List<String> parseLines(byte[] body){
+        try {
+            return TranslationCodec.get().parseLines(body);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String joinTranslation(List<String> lines){
+        return TranslationCodec.get().join(lines);
+    }
+
+    /**
+     * @return null if the listing failed
+     */
     private List<Object> processListing(URI uri, String firstKey, String secondKey){
         HttpRequest request = HttpRequest.newBuilder()
                 .GET()
@@ -154,23 +915,25 @@ public class LindatTranslationClient implements Translator {
         HttpResponse<InputStream> response = null;
         try {
             response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+            if(response.statusCode() != 200){
+                System.err.println(uri + " answered " + response.statusCode());
+                response.body().close();
+                return null;
+            }
             Map result = json.deserialize(Map.class, response.body(), new byte[1024]);
-            var linksObject = (Map) result.get(firstKey);
-            return (List) linksObject.get(secondKey);
+            var linksObject = result != null ? (Map) result.get(firstKey) : null;
+            return linksObject != null ? (List) linksObject.get(secondKey) : null;
         }catch (InterruptedException e) {
             e.printStackTrace();
+            Thread.currentThread().interrupt();
         } catch (IOException e) {
             e.printStackTrace();
         }
 
-        return new ArrayList<>();
+        return null;
     }
 
     private boolean validLangParams(String source, String target){
-        Map.Entry<String, String> entry = new AbstractMap.SimpleEntry<>(source, target);
-        if(getAvailableLanguagePairs().contains(entry)){
-            return true;
-        }
-        return false;
+        return capabilities.get().supports(source, target);
     }
 }
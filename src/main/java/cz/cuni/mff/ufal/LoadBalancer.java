@@ -0,0 +1,134 @@
+package cz.cuni.mff.ufal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks the backend for a request by power of two choices: of two random backends in rotation the one with the lower
+ * EWMA latency times requests in flight wins.
+ *
+ * Backends are ejected passively, after ejectFailures consecutive failures or when their EWMA gets above
+ * ejectLatencyFactor times the median of the others. At most half of the backends are ejected at a time, so a
+ * problem on our side (or of all the replicas) doesn't take everything out of rotation.
+ */
+final class LoadBalancer {
+
+    private final List<Backend> backends;
+    private final int ejectFailures;
+    private final long ejectNanos;
+    private final double ejectLatencyFactor;
+
+    LoadBalancer(List<Backend> backends, int ejectFailures, long ejectSeconds, double ejectLatencyFactor){
+        if(backends.isEmpty()){
+            throw new IllegalArgumentException("No backend given.");
+        }
+        this.backends = Collections.unmodifiableList(new ArrayList<>(backends));
+        this.ejectFailures = ejectFailures;
+        this.ejectNanos = TimeUnit.SECONDS.toNanos(ejectSeconds);
+        this.ejectLatencyFactor = ejectLatencyFactor;
+    }
+
+    List<Backend> getBackends(){
+        return backends;
+    }
+
+    /**
+     * @param exclude backend that must not be chosen (already tried), may be null
+     * @param scope language pair or model of the request, backends with its circuit open are skipped
+     * @return the backend for the next request, null if there's none available
+     */
+    Backend choose(Backend exclude, String scope){
+        if(backends.size() == 1){
+            Backend backend = backends.get(0);
+            return backend != exclude && backend.breaker(scope).allowsRequest() ? backend : null;
+        }
+        readmitExpired();
+        Backend[] candidates = new Backend[backends.size()];
+        int count = 0;
+        for(Backend backend: backends){
+            if(backend != exclude && !backend.isEjected() && backend.breaker(scope).allowsRequest()){
+                candidates[count++] = backend;
+            }
+        }
+        if(count == 0){
+            // everything left is ejected, the best of them is better than nothing
+            for(Backend backend: backends){
+                if(backend != exclude && backend.breaker(scope).allowsRequest()){
+                    candidates[count++] = backend;
+                }
+            }
+        }
+        if(count == 0){
+            return null;
+        }
+        if(count == 1){
+            return candidates[0];
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(count);
+        int second = random.nextInt(count - 1);
+        if(second >= first){
+            second++;
+        }
+        return candidates[first].cost() <= candidates[second].cost() ? candidates[first] : candidates[second];
+    }
+
+    /**
+     * Records the outcome of a request started by {@link Backend#start()} and ejects the backend if needed.
+     */
+    void finish(Backend backend, long start, boolean failed){
+        int failures = backend.finish(start, failed);
+        if(backends.size() == 1 || ejectFailures <= 0){
+            return;
+        }
+        if(failures >= ejectFailures || (!failed && isSlow(backend))){
+            synchronized (this) {
+                if(!backend.isEjected() && ejected() < backends.size() / 2){
+                    backend.eject(ejectNanos);
+                }
+            }
+        }
+    }
+
+    private boolean isSlow(Backend backend){
+        double[] others = new double[backends.size() - 1];
+        int count = 0;
+        for(Backend other: backends){
+            if(other != backend && !other.isEjected() && other.getEwmaNanos() > 0){
+                others[count++] = other.getEwmaNanos();
+            }
+        }
+        if(count == 0){
+            return false;
+        }
+        Arrays.sort(others, 0, count);
+        return backend.getEwmaNanos() > ejectLatencyFactor * others[count / 2];
+    }
+
+    private int ejected(){
+        int ejected = 0;
+        for(Backend backend: backends){
+            if(backend.isEjected()){
+                ejected++;
+            }
+        }
+        return ejected;
+    }
+
+    private void readmitExpired(){
+        double lowest = 0;
+        for(Backend backend: backends){
+            if(!backend.isEjected() && backend.getEwmaNanos() > 0
+                    && (lowest == 0 || backend.getEwmaNanos() < lowest)){
+                lowest = backend.getEwmaNanos();
+            }
+        }
+        for(Backend backend: backends){
+            backend.readmit(lowest);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package cz.cuni.mff.ufal;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Parsing of a Lindat response body.
+ */
+@Name("cz.cuni.mff.ufal.ResponseParse")
+@Label("Lindat Response Parse")
+@Category({"ELITR", "Translation"})
+@Description("Parsing of a translation response")
+@Enabled(false)
+@StackTrace(false)
+final class ResponseParseEvent extends jdk.jfr.Event {
+
+    @Label("Session")
+    String session;
+
+    @Label("Scope")
+    @Description("Language pair or model")
+    String scope;
+
+    @Label("Response Size")
+    @DataAmount
+    int responseBytes;
+}
@@ -0,0 +1,30 @@
+package cz.cuni.mff.ufal;
+
+/**
+ * Allows retries only up to a ratio of the requests, so retries can't multiply the load of a struggling backend.
+ * Every request deposits ratio tokens (up to maxTokens), a retry takes one.
+ */
+final class RetryBudget {
+
+    private final double ratio;
+    private final double maxTokens;
+    private double tokens;
+
+    RetryBudget(double ratio, double maxTokens){
+        this.ratio = ratio;
+        this.maxTokens = maxTokens;
+        this.tokens = maxTokens;
+    }
+
+    synchronized void onRequest(){
+        tokens = Math.min(maxTokens, tokens + ratio);
+    }
+
+    synchronized boolean tryRetry(){
+        if(tokens < 1){
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+}
@@ -0,0 +1,63 @@
+package cz.cuni.mff.ufal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Naive sentence splitting, good enough to cut ASR output and subtitles. A sentence ends with '.', '!', '?' or '…'
+ * (optionally followed by closing quotes or brackets) and whitespace.
+ */
+public final class Sentences {
+
+    private Sentences(){
+    }
+
+    public static List<String> split(String text){
+        List<String> sentences = new ArrayList<>();
+        int start = 0;
+        int i = 0;
+        while(i < text.length()){
+            if(isTerminator(text.charAt(i))){
+                int end = i + 1;
+                while(end < text.length() && (isTerminator(text.charAt(end)) || isClosing(text.charAt(end)))){
+                    end++;
+                }
+                if(end == text.length() || Character.isWhitespace(text.charAt(end))){
+                    addSentence(sentences, text, start, end);
+                    start = end;
+                }
+                i = end;
+            }else {
+                i++;
+            }
+        }
+        addSentence(sentences, text, start, text.length());
+        return sentences;
+    }
+
+    /**
+     * @return true if the sentence ends with a terminator, i.e. it's not a beginning of a longer one
+     */
+    public static boolean isComplete(String sentence){
+        int i = sentence.length() - 1;
+        while(i >= 0 && (isClosing(sentence.charAt(i)) || Character.isWhitespace(sentence.charAt(i)))){
+            i--;
+        }
+        return i >= 0 && isTerminator(sentence.charAt(i));
+    }
+
+    private static void addSentence(List<String> sentences, String text, int start, int end){
+        String sentence = text.substring(start, end).strip();
+        if(!sentence.isEmpty()){
+            sentences.add(sentence);
+        }
+    }
+
+    private static boolean isTerminator(char c){
+        return c == '.' || c == '!' || c == '?' || c == '…';
+    }
+
+    private static boolean isClosing(char c){
+        return c == '"' || c == '\'' || c == ')' || c == ']' || c == '»' || c == '“' || c == '”';
+    }
+}
@@ -0,0 +1,62 @@
+package cz.cuni.mff.ufal;
+
+/**
+ * Identifies the session a translation request is made for, so the JFR events of the client can be matched with the
+ * events of the worker, and optionally the deadline of the request. Set by the caller on the thread that starts the
+ * request, the client picks it up before going asynchronous.
+ */
+public final class TraceContext {
+
+    private static final ThreadLocal<String> session = new ThreadLocal<>();
+    private static final ThreadLocal<Long> deadline = new ThreadLocal<>();
+
+    private TraceContext(){
+    }
+
+    public static void set(String sessionId){
+        session.set(sessionId);
+    }
+
+    /**
+     * @return the session of the current thread, null if there's none
+     */
+    public static String get(){
+        return session.get();
+    }
+
+    /**
+     * @param deadlineNanos System.nanoTime() after which the translation is of no use, requests still waiting for the
+     *                      concurrency limit by then are dropped and the earlier deadlines go first
+     */
+    public static void setDeadline(long deadlineNanos){
+        deadline.set(deadlineNanos);
+    }
+
+    /**
+     * @return the deadline of the current thread, null if there's none
+     */
+    public static Long getDeadline(){
+        return deadline.get();
+    }
+
+    /**
+     * Replaces both, e.g. to restore them after sending a request for another thread.
+     *
+     * @param sessionId null for none
+     * @param deadlineNanos null for none
+     */
+    public static void set(String sessionId, Long deadlineNanos){
+        clear();
+        if(sessionId != null){
+            session.set(sessionId);
+        }
+        if(deadlineNanos != null){
+            deadline.set(deadlineNanos);
+        }
+    }
+
+    public static void clear(){
+        session.remove();
+        deadline.remove();
+    }
+}
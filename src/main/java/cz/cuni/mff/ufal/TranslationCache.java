@@ -0,0 +1,250 @@
+package cz.cuni.mff.ufal;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded map of translations, safe to share between threads.
+ *
+ * Entries are kept in LRU order, but a new entry only replaces the LRU victim when it has been asked for more often
+ * recently (TinyLFU admission). A one-off sentence therefore doesn't push out a greeting that comes up in every
+ * session. A new entry may need several victims, it's admitted only if it wins against all of them, otherwise nothing
+ * changes (an update keeps the old translation). The frequencies are estimated by a small count-min sketch which is
+ * halved periodically, so old popularity fades away.
+ */
+public class TranslationCache {
+
+    private static final class Entry {
+        private final String value;
+        private final long bytes;
+        private final long expiresAt;
+
+        private Entry(String value, long bytes, long expiresAt) {
+            this.value = value;
+            this.bytes = bytes;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Count-min sketch with four rows of 4-bit counters.
+     */
+    private static final class FrequencySketch {
+        private final long[] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        private FrequencySketch(int maxEntries) {
+            int width = Integer.highestOneBit(Math.max(64, maxEntries * 4 - 1)) << 1;
+            table = new long[width];
+            mask = width - 1;
+            sampleSize = 10 * Math.max(maxEntries, 16);
+        }
+
+        private int frequency(int hash) {
+            int frequency = Integer.MAX_VALUE;
+            for (int row = 0; row < 4; row++) {
+                frequency = Math.min(frequency, counter(hash, row));
+            }
+            return frequency;
+        }
+
+        private void increment(int hash) {
+            boolean added = false;
+            for (int row = 0; row < 4; row++) {
+                int index = index(hash, row);
+                int shift = counterShift(hash, row);
+                if (((table[index] >>> shift) & 0xfL) < 15) {
+                    table[index] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        private void reset() {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+            }
+            additions /= 2;
+        }
+
+        private int counter(int hash, int row) {
+            return (int) ((table[index(hash, row)] >>> counterShift(hash, row)) & 0xfL);
+        }
+
+        private int index(int hash, int row) {
+            int h = (hash + row) * (0x9E3779B9 + 2 * row);
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        private int counterShift(int hash, int row) {
+            // each long holds 16 counters, every row uses its own quarter of them
+            return (((hash >>> (8 * row)) & 3) + (row << 2)) << 2;
+        }
+    }
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long ttlNanos;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch sketch;
+    private long bytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    /**
+     * @param ttlSeconds how long an entry is valid, 0 means forever
+     */
+    public TranslationCache(int maxEntries, long maxBytes, long ttlSeconds) {
+        if (maxEntries < 1 || maxBytes < 1 || ttlSeconds < 0) {
+            throw new IllegalArgumentException("maxEntries and maxBytes must be positive, ttlSeconds non-negative.");
+        }
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttlNanos = ttlSeconds * 1_000_000_000L;
+        this.sketch = new FrequencySketch(maxEntries);
+    }
+
+    /**
+     * Cache key of a text, whitespace differences don't matter.
+     *
+     * @param scope language pair or model the translation belongs to
+     */
+    public static String key(String scope, String text) {
+        StringBuilder sb = new StringBuilder(scope.length() + text.length() + 1);
+        sb.append(scope).append('\u0000');
+        boolean space = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = true;
+            } else {
+                if (space && sb.charAt(sb.length() - 1) != '\u0000') {
+                    sb.append(' ');
+                }
+                space = false;
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the cached translation or null
+     */
+    public synchronized String get(String key) {
+        sketch.increment(key.hashCode());
+        Entry entry = entries.get(key);
+        if (entry != null && ttlNanos > 0 && System.nanoTime() - entry.expiresAt > 0) {
+            remove(key, entry);
+            expirations.increment();
+            entry = null;
+        }
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.value;
+    }
+
+    public synchronized void put(String key, String value) {
+        long size = sizeOf(key, value);
+        if (size > maxBytes) {
+            rejections.increment();
+            return;
+        }
+        Entry previous = entries.get(key);
+        // what's left once the previous translation of the key is replaced
+        int remaining = entries.size() - (previous != null ? 1 : 0);
+        long remainingBytes = bytes - (previous != null ? previous.bytes : 0);
+        int candidateFrequency = sketch.frequency(key.hashCode());
+        List<String> victims = new ArrayList<>();
+        Iterator<Map.Entry<String, Entry>> lru = entries.entrySet().iterator();
+        while (remaining >= maxEntries || remainingBytes + size > maxBytes) {
+            Map.Entry<String, Entry> victim = lru.next();
+            if (victim.getKey().equals(key)) {
+                continue;
+            }
+            if (candidateFrequency <= sketch.frequency(victim.getKey().hashCode())) {
+                rejections.increment();
+                return;
+            }
+            victims.add(victim.getKey());
+            remaining--;
+            remainingBytes -= victim.getValue().bytes;
+        }
+        for (String victim : victims) {
+            remove(victim, entries.get(victim));
+            evictions.increment();
+        }
+        if (previous != null) {
+            remove(key, previous);
+        }
+        entries.put(key, new Entry(value, size, System.nanoTime() + ttlNanos));
+        bytes += size;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return number of entries removed to make room for more frequent ones
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return number of translations not admitted because they were too big or not frequent enough
+     */
+    public long getRejections() {
+        return rejections.sum();
+    }
+
+    public long getExpirations() {
+        return expirations.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "TranslationCache{size=" + size() + ", bytes=" + bytes() + ", hits=" + getHits() + ", misses="
+                + getMisses() + ", evictions=" + getEvictions() + ", rejections=" + getRejections()
+                + ", expirations=" + getExpirations() + "}";
+    }
+
+    private void remove(String key, Entry entry) {
+        entries.remove(key);
+        bytes -= entry.bytes;
+    }
+
+    private static long sizeOf(String key, String value) {
+        // two bytes per char plus a rough estimate of the objects around them
+        return 2L * (key.length() + value.length()) + 128;
+    }
+}
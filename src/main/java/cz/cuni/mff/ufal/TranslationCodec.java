@@ -0,0 +1,358 @@
+package cz.cuni.mff.ufal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Encodes the translation request body and decodes the response (JSON array of translated lines) without the
+ * intermediate objects of URLEncoder and DslJson. Every thread gets its own instance with its own buffers, see
+ * {@link #get()}, the instances are not thread-safe.
+ *
+ * The translation is the lines joined by a space with "\n " replaced by "\n" and trailing whitespace stripped, exactly
+ * like the String based code did.
+ */
+public final class TranslationCodec {
+
+    private static final ThreadLocal<TranslationCodec> instances = ThreadLocal.withInitial(TranslationCodec::new);
+    private static final byte[] FORM_PREFIX = {'i', 'n', 'p', 'u', 't', '_', 't', 'e', 'x', 't', '='};
+    private static final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
+
+    private final byte[] readBuffer = new byte[8192];
+    private byte[] encodeBuffer = new byte[1024];
+    private final StringBuilder out = new StringBuilder(1024);
+    private final StringBuilder line = new StringBuilder(256);
+
+    private InputStream in;
+    private byte[] buf;
+    private int pos;
+    private int limit;
+
+    // last two chars of the joined lines, before dropping anything
+    private char previous;
+    private char beforePrevious;
+
+    private TranslationCodec(){
+    }
+
+    public static TranslationCodec get(){
+        return instances.get();
+    }
+
+    /**
+     * @return "input_text=" followed by the text in application/x-www-form-urlencoded UTF-8, same as URLEncoder
+     */
+    public byte[] encodeForm(CharSequence text){
+        int length = 0;
+        // a char takes at most 9 bytes, 3 bytes of UTF-8 each percent encoded
+        ensureEncodeCapacity(FORM_PREFIX.length + text.length() * 9);
+        System.arraycopy(FORM_PREFIX, 0, encodeBuffer, 0, FORM_PREFIX.length);
+        length += FORM_PREFIX.length;
+        for(int i = 0; i < text.length(); i++){
+            char c = text.charAt(i);
+            if((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '.' || c == '-' || c == '*' || c == '_'){
+                encodeBuffer[length++] = (byte) c;
+            }else if(c == ' '){
+                encodeBuffer[length++] = '+';
+            }else if(c < 0x80){
+                length = percent(length, c);
+            }else if(c < 0x800){
+                length = percent(length, 0xC0 | (c >> 6));
+                length = percent(length, 0x80 | (c & 0x3F));
+            }else if(Character.isHighSurrogate(c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))){
+                // 2 UTF-16 chars -> 4 bytes of UTF-8
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                length = percent(length, 0xF0 | (codePoint >> 18));
+                length = percent(length, 0x80 | ((codePoint >> 12) & 0x3F));
+                length = percent(length, 0x80 | ((codePoint >> 6) & 0x3F));
+                length = percent(length, 0x80 | (codePoint & 0x3F));
+            }else if(Character.isSurrogate(c)){
+                // malformed input is replaced by '?' by the UTF-8 encoder
+                length = percent(length, '?');
+            }else {
+                length = percent(length, 0xE0 | (c >> 12));
+                length = percent(length, 0x80 | ((c >> 6) & 0x3F));
+                length = percent(length, 0x80 | (c & 0x3F));
+            }
+        }
+        // the request may be sent after this thread reuses the buffer
+        return Arrays.copyOf(encodeBuffer, length);
+    }
+
+    public String parseTranslation(InputStream body) throws IOException {
+        start(body, readBuffer, 0, 0);
+        return parseTranslation();
+    }
+
+    public String parseTranslation(byte[] body) throws IOException {
+        start(null, body, 0, body.length);
+        return parseTranslation();
+    }
+
+    public List<String> parseLines(byte[] body) throws IOException {
+        List<String> lines = new ArrayList<>();
+        start(null, body, 0, body.length);
+        forEachLine(lines::add);
+        return lines;
+    }
+
+    /**
+     * Calls the consumer with every line as soon as it's parsed.
+     */
+    public void forEachLine(InputStream body, Consumer<String> consumer) throws IOException {
+        start(body, readBuffer, 0, 0);
+        forEachLine(consumer);
+    }
+
+    /**
+     * Joins already parsed lines the same way parseTranslation does.
+     */
+    public String join(List<String> lines){
+        out.setLength(0);
+        previous = 0;
+        beforePrevious = 0;
+        for(String l: lines){
+            for(int i = 0; i < l.length(); i++){
+                appendJoined(l.charAt(i));
+            }
+            appendJoined(' ');
+        }
+        return finishJoined();
+    }
+
+    private String parseTranslation() throws IOException {
+        out.setLength(0);
+        previous = 0;
+        beforePrevious = 0;
+        try {
+            if(!startArray()){
+                return "";
+            }
+            do {
+                int c = nextNonWhitespace();
+                if(c == '"'){
+                    readString(null);
+                }else if(c == 'n'){
+                    expect('u');
+                    expect('l');
+                    expect('l');
+                    appendJoined('n');
+                    appendJoined('u');
+                    appendJoined('l');
+                    appendJoined('l');
+                }else {
+                    throw new IOException("Expecting string in the translation, found " + describe(c));
+                }
+                appendJoined(' ');
+            } while(nextElement());
+            return finishJoined();
+        } finally {
+            release();
+        }
+    }
+
+    private void forEachLine(Consumer<String> consumer) throws IOException {
+        try {
+            if(!startArray()){
+                return;
+            }
+            do {
+                int c = nextNonWhitespace();
+                if(c == '"'){
+                    line.setLength(0);
+                    readString(line);
+                    consumer.accept(line.toString());
+                }else if(c == 'n'){
+                    expect('u');
+                    expect('l');
+                    expect('l');
+                    consumer.accept("null");
+                }else {
+                    throw new IOException("Expecting string in the translation, found " + describe(c));
+                }
+            } while(nextElement());
+        } finally {
+            release();
+        }
+    }
+
+    private void start(InputStream in, byte[] buf, int pos, int limit){
+        this.in = in;
+        this.buf = buf;
+        this.pos = pos;
+        this.limit = limit;
+    }
+
+    private void release(){
+        in = null;
+        buf = null;
+    }
+
+    /**
+     * @return false for an empty array or an empty body
+     */
+    private boolean startArray() throws IOException {
+        int c = nextNonWhitespace();
+        if(c == -1){
+            return false;
+        }
+        if(c != '['){
+            throw new IOException("Expecting '[' at the start of the translation, found " + describe(c));
+        }
+        c = nextNonWhitespace();
+        if(c == ']'){
+            return false;
+        }
+        pos--;
+        return true;
+    }
+
+    private boolean nextElement() throws IOException {
+        int c = nextNonWhitespace();
+        if(c == ','){
+            return true;
+        }
+        if(c == ']'){
+            return false;
+        }
+        throw new IOException("Expecting ',' or ']' in the translation, found " + describe(c));
+    }
+
+    /**
+     * Reads the string after the opening quote, decoding UTF-8 and the escapes. Appends to target or, if it's null,
+     * to the joined translation.
+     */
+    private void readString(StringBuilder target) throws IOException {
+        while(true){
+            int b = read();
+            if(b == '"'){
+                return;
+            }
+            if(b == -1){
+                throw new IOException("Unterminated string in the translation");
+            }
+            if(b == '\\'){
+                int e = read();
+                switch (e){
+                    case '"': append(target, '"'); break;
+                    case '\\': append(target, '\\'); break;
+                    case '/': append(target, '/'); break;
+                    case 'b': append(target, '\b'); break;
+                    case 'f': append(target, '\f'); break;
+                    case 'n': append(target, '\n'); break;
+                    case 'r': append(target, '\r'); break;
+                    case 't': append(target, '\t'); break;
+                    case 'u':
+                        int value = 0;
+                        for(int i = 0; i < 4; i++){
+                            int digit = Character.digit(read(), 16);
+                            if(digit < 0){
+                                throw new IOException("Invalid unicode escape in the translation");
+                            }
+                            value = (value << 4) | digit;
+                        }
+                        append(target, (char) value);
+                        break;
+                    default:
+                        throw new IOException("Invalid escape in the translation: " + describe(e));
+                }
+            }else if(b < 0x80){
+                append(target, (char) b);
+            }else if(b < 0xE0){
+                append(target, (char) (((b & 0x1F) << 6) | continuation()));
+            }else if(b < 0xF0){
+                append(target, (char) (((b & 0x0F) << 12) | (continuation() << 6) | continuation()));
+            }else {
+                int codePoint = ((b & 0x07) << 18) | (continuation() << 12) | (continuation() << 6) | continuation();
+                append(target, Character.highSurrogate(codePoint));
+                append(target, Character.lowSurrogate(codePoint));
+            }
+        }
+    }
+
+    private int continuation() throws IOException {
+        int b = read();
+        if((b & 0xC0) != 0x80){
+            throw new IOException("Invalid UTF-8 in the translation");
+        }
+        return b & 0x3F;
+    }
+
+    private void append(StringBuilder target, char c){
+        if(target != null){
+            target.append(c);
+        }else {
+            appendJoined(c);
+        }
+    }
+
+    private void appendJoined(char c){
+        // same as replace("\\n ", "\\n") on the joined string
+        if(!(c == ' ' && previous == 'n' && beforePrevious == '\\')){
+            out.append(c);
+        }
+        beforePrevious = previous;
+        previous = c;
+    }
+
+    private String finishJoined(){
+        int length = out.length();
+        while(length > 0 && Character.isWhitespace(out.charAt(length - 1))){
+            length--;
+        }
+        out.setLength(length);
+        return out.toString();
+    }
+
+    private void expect(char expected) throws IOException {
+        int c = read();
+        if(c != expected){
+            throw new IOException("Expecting '" + expected + "' in the translation, found " + describe(c));
+        }
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        int c;
+        do {
+            c = read();
+        } while(c == ' ' || c == '\n' || c == '\r' || c == '\t');
+        return c;
+    }
+
+    private int read() throws IOException {
+        if(pos == limit){
+            if(in == null){
+                return -1;
+            }
+            int read = in.read(buf, 0, buf.length);
+            if(read <= 0){
+                return -1;
+            }
+            pos = 0;
+            limit = read;
+        }
+        return buf[pos++] & 0xFF;
+    }
+
+    private int percent(int length, int b){
+        encodeBuffer[length] = '%';
+        encodeBuffer[length + 1] = HEX[(b >> 4) & 0xF];
+        encodeBuffer[length + 2] = HEX[b & 0xF];
+        return length + 3;
+    }
+
+    private void ensureEncodeCapacity(int capacity){
+        if(encodeBuffer.length < capacity){
+            encodeBuffer = new byte[Integer.highestOneBit(capacity - 1) << 1];
+        }
+    }
+
+    private static String describe(int c){
+        return c == -1 ? "end of input" : "'" + (char) c + "'";
+    }
+}
@@ -0,0 +1,16 @@
+package cz.cuni.mff.ufal;
+
+/**
+ * The translation could not be obtained: the backend failed, timed out, is overloaded or its circuit is open. Async
+ * translations fail with it (wrapped in a CompletionException) instead of completing with an empty string.
+ */
+public class TranslationException extends RuntimeException {
+
+    public TranslationException(String message) {
+        super(message);
+    }
+
+    public TranslationException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,534 @@
+package cz.cuni.mff.ufal;
+
+import cz.cuni.mff.ufal.metrics.Counter;
+import cz.cuni.mff.ufal.metrics.Metrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Translations kept on disk across restarts, shared by the worker JVMs of a node. Two memory-mapped files in the
+ * given directory:
+ * <ul>
+ *     <li>memory.log - append-only records: key length, value length, CRC32, key hash, key and value in UTF-8</li>
+ *     <li>memory.idx - header and an open addressing hash table of (key hash, record offset) slots</li>
+ * </ul>
+ * Keys are {@link TranslationCache#key(String, String)}. A lookup reads the mapped files directly, without locks or
+ * copying, and decodes just the translation. Writers, in this JVM or another one, take a file lock.
+ * {@link #putAsync(String, String)} leaves the writing to a thread of the memory, so that the callers (HTTP
+ * completions) don't wait for the lock or for a compaction.
+ *
+ * When the log or the table gets full, the newest live records filling half of the log are moved to its start and the
+ * table is rebuilt (compaction). The header holds a version that is odd while that happens, lookups that overlap it
+ * miss. On open, the log is scanned up to the first record with a wrong checksum and the table is rebuilt if it
+ * doesn't match, so a crash loses at most the records written last. The mapped pages survive a crash of the JVM, not
+ * of the machine.
+ */
+public final class TranslationMemory implements Closeable {
+
+    private static final long INDEX_MAGIC = 0x4c5452414e4d4931L;
+    private static final long LOG_MAGIC = 0x4c5452414e4d4c31L;
+    private static final int HEADER = 64;
+    private static final int VERSION = 8;
+    private static final int SLOTS = 16;
+    private static final int COUNT = 24;
+    private static final int LOG_END = 32;
+    private static final int LOG_CAPACITY = 40;
+    private static final int LOG_HEADER = 16;
+    // key length, value length, crc, key hash
+    private static final int RECORD_HEADER = 20;
+    private static final double MAX_LOAD = 0.7;
+    // writes waiting for the writer thread, more are dropped
+    private static final int WRITE_QUEUE = 1024;
+    private static final long MAX_BYTES = 1L << 30;
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class,
+            ByteOrder.nativeOrder());
+
+    private static final Map<Path, TranslationMemory> instances = new HashMap<>();
+
+    private final Path directory;
+    private final FileChannel indexChannel;
+    private final FileChannel logChannel;
+    private final MappedByteBuffer index;
+    private final MappedByteBuffer log;
+    private final int slots;
+    private final int logCapacity;
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter compactions;
+    private final Counter writeErrors;
+    private final Counter writesDropped;
+    private final ThreadPoolExecutor writer;
+
+    /**
+     * There's one instance per directory in a JVM, file locks are per process.
+     *
+     * @param maxBytes size of the log when the files are created, the index takes about a quarter of it
+     */
+    public static synchronized TranslationMemory open(Path directory, long maxBytes) throws IOException {
+        Path path = directory.toAbsolutePath().normalize();
+        TranslationMemory memory = instances.get(path);
+        if(memory == null){
+            memory = new TranslationMemory(path, maxBytes);
+            instances.put(path, memory);
+        }
+        return memory;
+    }
+
+    private TranslationMemory(Path directory, long maxBytes) throws IOException {
+        if(maxBytes < 4096 || maxBytes > MAX_BYTES){
+            throw new IllegalArgumentException("The translation memory must have between 4 kB and 1 GB.");
+        }
+        this.directory = directory;
+        Files.createDirectories(directory);
+        indexChannel = FileChannel.open(directory.resolve("memory.idx"), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        logChannel = FileChannel.open(directory.resolve("memory.log"), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try (FileLock lock = indexChannel.lock()) {
+            boolean existing = false;
+            int slots = Integer.highestOneBit((int) Math.max(1024, maxBytes / 128)) * 2;
+            int logCapacity = (int) maxBytes;
+            if(indexChannel.size() >= HEADER){
+                MappedByteBuffer header = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER);
+                header.order(ByteOrder.nativeOrder());
+                if(header.getLong(0) == INDEX_MAGIC){
+                    existing = true;
+                    slots = (int) header.getLong(SLOTS);
+                    logCapacity = (int) header.getLong(LOG_CAPACITY);
+                }
+            }
+            this.slots = slots;
+            this.logCapacity = logCapacity;
+            index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) slots * 16);
+            log = logChannel.map(FileChannel.MapMode.READ_WRITE, 0, logCapacity);
+            index.order(ByteOrder.nativeOrder());
+            log.order(ByteOrder.nativeOrder());
+            if(!existing || log.getLong(0) != LOG_MAGIC){
+                initialize();
+            }
+            recover();
+        } catch (IOException | RuntimeException e) {
+            indexChannel.close();
+            logChannel.close();
+            throw e;
+        }
+        String label = directory.toString();
+        hits = Metrics.counter("translation_memory_hits_total", "Translations found in the translation memory",
+                "path", label);
+        misses = Metrics.counter("translation_memory_misses_total", "Translations not in the translation memory",
+                "path", label);
+        compactions = Metrics.counter("translation_memory_compactions_total", "Compactions of the translation memory",
+                "path", label);
+        writeErrors = Metrics.counter("translation_memory_write_errors_total",
+                "Translations not stored in the translation memory because of an I/O error", "path", label);
+        writesDropped = Metrics.counter("translation_memory_writes_dropped_total",
+                "Translations not stored in the translation memory because too many were waiting to be written",
+                "path", label);
+        writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(WRITE_QUEUE), r -> {
+            Thread thread = new Thread(r, "translation-memory-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Metrics.gauge("translation_memory_entries", "Translations in the translation memory", this::size, "path",
+                label);
+        Metrics.gauge("translation_memory_bytes", "Used part of the translation memory log", this::bytes, "path",
+                label);
+    }
+
+    /**
+     * @return the translation or null
+     */
+    public String get(String key){
+        long hash = hash(key);
+        for(int attempt = 0; attempt < 2; attempt++){
+            long version = (long) LONGS.getAcquire(index, VERSION);
+            if((version & 1) != 0){
+                break;
+            }
+            String value;
+            try {
+                value = find(key, hash);
+            } catch (IndexOutOfBoundsException e) {
+                // read a half compacted log
+                value = null;
+            }
+            // keeps the reads of the record before the second read of the version
+            VarHandle.acquireFence();
+            if(version == (long) LONGS.getAcquire(index, VERSION)){
+                if(value != null){
+                    hits.increment();
+                }else {
+                    misses.increment();
+                }
+                return value;
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Stores the translation, gives up on I/O errors (counted in translation_memory_write_errors_total) and silently
+     * on records bigger than an eighth of the log.
+     */
+    public synchronized void put(String key, String translation){
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = translation.getBytes(StandardCharsets.UTF_8);
+        int size = RECORD_HEADER + keyBytes.length + valueBytes.length;
+        if(size > logCapacity / 8){
+            return;
+        }
+        long hash = hash(key);
+        try (FileLock lock = indexChannel.lock()) {
+            long end = (long) LONGS.getAcquire(index, LOG_END);
+            long count = (long) LONGS.getAcquire(index, COUNT);
+            if(end + size + 4 > logCapacity || count + 1 > slots * MAX_LOAD){
+                compact();
+                end = (long) LONGS.getAcquire(index, LOG_END);
+            }
+            writeRecord((int) end, hash, keyBytes, valueBytes);
+            insert(hash, key, (int) end);
+            LONGS.setRelease(index, LOG_END, end + size);
+        } catch (IOException e) {
+            writeErrors.increment();
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stores the translation on the writer thread, drops it (counted in translation_memory_writes_dropped_total) when
+     * WRITE_QUEUE writes are waiting already.
+     *
+     * @return future completed once the translation is written or dropped
+     */
+    public CompletableFuture<Void> putAsync(String key, String translation){
+        try {
+            return CompletableFuture.runAsync(() -> put(key, translation), writer);
+        } catch (RejectedExecutionException e) {
+            writesDropped.increment();
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    public long size(){
+        return (long) LONGS.getAcquire(index, COUNT);
+    }
+
+    public long bytes(){
+        return (long) LONGS.getAcquire(index, LOG_END);
+    }
+
+    /**
+     * Writes the mapped pages to the disk, to survive a crash of the machine too.
+     */
+    public void force(){
+        index.force();
+        log.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (TranslationMemory.class) {
+            instances.remove(directory, this);
+        }
+        writer.shutdown();
+        try {
+            writer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            force();
+            indexChannel.close();
+            logChannel.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TranslationMemory{" + directory + ", entries=" + size() + ", bytes=" + bytes() + "/" + logCapacity
+                + ", hits=" + hits.get() + ", misses=" + misses.get() + "}";
+    }
+
+    private String find(String key, long hash){
+        int mask = slots - 1;
+        for(int i = 0, slot = (int) hash & mask; i < slots; i++, slot = (slot + 1) & mask){
+            int position = HEADER + slot * 16;
+            long slotHash = (long) LONGS.getAcquire(index, position);
+            if(slotHash == 0){
+                return null;
+            }
+            if(slotHash == hash){
+                int offset = (int) index.getLong(position + 8);
+                if(isRecord(offset) && keyEquals(offset, key)){
+                    return readValue(offset);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Points the slot of the key to the record, the key is updated in place if it's already there.
+     */
+    private void insert(long hash, String key, int offset){
+        int mask = slots - 1;
+        for(int slot = (int) hash & mask; ; slot = (slot + 1) & mask){
+            int position = HEADER + slot * 16;
+            long slotHash = index.getLong(position);
+            if(slotHash == 0){
+                index.putLong(position + 8, offset);
+                LONGS.setRelease(index, position, hash);
+                LONGS.setRelease(index, COUNT, index.getLong(COUNT) + 1);
+                return;
+            }
+            if(slotHash == hash && (key == null || keyEquals((int) index.getLong(position + 8), key))){
+                LONGS.setRelease(index, position + 8, (long) offset);
+                return;
+            }
+        }
+    }
+
+    private void writeRecord(int offset, long hash, byte[] key, byte[] value){
+        int size = RECORD_HEADER + key.length + value.length;
+        // terminates the log for the recovery, there may be old records after it
+        if(offset + size + 4 <= logCapacity){
+            log.putInt(offset + size, 0);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(key);
+        crc.update(value);
+        ByteBuffer record = log.duplicate();
+        record.order(ByteOrder.nativeOrder());
+        record.position(offset);
+        record.putInt(key.length).putInt(value.length).putInt((int) crc.getValue()).putLong(hash);
+        record.put(key).put(value);
+    }
+
+    private void initialize(){
+        LONGS.setRelease(index, VERSION, 1L);
+        log.putLong(0, LOG_MAGIC);
+        log.putInt(LOG_HEADER, 0);
+        clearSlots();
+        index.putLong(SLOTS, slots);
+        index.putLong(LOG_CAPACITY, logCapacity);
+        index.putLong(COUNT, 0);
+        index.putLong(LOG_END, LOG_HEADER);
+        index.putLong(0, INDEX_MAGIC);
+        LONGS.setRelease(index, VERSION, 2L);
+    }
+
+    /**
+     * Finds the last valid record and rebuilds the table if it doesn't cover exactly the valid records.
+     */
+    private void recover(){
+        int end = LOG_HEADER;
+        int count = 0;
+        while(true){
+            int size = validRecordSize(end);
+            if(size < 0){
+                break;
+            }
+            end += size;
+            count++;
+        }
+        long version = (long) LONGS.getAcquire(index, VERSION);
+        if((version & 1) != 0 || index.getLong(LOG_END) != end || index.getLong(COUNT) > count){
+            LONGS.setRelease(index, VERSION, version | 1);
+            rebuild(LOG_HEADER, end);
+            LONGS.setRelease(index, VERSION, (version | 1) + 1);
+        }
+    }
+
+    /**
+     * Moves the newest live records filling up to half of the log (and of the table) to its start.
+     */
+    private void compact(){
+        long version = (long) LONGS.getAcquire(index, VERSION);
+        LONGS.setRelease(index, VERSION, version + 1);
+        int[] live = new int[(int) index.getLong(COUNT)];
+        int count = 0;
+        for(int slot = 0; slot < slots && count < live.length; slot++){
+            int position = HEADER + slot * 16;
+            if(index.getLong(position) != 0){
+                live[count++] = (int) index.getLong(position + 8);
+            }
+        }
+        Arrays.sort(live, 0, count);
+        int first = count;
+        long kept = 0;
+        while(first > 0 && kept + recordSize(live[first - 1]) <= logCapacity / 2
+                && count - first < slots * MAX_LOAD / 2){
+            first--;
+            kept += recordSize(live[first]);
+        }
+        int end = LOG_HEADER;
+        // through an array, a put between views of the same buffer may not handle overlapping ranges (Java 11)
+        byte[] record = new byte[logCapacity / 8];
+        ByteBuffer source = log.duplicate();
+        ByteBuffer target = log.duplicate();
+        for(int i = first; i < count; i++){
+            int size = recordSize(live[i]);
+            // end <= live[i], copying forward never overwrites what's still to be copied
+            source.limit(live[i] + size).position(live[i]);
+            source.get(record, 0, size);
+            target.position(end);
+            target.put(record, 0, size);
+            end += size;
+        }
+        log.putInt(end, 0);
+        rebuild(LOG_HEADER, end);
+        LONGS.setRelease(index, VERSION, version + 2);
+        compactions.increment();
+    }
+
+    private void rebuild(int start, int end){
+        clearSlots();
+        index.putLong(COUNT, 0);
+        for(int offset = start; offset < end; offset += recordSize(offset)){
+            insert(log.getLong(offset + 12), null, offset);
+        }
+        index.putLong(LOG_END, end);
+    }
+
+    private void clearSlots(){
+        for(int slot = 0; slot < slots; slot++){
+            index.putLong(HEADER + slot * 16, 0);
+            index.putLong(HEADER + slot * 16 + 8, 0);
+        }
+    }
+
+    // the lookups may see any garbage while the log is compacted, by another JVM too, so the lengths are checked
+    // against the limit put enforces before anything is allocated for them
+    private boolean isRecord(int offset){
+        if(offset < LOG_HEADER || offset > logCapacity - RECORD_HEADER){
+            return false;
+        }
+        int keyLength = log.getInt(offset);
+        int valueLength = log.getInt(offset + 4);
+        return keyLength > 0 && valueLength >= 0
+                && (long) RECORD_HEADER + keyLength + valueLength <= logCapacity / 8
+                && (long) offset + RECORD_HEADER + keyLength + valueLength <= logCapacity;
+    }
+
+    private int recordSize(int offset){
+        return RECORD_HEADER + log.getInt(offset) + log.getInt(offset + 4);
+    }
+
+    /**
+     * @return size of the record at the offset, -1 if there's none or it's damaged
+     */
+    private int validRecordSize(int offset){
+        if(offset + RECORD_HEADER > logCapacity){
+            return -1;
+        }
+        int keyLength = log.getInt(offset);
+        int valueLength = log.getInt(offset + 4);
+        if(keyLength <= 0 || valueLength < 0 || (long) offset + RECORD_HEADER + keyLength + valueLength > logCapacity){
+            return -1;
+        }
+        CRC32 crc = new CRC32();
+        ByteBuffer data = log.duplicate();
+        data.position(offset + RECORD_HEADER).limit(offset + RECORD_HEADER + keyLength + valueLength);
+        crc.update(data);
+        return (int) crc.getValue() == log.getInt(offset + 8) ? RECORD_HEADER + keyLength + valueLength : -1;
+    }
+
+    /**
+     * Compares the key of the record with the string, decoding the UTF-8 on the fly.
+     */
+    private boolean keyEquals(int offset, String key){
+        int length = log.getInt(offset);
+        int position = offset + RECORD_HEADER;
+        int end = position + length;
+        int i = 0;
+        while(position < end){
+            int b = log.get(position++) & 0xFF;
+            int c;
+            if(b < 0x80){
+                c = b;
+            }else if(b < 0xE0){
+                c = ((b & 0x1F) << 6) | (log.get(position++) & 0x3F);
+            }else if(b < 0xF0){
+                c = ((b & 0x0F) << 12) | ((log.get(position++) & 0x3F) << 6) | (log.get(position++) & 0x3F);
+            }else {
+                int codePoint = ((b & 0x07) << 18) | ((log.get(position++) & 0x3F) << 12)
+                        | ((log.get(position++) & 0x3F) << 6) | (log.get(position++) & 0x3F);
+                if(i >= key.length() || key.charAt(i++) != Character.highSurrogate(codePoint)){
+                    return false;
+                }
+                c = Character.lowSurrogate(codePoint);
+            }
+            if(i >= key.length() || key.charAt(i++) != c){
+                return false;
+            }
+        }
+        return i == key.length();
+    }
+
+    private String readValue(int offset){
+        int keyLength = log.getInt(offset);
+        int length = log.getInt(offset + 4);
+        if(length < 0 || length > logCapacity / 8){
+            // changed since isRecord, the version check discards the lookup
+            return null;
+        }
+        int position = offset + RECORD_HEADER + keyLength;
+        int end = position + length;
+        char[] chars = new char[length];
+        int n = 0;
+        while(position < end){
+            int b = log.get(position++) & 0xFF;
+            if(b < 0x80){
+                chars[n++] = (char) b;
+            }else if(b < 0xE0){
+                chars[n++] = (char) (((b & 0x1F) << 6) | (log.get(position++) & 0x3F));
+            }else if(b < 0xF0){
+                chars[n++] = (char) (((b & 0x0F) << 12) | ((log.get(position++) & 0x3F) << 6)
+                        | (log.get(position++) & 0x3F));
+            }else {
+                int codePoint = ((b & 0x07) << 18) | ((log.get(position++) & 0x3F) << 12)
+                        | ((log.get(position++) & 0x3F) << 6) | (log.get(position++) & 0x3F);
+                chars[n++] = Character.highSurrogate(codePoint);
+                chars[n++] = Character.lowSurrogate(codePoint);
+            }
+        }
+        return new String(chars, 0, n);
+    }
+
+    /**
+     * FNV-1a over the chars with a final mix, never 0 (marks an empty slot).
+     */
+    static long hash(String key){
+        long hash = 0xcbf29ce484222325L;
+        for(int i = 0; i < key.length(); i++){
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash == 0 ? 1 : hash;
+    }
+}
@@ -0,0 +1,119 @@
+package cz.cuni.mff.ufal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Looks the translations up in a {@link TranslationMemory} before asking the delegate and stores what the delegate
+ * returns, on the memory's writer thread. Empty translations and failed requests are not stored. A batch sends only
+ * the texts not in the memory, as one batch.
+ */
+public class TranslationMemoryTranslator implements Translator {
+
+    private final Translator delegate;
+    private final TranslationMemory memory;
+
+    public TranslationMemoryTranslator(Translator delegate, TranslationMemory memory){
+        this.delegate = delegate;
+        this.memory = memory;
+    }
+
+    @Override
+    public String translate(String text, String sourceLanguage, String targetLanguage) {
+        String key = TranslationCache.key(sourceLanguage + "-" + targetLanguage, text);
+        String translation = memory.get(key);
+        if(translation == null){
+            translation = delegate.translate(text, sourceLanguage, targetLanguage);
+            store(key, translation);
+        }
+        return translation;
+    }
+
+    @Override
+    public String translate(String text, String modelName) {
+        String key = TranslationCache.key("model:" + modelName, text);
+        String translation = memory.get(key);
+        if(translation == null){
+            translation = delegate.translate(text, modelName);
+            store(key, translation);
+        }
+        return translation;
+    }
+
+    @Override
+    public CompletableFuture<String> translateAsync(String text, String sourceLanguage, String targetLanguage) {
+        String key = TranslationCache.key(sourceLanguage + "-" + targetLanguage, text);
+        String translation = memory.get(key);
+        if(translation != null){
+            return CompletableFuture.completedFuture(translation);
+        }
+        return delegate.translateAsync(text, sourceLanguage, targetLanguage)
+                .thenApply(result -> store(key, result));
+    }
+
+    @Override
+    public CompletableFuture<String> translateAsync(String text, String modelName) {
+        String key = TranslationCache.key("model:" + modelName, text);
+        String translation = memory.get(key);
+        if(translation != null){
+            return CompletableFuture.completedFuture(translation);
+        }
+        return delegate.translateAsync(text, modelName)
+                .thenApply(result -> store(key, result));
+    }
+
+    @Override
+    public CompletableFuture<List<String>> translateBatchAsync(List<String> texts, String sourceLanguage,
+                                                               String targetLanguage) {
+        return BatchLookup.translate(texts, sourceLanguage + "-" + targetLanguage, memory::get,
+                missing -> delegate.translateBatchAsync(missing, sourceLanguage, targetLanguage), memory::putAsync);
+    }
+
+    @Override
+    public CompletableFuture<List<String>> translateBatchAsync(List<String> texts, String modelName) {
+        return BatchLookup.translate(texts, "model:" + modelName, memory::get,
+                missing -> delegate.translateBatchAsync(missing, modelName), memory::putAsync);
+    }
+
+    @Override
+    public CompletableFuture<Void> translateStreaming(String text, String sourceLanguage, String targetLanguage,
+                                                     PartListener onPart) {
+        String key = TranslationCache.key(sourceLanguage + "-" + targetLanguage, text);
+        String translation = memory.get(key);
+        if(translation != null){
+            onPart.onPart(translation, 0, text.length());
+            return CompletableFuture.completedFuture(null);
+        }
+        List<String> parts = Collections.synchronizedList(new ArrayList<>());
+        return delegate.translateStreaming(text, sourceLanguage, targetLanguage, (part, sourceStart, sourceEnd) -> {
+                    parts.add(part);
+                    onPart.onPart(part, sourceStart, sourceEnd);
+                })
+                .thenRun(() -> store(key, FanOutTranslator.joinParts(parts)));
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> getAvailableLanguagePairs() {
+        return delegate.getAvailableLanguagePairs();
+    }
+
+    @Override
+    public Set<String> getAvailableModels() {
+        return delegate.getAvailableModels();
+    }
+
+    public TranslationMemory getMemory() {
+        return memory;
+    }
+
+    private String store(String key, String translation){
+        if(translation != null && !translation.isEmpty()){
+            memory.putAsync(key, translation);
+        }
+        return translation;
+    }
+}
@@ -1,12 +1,71 @@
 package cz.cuni.mff.ufal;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
 
 public interface Translator{
+
+    /**
+     * Receives the parts of a streamed translation.
+     */
+    @FunctionalInterface
+    public interface PartListener {
+        /**
+         * @param sourceStart offset of the translated part of the source text
+         * @param sourceEnd offset right after the translated part of the source text
+         */
+        void onPart(String translation, int sourceStart, int sourceEnd);
+    }
+
     public String translate(String text, String sourceLanguage, String targetLanguage);
     public String translate(String text, String modelName);
+    public CompletableFuture<String> translateAsync(String text, String sourceLanguage, String targetLanguage);
+    public CompletableFuture<String> translateAsync(String text, String modelName);
+
+    /**
+     * Translates several independent texts, the result has the translations in the same order. By default every text
+     * is a separate request, implementations may send them together.
+     */
+    public default CompletableFuture<List<String>> translateBatchAsync(List<String> texts, String sourceLanguage,
+                                                                       String targetLanguage){
+        return allOf(texts.stream()
+                .map(text -> translateAsync(text, sourceLanguage, targetLanguage))
+                .collect(Collectors.toList()));
+    }
+
+    public default CompletableFuture<List<String>> translateBatchAsync(List<String> texts, String modelName){
+        return allOf(texts.stream()
+                .map(text -> translateAsync(text, modelName))
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Passes the translation to onPart in parts as soon as each of them is translated, in order, e.g. the sentences
+     * of a long text, with the part of the source text each of them translates. Joined by a space the parts make the
+     * translation translateAsync returns. The future completes once every part was passed. By default the whole
+     * translation is one part.
+     */
+    public default CompletableFuture<Void> translateStreaming(String text, String sourceLanguage,
+                                                              String targetLanguage, PartListener onPart){
+        return translateAsync(text, sourceLanguage, targetLanguage)
+                .thenAccept(translation -> onPart.onPart(translation, 0, text.length()));
+    }
+
     public Set<Map.Entry<String, String>> getAvailableLanguagePairs();
     public Set<String> getAvailableModels();
+
+    private static CompletableFuture<List<String>> allOf(List<CompletableFuture<String>> futures){
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+                .thenApply(ignored -> {
+                    List<String> translations = new ArrayList<>(futures.size());
+                    for(CompletableFuture<String> future: futures){
+                        translations.add(future.join());
+                    }
+                    return translations;
+                });
+    }
 }
\ No newline at end of file
@@ -0,0 +1,236 @@
+package cz.cuni.mff.ufal;
+
+import cz.cuni.mff.ufal.metrics.Counter;
+import cz.cuni.mff.ufal.metrics.Metrics;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Schedules the model translations through a queue per model, served by a fixed number of slots (requests in flight).
+ * The slots are dealt out to the models round-robin as the models come. A free slot takes the oldest request of its
+ * own model and only when that queue is empty steals the oldest request of the model with the longest queue. A surge
+ * on one model so uses the slots the other models leave idle, and every model gets its own slots back as soon as they
+ * finish what they stole.
+ *
+ * Language pair translations and the blocking translate methods go straight to the delegate.
+ */
+public class WorkStealingTranslator implements Translator {
+
+    private static final class Job {
+        private final Supplier<CompletableFuture<?>> request;
+        private final CompletableFuture<Object> result = new CompletableFuture<>();
+        // the request is sent from another thread when it waits in the queue
+        private final String session = TraceContext.get();
+        private final Long deadline = TraceContext.getDeadline();
+
+        private Job(Supplier<CompletableFuture<?>> request) {
+            this.request = request;
+        }
+    }
+
+    private static final class ModelQueue {
+        private final Deque<Job> jobs = new ArrayDeque<>();
+        private final Counter stolen;
+
+        private ModelQueue(String modelName) {
+            stolen = Metrics.counter("model_requests_stolen_total",
+                    "Model translations sent by a slot of another model", "model", modelName);
+        }
+    }
+
+    private final Translator delegate;
+    // model of every slot, null while there are no models
+    private final ModelQueue[] homes;
+    private final boolean[] busy;
+    private final Map<String, ModelQueue> queues = new LinkedHashMap<>();
+    // one thread dispatches at a time, the others (or a request completing right away) ask it to look again
+    private boolean dispatching;
+    private boolean dispatchAgain;
+
+    public WorkStealingTranslator(Translator delegate, int slots){
+        if(slots < 1){
+            throw new IllegalArgumentException("slots must be positive.");
+        }
+        this.delegate = delegate;
+        this.homes = new ModelQueue[slots];
+        this.busy = new boolean[slots];
+    }
+
+    @Override
+    public String translate(String text, String sourceLanguage, String targetLanguage) {
+        return delegate.translate(text, sourceLanguage, targetLanguage);
+    }
+
+    @Override
+    public String translate(String text, String modelName) {
+        return delegate.translate(text, modelName);
+    }
+
+    @Override
+    public CompletableFuture<String> translateAsync(String text, String sourceLanguage, String targetLanguage) {
+        return delegate.translateAsync(text, sourceLanguage, targetLanguage);
+    }
+
+    @Override
+    public CompletableFuture<String> translateAsync(String text, String modelName) {
+        return schedule(modelName, () -> delegate.translateAsync(text, modelName));
+    }
+
+    @Override
+    public CompletableFuture<List<String>> translateBatchAsync(List<String> texts, String sourceLanguage,
+                                                               String targetLanguage) {
+        return delegate.translateBatchAsync(texts, sourceLanguage, targetLanguage);
+    }
+
+    @Override
+    public CompletableFuture<List<String>> translateBatchAsync(List<String> texts, String modelName) {
+        return schedule(modelName, () -> delegate.translateBatchAsync(texts, modelName));
+    }
+
+    @Override
+    public CompletableFuture<Void> translateStreaming(String text, String sourceLanguage, String targetLanguage,
+                                                     PartListener onPart) {
+        return delegate.translateStreaming(text, sourceLanguage, targetLanguage, onPart);
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> getAvailableLanguagePairs() {
+        return delegate.getAvailableLanguagePairs();
+    }
+
+    @Override
+    public Set<String> getAvailableModels() {
+        return delegate.getAvailableModels();
+    }
+
+    /**
+     * @return number of requests of the model waiting for a slot
+     */
+    public synchronized int getQueued(String modelName){
+        ModelQueue queue = queues.get(modelName);
+        return queue != null ? queue.jobs.size() : 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> CompletableFuture<T> schedule(String modelName, Supplier<CompletableFuture<T>> request){
+        Job job = new Job((Supplier<CompletableFuture<?>>) (Supplier<?>) request);
+        synchronized (this) {
+            queue(modelName).jobs.add(job);
+        }
+        dispatch();
+        return (CompletableFuture<T>) job.result;
+    }
+
+    private ModelQueue queue(String modelName){
+        ModelQueue queue = queues.get(modelName);
+        if(queue == null){
+            queue = new ModelQueue(modelName);
+            queues.put(modelName, queue);
+            Metrics.gauge("model_queue_length", "Model translations waiting for a slot",
+                    () -> getQueued(modelName), "model", modelName);
+            // deal the slots out again, a slot busy with another model's request serves its new model afterwards
+            List<ModelQueue> models = new ArrayList<>(queues.values());
+            for(int slot = 0; slot < homes.length; slot++){
+                homes[slot] = models.get(slot % models.size());
+            }
+        }
+        return queue;
+    }
+
+    /**
+     * Gives the free slots work, first from their own models, then stolen from the longest queues. Loops instead of
+     * recursing when a request completes right away (e.g. failed by an open circuit), so a long queue can't overflow
+     * the stack.
+     */
+    private void dispatch(){
+        synchronized (this) {
+            if(dispatching){
+                dispatchAgain = true;
+                return;
+            }
+            dispatching = true;
+        }
+        while(true){
+            List<Job> started = new ArrayList<>();
+            List<Integer> slots = new ArrayList<>();
+            synchronized (this) {
+                take(started, slots);
+                if(started.isEmpty()){
+                    if(!dispatchAgain){
+                        dispatching = false;
+                        return;
+                    }
+                    dispatchAgain = false;
+                    continue;
+                }
+            }
+            for(int i = 0; i < started.size(); i++){
+                start(started.get(i), slots.get(i));
+            }
+        }
+    }
+
+    /**
+     * Marks the slots getting a job as busy, called with the lock held.
+     */
+    private void take(List<Job> started, List<Integer> slots){
+        for(int slot = 0; slot < homes.length; slot++){
+            if(!busy[slot] && homes[slot] != null && !homes[slot].jobs.isEmpty()){
+                busy[slot] = true;
+                started.add(homes[slot].jobs.poll());
+                slots.add(slot);
+            }
+        }
+        for(int slot = 0; slot < homes.length; slot++){
+            if(busy[slot]){
+                continue;
+            }
+            ModelQueue longest = null;
+            for(ModelQueue queue: queues.values()){
+                if(!queue.jobs.isEmpty() && (longest == null || queue.jobs.size() > longest.jobs.size())){
+                    longest = queue;
+                }
+            }
+            if(longest == null){
+                break;
+            }
+            busy[slot] = true;
+            longest.stolen.increment();
+            started.add(longest.jobs.poll());
+            slots.add(slot);
+        }
+    }
+
+    private void start(Job job, int slot){
+        String session = TraceContext.get();
+        Long deadline = TraceContext.getDeadline();
+        TraceContext.set(job.session, job.deadline);
+        CompletableFuture<?> request;
+        try {
+            request = job.request.get();
+        } catch (RuntimeException e){
+            request = CompletableFuture.failedFuture(e);
+        } finally {
+            TraceContext.set(session, deadline);
+        }
+        request.whenComplete((result, e) -> {
+            synchronized (this) {
+                busy[slot] = false;
+            }
+            dispatch();
+            if(e != null){
+                job.result.completeExceptionally(e);
+            }else {
+                job.result.complete(result);
+            }
+        });
+    }
+}
@@ -0,0 +1,43 @@
+package cz.cuni.mff.ufal.metrics;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Monotonically increasing count. Incrementing is a LongAdder increment, cheap even when contended.
+ */
+public final class Counter extends Metric {
+
+    private final LongAdder value = new LongAdder();
+
+    Counter(String name, String help, String labels) {
+        super(name, help, labels);
+    }
+
+    public void increment() {
+        value.increment();
+    }
+
+    public void add(long amount) {
+        value.add(amount);
+    }
+
+    public long get() {
+        return value.sum();
+    }
+
+    @Override
+    String getType() {
+        return "counter";
+    }
+
+    @Override
+    void writeSamples(StringBuilder sb) {
+        sb.append(sampleName("", null)).append(' ').append(get()).append('\n');
+    }
+
+    @Override
+    void collect(Map<String, Object> values) {
+        values.put(sampleName("", null), get());
+    }
+}
@@ -0,0 +1,37 @@
+package cz.cuni.mff.ufal.metrics;
+
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Monotonically increasing count kept by someone else, e.g. the hits of a cache, read from a supplier when the metrics
+ * are collected.
+ */
+public final class FunctionCounter extends Metric {
+
+    private final LongSupplier supplier;
+
+    FunctionCounter(String name, String help, String labels, LongSupplier supplier) {
+        super(name, help, labels);
+        this.supplier = supplier;
+    }
+
+    public long get() {
+        return supplier.getAsLong();
+    }
+
+    @Override
+    String getType() {
+        return "counter";
+    }
+
+    @Override
+    void writeSamples(StringBuilder sb) {
+        sb.append(sampleName("", null)).append(' ').append(get()).append('\n');
+    }
+
+    @Override
+    void collect(Map<String, Object> values) {
+        values.put(sampleName("", null), get());
+    }
+}
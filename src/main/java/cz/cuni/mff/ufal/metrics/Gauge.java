@@ -0,0 +1,36 @@
+package cz.cuni.mff.ufal.metrics;
+
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Current value read from a supplier when the metrics are collected, costs nothing on the hot path.
+ */
+public final class Gauge extends Metric {
+
+    private final LongSupplier supplier;
+
+    Gauge(String name, String help, String labels, LongSupplier supplier) {
+        super(name, help, labels);
+        this.supplier = supplier;
+    }
+
+    public long get() {
+        return supplier.getAsLong();
+    }
+
+    @Override
+    String getType() {
+        return "gauge";
+    }
+
+    @Override
+    void writeSamples(StringBuilder sb) {
+        sb.append(sampleName("", null)).append(' ').append(get()).append('\n');
+    }
+
+    @Override
+    void collect(Map<String, Object> values) {
+        values.put(sampleName("", null), get());
+    }
+}
@@ -0,0 +1,105 @@
+package cz.cuni.mff.ufal.metrics;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram with fixed buckets from 1 ms to 60 s. Recording is a few comparisons and two LongAdder updates.
+ */
+public final class Histogram extends Metric {
+
+    private static final double[] BOUNDS_SECONDS = {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5,
+            5, 10, 30, 60};
+    private static final long[] BOUNDS_NANOS = new long[BOUNDS_SECONDS.length];
+
+    static {
+        for (int i = 0; i < BOUNDS_SECONDS.length; i++) {
+            BOUNDS_NANOS[i] = (long) (BOUNDS_SECONDS[i] * 1e9);
+        }
+    }
+
+    // the last one is +Inf
+    private final LongAdder[] buckets = new LongAdder[BOUNDS_NANOS.length + 1];
+    private final LongAdder sumNanos = new LongAdder();
+
+    Histogram(String name, String help, String labels) {
+        super(name, help, labels);
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        int i = 0;
+        while (i < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[i]) {
+            i++;
+        }
+        buckets[i].increment();
+        sumNanos.add(nanos);
+    }
+
+    /**
+     * Records the time elapsed since startNanos (a System.nanoTime() value).
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    public double getSumSeconds() {
+        return sumNanos.sum() / 1e9;
+    }
+
+    /**
+     * @return upper bound of the bucket containing the given quantile, in seconds, +Inf if it's beyond the last one
+     */
+    public double getQuantileUpperBound(double quantile) {
+        long[] counts = new long[buckets.length];
+        long total = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BOUNDS_SECONDS.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return BOUNDS_SECONDS[i];
+            }
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+
+    @Override
+    String getType() {
+        return "histogram";
+    }
+
+    @Override
+    void writeSamples(StringBuilder sb) {
+        long cumulative = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            cumulative += buckets[i].sum();
+            String le = i < BOUNDS_SECONDS.length ? Double.toString(BOUNDS_SECONDS[i]) : "+Inf";
+            sb.append(sampleName("_bucket", "le=\"" + le + "\"")).append(' ').append(cumulative).append('\n');
+        }
+        sb.append(sampleName("_sum", null)).append(' ').append(getSumSeconds()).append('\n');
+        sb.append(sampleName("_count", null)).append(' ').append(cumulative).append('\n');
+    }
+
+    @Override
+    void collect(Map<String, Object> values) {
+        values.put(sampleName("_count", null), getCount());
+        values.put(sampleName("_sum", null), getSumSeconds());
+        values.put(sampleName("_p50_upper_bound", null), getQuantileUpperBound(0.5));
+        values.put(sampleName("_p99_upper_bound", null), getQuantileUpperBound(0.99));
+    }
+}
@@ -0,0 +1,58 @@
+package cz.cuni.mff.ufal.metrics;
+
+import java.util.Map;
+
+/**
+ * A named value with optional labels, see {@link Metrics}.
+ */
+public abstract class Metric {
+
+    private final String name;
+    private final String help;
+    private final String labels;
+
+    protected Metric(String name, String help, String labels) {
+        this.name = name;
+        this.help = help;
+        this.labels = labels;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getHelp() {
+        return help;
+    }
+
+    /**
+     * @return labels in the Prometheus format without the braces, e.g. scope="en-cs", or an empty string
+     */
+    public String getLabels() {
+        return labels;
+    }
+
+    abstract String getType();
+
+    /**
+     * Appends the samples in the Prometheus text format.
+     */
+    abstract void writeSamples(StringBuilder sb);
+
+    /**
+     * Puts the current values under their JMX attribute names.
+     */
+    abstract void collect(Map<String, Object> values);
+
+    String sampleName(String suffix, String extraLabel) {
+        StringBuilder sb = new StringBuilder(name).append(suffix);
+        if (!labels.isEmpty() || extraLabel != null) {
+            sb.append('{').append(labels);
+            if (extraLabel != null) {
+                sb.append(labels.isEmpty() ? "" : ",").append(extraLabel);
+            }
+            sb.append('}');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,93 @@
+package cz.cuni.mff.ufal.metrics;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide registry of the metrics. Getting a metric is a map lookup, so callers on the hot path should keep the
+ * returned instance instead of asking for it on every call.
+ *
+ * Labels are passed as name, value pairs, e.g. {@code Metrics.counter("requests_total", "Requests", "scope", "en-cs")}.
+ */
+public final class Metrics {
+
+    // sorted, so the samples of one metric stay together in the Prometheus output
+    private static final ConcurrentNavigableMap<String, Metric> metrics = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+    }
+
+    public static Counter counter(String name, String help, String... labels) {
+        return register(name, labels, formatted -> new Counter(name, help, formatted), Counter.class);
+    }
+
+    /**
+     * Registers a counter reading the count from a supplier, replacing a previous one with the same name and labels.
+     */
+    public static FunctionCounter counter(String name, String help, LongSupplier supplier, String... labels) {
+        String formatted = formatLabels(labels);
+        FunctionCounter counter = new FunctionCounter(name, help, formatted, supplier);
+        metrics.put(name + "{" + formatted + "}", counter);
+        return counter;
+    }
+
+    public static Histogram histogram(String name, String help, String... labels) {
+        return register(name, labels, formatted -> new Histogram(name, help, formatted), Histogram.class);
+    }
+
+    /**
+     * Registers a gauge, replacing a previous one with the same name and labels.
+     */
+    public static Gauge gauge(String name, String help, LongSupplier supplier, String... labels) {
+        String formatted = formatLabels(labels);
+        Gauge gauge = new Gauge(name, help, formatted, supplier);
+        metrics.put(name + "{" + formatted + "}", gauge);
+        return gauge;
+    }
+
+    public static Collection<Metric> all() {
+        return metrics.values();
+    }
+
+    /**
+     * @return all the metrics in the Prometheus text exposition format
+     */
+    public static String toPrometheusText() {
+        StringBuilder sb = new StringBuilder(4096);
+        String previous = null;
+        for (Metric metric : metrics.values()) {
+            if (!metric.getName().equals(previous)) {
+                sb.append("# HELP ").append(metric.getName()).append(' ').append(metric.getHelp()).append('\n');
+                sb.append("# TYPE ").append(metric.getName()).append(' ').append(metric.getType()).append('\n');
+                previous = metric.getName();
+            }
+            metric.writeSamples(sb);
+        }
+        return sb.toString();
+    }
+
+    private static <T extends Metric> T register(String name, String[] labels, Function<String, T> factory,
+                                                 Class<T> type) {
+        String formatted = formatLabels(labels);
+        Metric metric = metrics.computeIfAbsent(name + "{" + formatted + "}", key -> factory.apply(formatted));
+        if (!type.isInstance(metric)) {
+            throw new IllegalArgumentException(name + " is already registered as " + metric.getType());
+        }
+        return type.cast(metric);
+    }
+
+    private static String formatLabels(String[] labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name, value pairs.");
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            sb.append(i > 0 ? "," : "").append(labels[i]).append("=\"")
+                    .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,79 @@
+package elitr.worker;
+
+import cz.cuni.mff.ufal.LindatTranslationClient;
+import cz.cuni.mff.ufal.Translator;
+import cz.cuni.mff.ufal.metrics.MetricsExporter;
+import it.pervoice.eubridge.mcloud.MCloudException;
+import it.pervoice.eubridge.mcloud.jni.MCloudTextPacket;
+
+import javax.management.JMException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Training run of the class-data-sharing archive built by the cds profile: goes through the startup of the worker
+ * and a client session over an {@link InMemoryTransport}, so the classes they load end up in the class list. The
+ * translator only echoes the text, the mediator and the Lindat API are not needed.
+ */
+public class CdsTraining {
+
+    private static class EchoTranslator implements Translator {
+        @Override
+        public String translate(String text, String sourceLanguage, String targetLanguage) {
+            return text;
+        }
+
+        @Override
+        public String translate(String text, String modelName) {
+            return text;
+        }
+
+        @Override
+        public CompletableFuture<String> translateAsync(String text, String sourceLanguage, String targetLanguage) {
+            return CompletableFuture.completedFuture(text);
+        }
+
+        @Override
+        public CompletableFuture<String> translateAsync(String text, String modelName) {
+            return CompletableFuture.completedFuture(text);
+        }
+
+        @Override
+        public Set<Map.Entry<String, String>> getAvailableLanguagePairs() {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public Set<String> getAvailableModels() {
+            return Collections.emptySet();
+        }
+    }
+
+    public static void main(String[] args) throws MCloudException, InterruptedException, JMException {
+        MetricsExporter.registerJmx();
+        // the HTTP client, nothing is sent
+        new LindatTranslationClient("http://localhost:5000/api/v1");
+        InMemoryTransport transport = new InMemoryTransport();
+        Worker worker = new Worker("cds-training", transport,
+                ProcessingEventListener.createTranslator(new EchoTranslator()), "en", "en", Arrays.asList("cs", "de"));
+        Thread thread = new Thread(() -> worker.run("localhost", 0));
+        thread.start();
+        InMemoryTransport.ClientSession client = transport.connectClient();
+        for (int i = 0; i < 100; i++) {
+            client.send(new MCloudTextPacket(new Date(i), new Date(i + 1), 0, "en", "Sentence number " + i + "."));
+        }
+        client.send(Signal.DONE);
+        InMemoryTransport.Output output;
+        while ((output = client.receive(10, TimeUnit.SECONDS)) != null && output.getSignal() != Signal.DONE) {
+            // the translations
+        }
+        worker.drain();
+        thread.join(5000);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,230 @@
+package elitr.worker;
+
+import it.pervoice.eubridge.mcloud.jni.MCloudPacket;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link WorkerTransport} without MCloud: clients are simulated by {@link ClientSession}s in the same JVM, so the
+ * whole worker can be tested and benchmarked without the mediator or the native libraries.
+ *
+ * Like in MCloud, the data packets are handed to the listener one by one on a processing thread, and the worker gets
+ * the status packets in between. The packets and FLUSH sent by the worker are delivered to the client in order on a
+ * sending thread, like the sending queue of MCloud, {@link #waitSendingFinish} waits for them. DONE goes straight to
+ * the client, the worker waits for the sends before it.
+ * A client may give a service description, which the listener gets like the one of the MCloud init packet.
+ */
+public class InMemoryTransport implements WorkerTransport {
+
+    private static final long WAIT_FOR_CLIENT_MILLIS = 1000;
+
+    /**
+     * A packet or a status the worker sent to the client.
+     */
+    public static final class Output {
+        private final MCloudPacket packet;
+        private final Signal signal;
+
+        private Output(MCloudPacket packet, Signal signal) {
+            this.packet = packet;
+            this.signal = signal;
+        }
+
+        /**
+         * @return the packet, null for FLUSH and DONE
+         */
+        public MCloudPacket getPacket() {
+            return packet;
+        }
+
+        /**
+         * @return FLUSH or DONE, null for a packet
+         */
+        public Signal getSignal() {
+            return signal;
+        }
+
+        @Override
+        public String toString() {
+            return signal != null ? signal.toString() : String.valueOf(packet);
+        }
+    }
+
+    /**
+     * One simulated client. The packets and statuses it sends are queued until the worker accepts it.
+     */
+    public final class ClientSession {
+        // MCloudPacket or Signal
+        private final BlockingQueue<Object> inbound = new LinkedBlockingQueue<>();
+        private final BlockingQueue<Output> outbound = new LinkedBlockingQueue<>();
+        private final String serviceDescription;
+        private boolean over;
+
+        private ClientSession(String serviceDescription) {
+            this.serviceDescription = serviceDescription;
+        }
+
+        public void send(MCloudPacket packet) {
+            inbound.add(packet);
+        }
+
+        public void send(Signal signal) {
+            inbound.add(signal);
+        }
+
+        /**
+         * @return what the worker sent next, null if nothing came within the timeout
+         */
+        public Output receive(long timeout, TimeUnit unit) throws InterruptedException {
+            return outbound.poll(timeout, unit);
+        }
+    }
+
+    private final BlockingQueue<ClientSession> waiting = new LinkedBlockingQueue<>();
+    private final ThreadPoolExecutor processor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(), r -> {
+                Thread thread = new Thread(r, "in-memory-processing");
+                thread.setDaemon(true);
+                return thread;
+            });
+    private final ThreadPoolExecutor sender = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(), r -> {
+                Thread thread = new Thread(r, "in-memory-sending");
+                thread.setDaemon(true);
+                return thread;
+            });
+    private volatile ProcessingEventListener listener;
+    private volatile ClientSession current;
+
+    /**
+     * @return a new client, the worker accepts the clients in the order they connect
+     */
+    public ClientSession connectClient() {
+        return connectClient(null);
+    }
+
+    /**
+     * @param serviceDescription what the client asked for, e.g. {@code <outputFingerPrint>cs</outputFingerPrint>},
+     *                           null for all the outputs of the worker
+     */
+    public ClientSession connectClient(String serviceDescription) {
+        ClientSession session = new ClientSession(serviceDescription);
+        waiting.add(session);
+        return session;
+    }
+
+    @Override
+    public void addService(String name, String serviceType, String inputFingerprint, String outputFingerprint) {
+    }
+
+    @Override
+    public void setListener(ProcessingEventListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void connect(String host, int port) {
+    }
+
+    @Override
+    public boolean waitForClient() {
+        try {
+            current = waiting.poll(WAIT_FOR_CLIENT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (current != null) {
+            listener.selectTargets(current.serviceDescription);
+        }
+        return current != null;
+    }
+
+    @Override
+    public Signal nextSignal() {
+        ClientSession session = current;
+        if (session == null || session.over) {
+            return null;
+        }
+        try {
+            while (true) {
+                Object next = session.inbound.take();
+                if (next instanceof Signal) {
+                    Signal signal = (Signal) next;
+                    session.over = signal == Signal.DONE || signal == Signal.ERROR || signal == Signal.RESET;
+                    return signal;
+                }
+                MCloudPacket packet = (MCloudPacket) next;
+                processor.execute(() -> listener.handleData(packet));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    @Override
+    public void waitProcessingFinish(boolean last) {
+        // the processing thread takes the packets in order, so this runs after all of them
+        awaitQueued(processor);
+    }
+
+    @Override
+    public void breakProcessing() {
+        processor.getQueue().clear();
+        waitProcessingFinish(false);
+    }
+
+    @Override
+    public void waitSendingFinish(boolean last) {
+        // the sending thread delivers the packets in order, so this runs after all of them
+        awaitQueued(sender);
+    }
+
+    @Override
+    public void sendPacketAsync(MCloudPacket packet) {
+        ClientSession session = current;
+        if (session != null) {
+            deliver(session, new Output(packet, null));
+        }
+    }
+
+    @Override
+    public void sendFlush() {
+        deliver(current, new Output(null, Signal.FLUSH));
+    }
+
+    @Override
+    public void sendDone() {
+        current.outbound.add(new Output(null, Signal.DONE));
+    }
+
+    @Override
+    public void disconnect() {
+        processor.shutdownNow();
+        sender.shutdown();
+    }
+
+    private void deliver(ClientSession session, Output output) {
+        try {
+            sender.execute(() -> session.outbound.add(output));
+        } catch (RejectedExecutionException e) {
+            // disconnected, nobody receives it anymore
+        }
+    }
+
+    private static void awaitQueued(ThreadPoolExecutor executor) {
+        try {
+            executor.submit(() -> {}).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
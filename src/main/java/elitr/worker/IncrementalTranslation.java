@@ -0,0 +1,102 @@
+package elitr.worker;
+
+import cz.cuni.mff.ufal.Sentences;
+import cz.cuni.mff.ufal.Translator;
+import it.pervoice.eubridge.mcloud.jni.MCloudTextPacket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * ASR re-sends growing or revised hypotheses of the same utterance, i.e. packets with the same start time. This keeps
+ * the completed sentences of the previous hypothesis together with their translations. Sentences of the new
+ * hypothesis that didn't change reuse those translations, only the rest is sent to the translator (in one batch).
+ *
+ * Not thread-safe, it's meant to be used from handleData which is called serially.
+ */
+public class IncrementalTranslation {
+
+    private static final Logger log = LoggerFactory.getLogger(IncrementalTranslation.class.getName());
+
+    private static class Segment {
+        private final String source;
+        private final CompletableFuture<String> translation;
+
+        private Segment(String source, CompletableFuture<String> translation) {
+            this.source = source;
+            this.translation = translation;
+        }
+
+        private boolean isReusable(String sentence){
+            // don't reuse a failure, or an empty translation
+            return source.equals(sentence) && !translation.isCompletedExceptionally()
+                    && !"".equals(translation.getNow(null));
+        }
+    }
+
+    private final Translator translator;
+    private final String sourceLanguage;
+    private final String targetLanguage;
+    private Date startTime;
+    private List<Segment> completed = new ArrayList<>();
+
+    public IncrementalTranslation(Translator translator, String sourceLanguage, String targetLanguage){
+        this.translator = translator;
+        this.sourceLanguage = sourceLanguage;
+        this.targetLanguage = targetLanguage;
+    }
+
+    public CompletableFuture<String> translate(MCloudTextPacket packet){
+        if(startTime == null || !startTime.equals(packet.getStartTime())){
+            // a new utterance, nothing to reuse
+            reset();
+            startTime = packet.getStartTime();
+        }
+        List<String> sentences = Sentences.split(packet.getText());
+        List<CompletableFuture<String>> parts = new ArrayList<>(sentences.size());
+        List<Segment> nowCompleted = new ArrayList<>(sentences.size());
+        int stable = 0;
+        while(stable < sentences.size() && stable < completed.size()
+                && completed.get(stable).isReusable(sentences.get(stable))){
+            Segment segment = completed.get(stable);
+            parts.add(segment.translation);
+            nowCompleted.add(segment);
+            stable++;
+        }
+        if(stable < sentences.size()){
+            List<String> changed = sentences.subList(stable, sentences.size());
+            CompletableFuture<List<String>> translations = translator.translateBatchAsync(changed, sourceLanguage,
+                    targetLanguage);
+            for(int i = 0; i < changed.size(); i++){
+                int index = i;
+                CompletableFuture<String> translation = translations.thenApply(list -> list.get(index));
+                parts.add(translation);
+                if(Sentences.isComplete(changed.get(i))){
+                    nowCompleted.add(new Segment(changed.get(i), translation));
+                }
+            }
+        }
+        log.info("Reusing translation of " + stable + " out of " + sentences.size() + " sentences");
+        completed = nowCompleted;
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture[0]))
+                .thenApply(ignored -> {
+                    StringBuilder sb = new StringBuilder();
+                    for(CompletableFuture<String> part: parts){
+                        String translation = part.join();
+                        if(!translation.isEmpty()){
+                            sb.append(translation).append(' ');
+                        }
+                    }
+                    return sb.toString().stripTrailing();
+                });
+    }
+
+    public void reset(){
+        startTime = null;
+        completed = new ArrayList<>();
+    }
+}
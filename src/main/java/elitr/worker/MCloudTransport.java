@@ -0,0 +1,140 @@
+package elitr.worker;
+
+import it.pervoice.eubridge.mcloud.MCloudDataType;
+import it.pervoice.eubridge.mcloud.MCloudException;
+import it.pervoice.eubridge.mcloud.jni.MCloudPacket;
+import it.pervoice.eubridge.mcloud.jni.MCloudQueue;
+import it.pervoice.eubridge.mcloud.jni.MCloudWorker;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link WorkerTransport} over the JMCloud MCloudWorker, i.e. the PerVoice mediator.
+ */
+public class MCloudTransport implements WorkerTransport {
+
+    private static final String inOutType = "text";
+    // summed over all the transports, for the startup timing
+    private static final AtomicLong constructorWaitNanos = new AtomicLong();
+    private static final AtomicLong constructorNanos = new AtomicLong();
+
+    private final MCloudWorker mWorker;
+    private final MCloudQueue procQueue;
+    private final MCloudQueue sendQueue;
+
+    public MCloudTransport(String name) throws MCloudException {
+        /*
+        Without synchronized this odd thing appears:
+        This machine has 4available processors.
+        [main] INFO elitr.worker.Worker - Using 2 threads
+        JMCloud native library loaded!
+        JMCloud native library loaded!
+        Codec not found!
+        ERROR (src/MCloud.c,2107): Setting audio encoder codec=RPCM samplerate=16000 bitrate=0 channels=1
+         */
+        long waiting = System.nanoTime();
+        long constructing;
+        synchronized (MCloudWorker.class) {
+            constructing = System.nanoTime();
+            mWorker = new MCloudWorker(name);
+        }
+        constructorNanos.addAndGet(System.nanoTime() - constructing);
+        constructorWaitNanos.addAndGet(constructing - waiting);
+        procQueue = mWorker.getProcessingQueue();
+        sendQueue = mWorker.getSendingQueue();
+    }
+
+    /**
+     * @return time all the transports spent waiting for the lock of the MCloudWorker constructor
+     */
+    static long getConstructorWaitNanos() {
+        return constructorWaitNanos.get();
+    }
+
+    /**
+     * @return time all the transports spent in the MCloudWorker constructor, it can't run in parallel
+     */
+    static long getConstructorNanos() {
+        return constructorNanos.get();
+    }
+
+    @Override
+    public void addService(String name, String serviceType, String inputFingerprint, String outputFingerprint)
+            throws MCloudException {
+        mWorker.addService(name, serviceType, inputFingerprint, MCloudDataType.valueOf(inOutType),
+                outputFingerprint, MCloudDataType.valueOf(inOutType), null);
+    }
+
+    @Override
+    public void setListener(ProcessingEventListener listener) {
+        procQueue.addGlobalListener(listener);
+        sendQueue.addGlobalListener(new SendingEventListener(listener));
+    }
+
+    @Override
+    public void connect(String host, int port) throws MCloudException {
+        mWorker.connect(host, port);
+    }
+
+    @Override
+    public boolean waitForClient() throws MCloudException {
+        mWorker.waitForClient();
+        return true;
+    }
+
+    @Override
+    public Signal nextSignal() throws MCloudException {
+        // please notice that if it's a DATA packet getNextPacketOrProcessAsync will process it
+        MCloudPacket pkt = mWorker.getNextPacketOrProcessAsync();
+        if (pkt == null) {
+            return null;
+        }
+        switch (pkt.getType()) {
+            case STATUS_FLUSH:
+                return Signal.FLUSH;
+            case STATUS_DONE:
+                return Signal.DONE;
+            case STATUS_ERROR:
+                return Signal.ERROR;
+            case STATUS_RESET:
+                return Signal.RESET;
+            default:
+                return Signal.UNKNOWN;
+        }
+    }
+
+    @Override
+    public void waitProcessingFinish(boolean last) throws MCloudException {
+        procQueue.waitFinish(last);
+    }
+
+    @Override
+    public void breakProcessing() throws MCloudException {
+        procQueue.breakQueue();
+    }
+
+    @Override
+    public void waitSendingFinish(boolean last) throws MCloudException {
+        sendQueue.waitFinish(last);
+    }
+
+    @Override
+    public void sendPacketAsync(MCloudPacket packet) throws MCloudException {
+        mWorker.sendPacketAsync(packet);
+    }
+
+    @Override
+    public void sendFlush() throws MCloudException {
+        mWorker.sendFlush();
+    }
+
+    @Override
+    public void sendDone() throws MCloudException {
+        mWorker.sendDone();
+    }
+
+    @Override
+    public void disconnect() throws MCloudException {
+        mWorker.disconnect();
+    }
+}
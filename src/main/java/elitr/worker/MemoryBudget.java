@@ -0,0 +1,111 @@
+package elitr.worker;
+
+/**
+ * Bytes of text a session holds, counted against the session's limit and against the limit of the whole JVM (the
+ * parent budget). {@link #acquire(long)} blocks while either of them would be exceeded, which makes the worker stop
+ * taking packets from MCloud until the translations already held are sent. A limit of 0 means no limit. A session
+ * holding nothing may always take one packet, however large, so an oversized packet can't block it forever.
+ *
+ * All the budgets share one lock, acquiring from a session and its parent is a single step.
+ */
+class MemoryBudget {
+
+    private static final Object lock = new Object();
+
+    private final MemoryBudget parent;
+    private final long limit;
+    private long used;
+    private long peak;
+    // changed by reset(), wakes up the waiting acquire
+    private long generation;
+
+    /**
+     * @param parent JVM-wide budget, null for the JVM-wide budget itself
+     */
+    MemoryBudget(MemoryBudget parent, long limit){
+        this.parent = parent;
+        this.limit = limit;
+    }
+
+    /**
+     * Blocks until the bytes fit into this budget and its parent, then takes them.
+     *
+     * @return false if {@link #reset()} was called meanwhile, nothing is taken then
+     */
+    boolean acquire(long bytes) throws InterruptedException {
+        synchronized (lock) {
+            long start = generation;
+            while(exceeds(bytes) || (parent != null && parent.exceeds(bytes) && used > 0)){
+                lock.wait();
+                if(generation != start){
+                    return false;
+                }
+            }
+            add(bytes);
+            return true;
+        }
+    }
+
+    /**
+     * Takes the bytes without waiting, e.g. for a translation of a packet taken already.
+     */
+    void force(long bytes){
+        synchronized (lock) {
+            add(bytes);
+        }
+    }
+
+    void release(long bytes){
+        synchronized (lock) {
+            add(-bytes);
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Makes the acquire calls waiting now return false.
+     */
+    void reset(){
+        synchronized (lock) {
+            generation++;
+            lock.notifyAll();
+        }
+    }
+
+    long getUsed(){
+        synchronized (lock) {
+            return used;
+        }
+    }
+
+    /**
+     * @return most bytes held at once
+     */
+    long getPeak(){
+        synchronized (lock) {
+            return peak;
+        }
+    }
+
+    /**
+     * @param fraction of the limit
+     * @return true when more than the fraction of the limit is used, never without a limit
+     */
+    boolean isAbove(double fraction){
+        synchronized (lock) {
+            return limit > 0 && used > limit * fraction;
+        }
+    }
+
+    private boolean exceeds(long bytes){
+        return limit > 0 && used > 0 && used + bytes > limit;
+    }
+
+    private void add(long bytes){
+        used += bytes;
+        peak = Math.max(peak, used);
+        if(parent != null){
+            parent.add(bytes);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package elitr.worker;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A text packet handed over to the translator by handleData, including the wait for the reorder window.
+ */
+@Name("elitr.worker.PacketReceived")
+@Label("Packet Received")
+@Category({"ELITR", "Worker"})
+@Description("Text packet received from the mediator")
+@Enabled(false)
+@StackTrace(false)
+final class PacketReceivedEvent extends jdk.jfr.Event {
+
+    @Label("Worker")
+    String worker;
+
+    @Label("Session")
+    long session;
+
+    @Label("Sequence")
+    @Description("Number of the packet in the session, matches the Packet Sent events")
+    long sequence;
+
+    @Label("Source")
+    String source;
+
+    @Label("Characters")
+    int characters;
+}
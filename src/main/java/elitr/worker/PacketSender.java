@@ -0,0 +1,12 @@
+package elitr.worker;
+
+import it.pervoice.eubridge.mcloud.MCloudException;
+import it.pervoice.eubridge.mcloud.jni.MCloudPacket;
+
+/**
+ * Where ProcessingEventListener sends the translated packets, normally MCloudWorker::sendPacketAsync.
+ */
+@FunctionalInterface
+public interface PacketSender {
+    void sendPacketAsync(MCloudPacket packet) throws MCloudException;
+}
@@ -0,0 +1,36 @@
+package elitr.worker;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A translated packet passed to sendPacketAsync.
+ */
+@Name("elitr.worker.PacketSent")
+@Label("Packet Sent")
+@Category({"ELITR", "Worker"})
+@Description("Translated packet given to the sending queue")
+@Enabled(false)
+@StackTrace(false)
+final class PacketSentEvent extends jdk.jfr.Event {
+
+    @Label("Worker")
+    String worker;
+
+    @Label("Session")
+    long session;
+
+    @Label("Sequence")
+    @Description("Number of the received packet in the session")
+    long sequence;
+
+    @Label("Output Fingerprint")
+    String outputFingerprint;
+
+    @Label("Characters")
+    int characters;
+}
@@ -1,7 +1,18 @@
 package elitr.worker;
 
+import cz.cuni.mff.ufal.BatchingTranslator;
+import cz.cuni.mff.ufal.CachingTranslator;
+import cz.cuni.mff.ufal.FanOutTranslator;
 import cz.cuni.mff.ufal.LindatTranslationClient;
+import cz.cuni.mff.ufal.TraceContext;
+import cz.cuni.mff.ufal.TranslationCache;
+import cz.cuni.mff.ufal.TranslationMemory;
+import cz.cuni.mff.ufal.TranslationMemoryTranslator;
 import cz.cuni.mff.ufal.Translator;
+import cz.cuni.mff.ufal.WorkStealingTranslator;
+import cz.cuni.mff.ufal.metrics.Counter;
+import cz.cuni.mff.ufal.metrics.Histogram;
+import cz.cuni.mff.ufal.metrics.Metrics;
 import it.pervoice.eubridge.mcloud.MCloudEventListener;
 import it.pervoice.eubridge.mcloud.MCloudException;
 import it.pervoice.eubridge.mcloud.jni.MCloudPacket;
@@ -11,23 +22,324 @@ import it.pervoice.eubridge.mcloud.jni.MCloudWorker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 
 public class ProcessingEventListener extends MCloudEventListener {
     
     private static final Logger log = LoggerFactory.getLogger(ProcessingEventListener.class.getName());
-    private final MCloudWorker worker;
-    private final String outputFingerPrint;
+    // 0 turns batching off
+    private static final long BATCH_WINDOW_MS = Long.parseLong(Optional.ofNullable(System.getenv("BATCH_WINDOW_MS"))
+            .orElse("0"));
+    private static final int BATCH_MAX_SIZE = Integer.parseInt(Optional.ofNullable(System.getenv("BATCH_MAX_SIZE"))
+            .orElse("16"));
+    private static final int BATCH_MAX_CHARS = Integer.parseInt(Optional.ofNullable(System.getenv("BATCH_MAX_CHARS"))
+            .orElse("4000"));
+    // 0 turns caching off
+    private static final int CACHE_MAX_ENTRIES = Integer.parseInt(Optional.ofNullable(System.getenv("CACHE_MAX_ENTRIES"))
+            .orElse("0"));
+    private static final long CACHE_MAX_BYTES = Long.parseLong(Optional.ofNullable(System.getenv("CACHE_MAX_BYTES"))
+            .orElse("67108864"));
+    private static final long CACHE_TTL_SECONDS = Long.parseLong(Optional.ofNullable(System.getenv("CACHE_TTL_SECONDS"))
+            .orElse("0"));
+    // unset turns the translation memory off
+    private static final String TRANSLATION_MEMORY_PATH = System.getenv("TRANSLATION_MEMORY_PATH");
+    private static final long TRANSLATION_MEMORY_MAX_BYTES = Long.parseLong(
+            Optional.ofNullable(System.getenv("TRANSLATION_MEMORY_MAX_BYTES")).orElse("268435456"));
+    // 0 turns splitting off
+    private static final int FANOUT_MIN_CHARS = Integer.parseInt(Optional.ofNullable(System.getenv("FANOUT_MIN_CHARS"))
+            .orElse("0"));
+    private static final int FANOUT_PARALLELISM = Integer.parseInt(
+            Optional.ofNullable(System.getenv("FANOUT_PARALLELISM")).orElse("4"));
+    // packets of a session translated at once
+    private static final int REORDER_WINDOW = Integer.parseInt(Optional.ofNullable(System.getenv("REORDER_WINDOW"))
+            .orElse("64"));
+    // 0 turns the deadline mode off
+    private static final long DEADLINE_MS = Long.parseLong(Optional.ofNullable(System.getenv("DEADLINE_MS"))
+            .orElse("0"));
+    // model workers share MODEL_SLOTS requests in flight through per-model queues
+    private static final boolean MODEL_WORKERS = Boolean.parseBoolean(
+            Optional.ofNullable(System.getenv("MODEL_WORKERS")).orElse("false"));
+    private static final int MODEL_SLOTS = Integer.parseInt(Optional.ofNullable(System.getenv("MODEL_SLOTS"))
+            .orElse("32"));
+    // bytes of text held by all the sessions and by one, 0 means no limit
+    private static final long MEMORY_BUDGET_BYTES = Long.parseLong(
+            Optional.ofNullable(System.getenv("MEMORY_BUDGET_BYTES")).orElse("0"));
+    private static final long SESSION_MEMORY_BUDGET_BYTES = Long.parseLong(
+            Optional.ofNullable(System.getenv("SESSION_MEMORY_BUDGET_BYTES")).orElse("0"));
+    // new sessions are refused above this fraction of MEMORY_BUDGET_BYTES, they would only wait for it
+    private static final double MEMORY_REFUSE_FRACTION = 0.9;
+    private static final boolean INCREMENTAL_MODE = Boolean.parseBoolean(
+            Optional.ofNullable(System.getenv("INCREMENTAL_MODE")).orElse("false"));
+    // every translated part (a sentence or a fanned out piece) goes out as soon as it's translated
+    private static final boolean STREAMING_MODE = Boolean.parseBoolean(
+            Optional.ofNullable(System.getenv("STREAMING_MODE")).orElse("false"));
+    // outputFingerPrint and its value in the service description, e.g. <outputFingerPrint>cs</outputFingerPrint>
+    private static final Pattern OUTPUT_FINGERPRINT = Pattern.compile("outputFingerPrint[\\s\"'>=:]*([\\w-]+)",
+            Pattern.CASE_INSENSITIVE);
+    private static final TranslationCache cache = CACHE_MAX_ENTRIES > 0
+            ? new TranslationCache(CACHE_MAX_ENTRIES, CACHE_MAX_BYTES, CACHE_TTL_SECONDS) : null;
+    // shared by all the listeners in this JVM
+    private static Translator sharedTranslator;
+    // packets given to the translator and not translated yet, and translated packets waiting for the earlier ones
+    private static final AtomicLong inTranslation = new AtomicLong();
+    private static final AtomicLong awaitingSend = new AtomicLong();
+    // the same in bytes of text, plus the packets waiting in handleData for the memory budget or the reorder window
+    private static final AtomicLong queuedBytes = new AtomicLong();
+    private static final AtomicLong inTranslationBytes = new AtomicLong();
+    private static final AtomicLong awaitingSendBytes = new AtomicLong();
+    private static final AtomicLong sessionPeakBytes = new AtomicLong();
+    private static final MemoryBudget memory = new MemoryBudget(null, MEMORY_BUDGET_BYTES);
+    private static final Histogram firstPacketLatency = Metrics.histogram("worker_first_packet_seconds",
+            "Time between accepting a client and its first data packet");
+
+    static {
+        Metrics.gauge("worker_packets_in_translation", "Packets waiting for their translation", inTranslation::get);
+        Metrics.gauge("worker_packets_awaiting_send", "Translated packets waiting for the earlier ones to be sent",
+                awaitingSend::get);
+        Metrics.gauge("worker_memory_queued_bytes", "Text of the packets waiting in handleData to be handed over",
+                queuedBytes::get);
+        Metrics.gauge("worker_memory_in_translation_bytes", "Text of the packets waiting for their translation",
+                inTranslationBytes::get);
+        Metrics.gauge("worker_memory_awaiting_send_bytes", "Text of the translations waiting to be sent",
+                awaitingSendBytes::get);
+        Metrics.gauge("worker_memory_pending_bytes", "Text held by all the sessions, counted against "
+                + "MEMORY_BUDGET_BYTES", memory::getUsed);
+        Metrics.gauge("worker_memory_pending_peak_bytes", "Most text held by all the sessions at once",
+                memory::getPeak);
+        Metrics.gauge("worker_session_memory_peak_bytes", "Most text held by one session at once, counted against "
+                + "SESSION_MEMORY_BUDGET_BYTES", sessionPeakBytes::get);
+        if(cache != null){
+            Metrics.counter("translation_cache_hits_total", "Translation cache hits", cache::getHits);
+            Metrics.counter("translation_cache_misses_total", "Translation cache misses", cache::getMisses);
+            Metrics.counter("translation_cache_evictions_total", "Translation cache evictions", cache::getEvictions);
+            Metrics.gauge("translation_cache_entries", "Translations in the cache", cache::size);
+            Metrics.gauge("translation_cache_bytes", "Approximate size of the cached translations", cache::bytes);
+        }
+    }
+
+    /**
+     * One of the languages the packets are translated into, by a language pair or by a model.
+     */
+    private static final class Target {
+        private final String outputFingerPrint;
+        // null for the language pair
+        private final String modelName;
+        private final IncrementalTranslation incrementalTranslation;
+        private final Counter translationFailures;
+
+        private Target(Translator translator, String translatorSrc, String outputFingerPrint, String modelName){
+            this.outputFingerPrint = outputFingerPrint;
+            this.modelName = modelName;
+            incrementalTranslation = INCREMENTAL_MODE && modelName == null
+                    ? new IncrementalTranslation(translator, translatorSrc, outputFingerPrint) : null;
+            translationFailures = Metrics.counter("worker_translation_failures_total",
+                    "Text packets not translated, nothing was sent for them", "pair",
+                    modelName == null ? translatorSrc + "-" + outputFingerPrint : "model:" + modelName);
+        }
+    }
+
+    /**
+     * A translated packet waiting in the reorder buffer.
+     */
+    private static final class Translation {
+        private final long session;
+        private final long sequence;
+        private final String outputFingerPrint;
+        private final String text;
+        private final MCloudPacket packet;
+
+        private Translation(long session, long sequence, String outputFingerPrint, String text, MCloudPacket packet){
+            this.session = session;
+            this.sequence = sequence;
+            this.outputFingerPrint = outputFingerPrint;
+            this.text = text;
+            this.packet = packet;
+        }
+    }
+
+    /**
+     * Emits the parts of a streamed translation as packets of their own, as they come. A part translating the whole
+     * source packet keeps its times, the pieces of a split packet get the share of its time span their source text
+     * takes.
+     */
+    private final class StreamedParts implements Translator.PartListener {
+        private final MCloudTextPacket textPacket;
+        private final long session;
+        private final long sequence;
+        private final String outputFingerPrint;
+        private final long deadline;
+
+        private StreamedParts(MCloudTextPacket textPacket, long session, long sequence, String outputFingerPrint,
+                              long deadline){
+            this.textPacket = textPacket;
+            this.session = session;
+            this.sequence = sequence;
+            this.outputFingerPrint = outputFingerPrint;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void onPart(String part, int sourceStart, int sourceEnd) {
+            if(DEADLINE_MS > 0 && System.nanoTime() - deadline > 0){
+                // the packet is dropped once the translation completes
+                return;
+            }
+            Date startTime = textPacket.getStartTime();
+            Date stopTime = textPacket.getStopTime();
+            int total = textPacket.getText().length();
+            if(startTime != null && stopTime != null && (sourceStart > 0 || sourceEnd < total)){
+                long start = startTime.getTime();
+                long duration = stopTime.getTime() - start;
+                startTime = new Date(start + duration * Math.max(0, sourceStart) / total);
+                stopTime = new Date(start + duration * Math.min(sourceEnd, total) / total);
+            }
+            log.info("Translated part: " + part);
+            emit(session, sequence, outputFingerPrint, textPacket, part, startTime, stopTime);
+        }
+    }
+
+    private final PacketSender worker;
     private final Translator translator;
     private final String translatorSrc;
+    private final List<Target> targets;
+    // the targets the current client asked for, see handleInit
+    private volatile List<Target> sessionTargets;
+    // sends the translated packets in the order they were received
+    private final ReorderBuffer<Translation> reorderBuffer;
+    private final MemoryBudget sessionMemory = new MemoryBudget(memory, SESSION_MEMORY_BUDGET_BYTES);
+    private volatile long sessionStart;
+    // identify the session in the JFR events
+    private volatile String workerName;
+    private volatile long session;
+    private final Counter packetsReceived;
+    private final Counter droppedLate;
+    private final Counter droppedSuperseded;
+    // the previous packet, for the deadline mode, used by handleData only
+    private Date lastStartTime;
+    private long lastSequence;
+    // set by the worker thread, handleData forgets the session state before its next packet
+    private volatile boolean resetRequested;
 
     public ProcessingEventListener(MCloudWorker worker, String translatorSrc, String outputFingerPrint){
+        this(worker, translatorSrc, Collections.singletonList(outputFingerPrint));
+    }
+
+    /**
+     * Translates every packet into all the outputFingerPrints at once and sends a packet for each of them.
+     */
+    public ProcessingEventListener(MCloudWorker worker, String translatorSrc, List<String> outputFingerPrints){
+        //translator = new LindatTranslationClient("https://lindat.mff.cuni.cz/services/translation/api/v1");
+        this(worker::sendPacketAsync, sharedTranslator(), translatorSrc, outputFingerPrints);
+    }
+
+    /**
+     * Lets the listener run without MCloud, e.g. in benchmarks.
+     */
+    public ProcessingEventListener(PacketSender worker, Translator translator, String translatorSrc,
+                                   String outputFingerPrint){
+        this(worker, translator, translatorSrc, Collections.singletonList(outputFingerPrint));
+    }
+
+    public ProcessingEventListener(PacketSender worker, Translator translator, String translatorSrc,
+                                   List<String> outputFingerPrints){
+        this(worker, translator, translatorSrc, outputFingerPrints, null);
+    }
+
+    /**
+     * @param modelName model translating the packets instead of the translatorSrc-outputFingerPrint language pair,
+     *                  null to use the pairs
+     */
+    public ProcessingEventListener(PacketSender worker, Translator translator, String translatorSrc,
+                                   List<String> outputFingerPrints, String modelName){
         super();
+        if(outputFingerPrints.isEmpty()){
+            throw new IllegalArgumentException("No output fingerprint given.");
+        }
         this.worker = worker;
-        this.outputFingerPrint = outputFingerPrint;
         this.translatorSrc = translatorSrc;
-        //translator = new LindatTranslationClient("https://lindat.mff.cuni.cz/services/translation/api/v1");
-        //This uses $API_URL or localhost:5000
-        translator = new LindatTranslationClient();
+        this.translator = translator;
+        String pair = modelName == null ? translatorSrc + "-" + String.join(",", outputFingerPrints)
+                : "model:" + modelName;
+        packetsReceived = Metrics.counter("worker_packets_received_total", "Text packets received", "pair", pair);
+        droppedLate = Metrics.counter("worker_packets_dropped_total",
+                "Text packets not sent in the deadline mode", "pair", pair, "reason", "deadline");
+        droppedSuperseded = Metrics.counter("worker_packets_dropped_total",
+                "Text packets not sent in the deadline mode", "pair", pair, "reason", "superseded");
+        List<Target> targets = new ArrayList<>(outputFingerPrints.size());
+        for(String outputFingerPrint: outputFingerPrints){
+            targets.add(new Target(translator, translatorSrc, outputFingerPrint, modelName));
+        }
+        this.targets = Collections.unmodifiableList(targets);
+        sessionTargets = this.targets;
+        reorderBuffer = new ReorderBuffer<>(REORDER_WINDOW, this::send, this::dropped);
+    }
+
+    static synchronized Translator sharedTranslator(){
+        if(sharedTranslator == null){
+            sharedTranslator = createTranslator(LindatTranslationClient.shared());
+        }
+        return sharedTranslator;
+    }
+
+    /**
+     * Wraps the client in the model scheduling, batching, splitting, translation memory and cache configured by the
+     * environment, like the translator the workers share.
+     */
+    public static Translator createTranslator(Translator client){
+        TranslationMemory memory = null;
+        if(TRANSLATION_MEMORY_PATH != null){
+            try {
+                memory = TranslationMemory.open(Paths.get(TRANSLATION_MEMORY_PATH), TRANSLATION_MEMORY_MAX_BYTES);
+                log.info("Using " + memory);
+            } catch (IOException e) {
+                log.error("Error opening the translation memory in " + TRANSLATION_MEMORY_PATH, e);
+            }
+        }
+        return createTranslator(client, memory, cache);
+    }
+
+    /**
+     * Wraps the client like {@link #createTranslator(Translator)}, with the given translation memory and cache, either
+     * of which may be null.
+     */
+    static Translator createTranslator(Translator client, TranslationMemory memory, TranslationCache cache){
+        if(MODEL_WORKERS){
+            log.info("Scheduling model translations through per-model queues, " + MODEL_SLOTS + " in flight");
+            client = new WorkStealingTranslator(client, MODEL_SLOTS);
+        }
+        Translator translator = client;
+        if(BATCH_WINDOW_MS > 0){
+            log.info("Batching translations for " + BATCH_WINDOW_MS + " ms, at most " + BATCH_MAX_SIZE
+                    + " packets and " + BATCH_MAX_CHARS + " characters");
+            translator = new BatchingTranslator(translator, BATCH_WINDOW_MS, BATCH_MAX_SIZE, BATCH_MAX_CHARS);
+        }
+        if(FANOUT_MIN_CHARS > 0){
+            log.info("Translating packets of at least " + FANOUT_MIN_CHARS + " characters as up to "
+                    + FANOUT_PARALLELISM + " parallel pieces");
+            // the pieces skip the batching, it would merge them back into one request
+            translator = new FanOutTranslator(translator, client, FANOUT_MIN_CHARS, FANOUT_PARALLELISM);
+        }
+        if(memory != null){
+            translator = new TranslationMemoryTranslator(translator, memory);
+        }
+        if(cache != null){
+            translator = new CachingTranslator(translator, cache);
+        }
+        return translator;
     }
     
     @Override
@@ -42,9 +354,36 @@ public class ProcessingEventListener extends MCloudEventListener {
      */
     public boolean handleInit(MCloudPacket pkt) {
         log.info("handleInit called " + pkt.toString());
+        selectTargets(pkt.toString());
         return true;
     }
 
+    /**
+     * Translates the packets of the session only into the output fingerprints named in its service description, into
+     * all the targets when it names none of them.
+     */
+    void selectTargets(String serviceDescription){
+        List<Target> selected = new ArrayList<>();
+        if(serviceDescription != null){
+            Matcher matcher = OUTPUT_FINGERPRINT.matcher(serviceDescription);
+            while(matcher.find()){
+                for(Target target: targets){
+                    if(target.outputFingerPrint.equalsIgnoreCase(matcher.group(1)) && !selected.contains(target)){
+                        selected.add(target);
+                    }
+                }
+            }
+        }
+        if(selected.isEmpty()){
+            if(targets.size() > 1){
+                log.warn("No output fingerprint of " + targets.size() + " targets requested, translating into all");
+            }
+            sessionTargets = targets;
+        }else {
+            sessionTargets = Collections.unmodifiableList(selected);
+        }
+    }
+
     public boolean handleError(MCloudQueue.QueueType queueType) {
         log.info("Error processing");
         teardown();
@@ -58,28 +397,303 @@ public class ProcessingEventListener extends MCloudEventListener {
 
     public boolean handleFinalize() {
         log.info("Finalize processing");
+        if(cache != null){
+            log.info(cache.toString());
+        }
         return true;
     }
 
+    /**
+     * Hands the packet over to the translator and returns without waiting for the translation, so several packets
+     * can be in flight at once. The translated packets are still sent in the order they were received, with several
+     * targets the packets of one input packet go in the order their translations finish. Blocks while
+     * REORDER_WINDOW packets of the session are in flight.
+     *
+     * In the deadline mode (DEADLINE_MS set) a packet has to be translated within DEADLINE_MS of coming to
+     * handleData, the requests of all the sessions wait for the concurrency limit earliest deadline first and those
+     * that miss it are dropped. So is a packet still in flight when a new hypothesis of it (with the same start time)
+     * comes. Under overload the worker then sends fewer translations instead of ever later ones.
+     *
+     * In the streaming mode (STREAMING_MODE, not with INCREMENTAL_MODE) every part of the translation the translator
+     * streams, e.g. each sentence as Lindat sends it or each piece of a fanned out packet, is sent as a packet of its
+     * own as soon as it and the parts before it are translated, see {@link StreamedParts}.
+     *
+     * The text of the packets and of their translations is counted against SESSION_MEMORY_BUDGET_BYTES and
+     * MEMORY_BUDGET_BYTES until it's sent, handleData blocks while a budget is used up so the packets wait in MCloud
+     * instead of on the heap.
+     */
     public boolean handleData(MCloudPacket pkt) {
         log.info("handleData is called for packet " + pkt);
         if(pkt.getType() == MCloudPacket.PacketType.DATA_TEXT){
             MCloudTextPacket textPacket = (MCloudTextPacket) pkt;
-            String translation = translator.translate(textPacket.getText(), translatorSrc, outputFingerPrint);
-            log.info("Translation: " + translation);
-            //TODO start\time, stopTime, offset?
-            MCloudPacket translated = new MCloudTextPacket(textPacket.getStartTime(), textPacket.getStopTime(),
-                    textPacket.getTimeOffset(), outputFingerPrint, translation);
+            packetsReceived.increment();
+            if(resetRequested){
+                resetRequested = false;
+                forgetSession();
+            }
+            long start = sessionStart;
+            if(start != 0){
+                firstPacketLatency.recordSince(start);
+                sessionStart = 0;
+            }
+            PacketReceivedEvent event = new PacketReceivedEvent();
+            event.begin();
+            long received = System.nanoTime();
+            long bytes = textBytes(textPacket.getText());
+            long sequence;
+            queuedBytes.addAndGet(bytes);
             try {
-                worker.sendPacketAsync(translated);
-            } catch (MCloudException e) {
-                log.error(e.getMessage());
+                if(!sessionMemory.acquire(bytes)){
+                    log.info("Dropping " + textPacket + ", the session was reset while it waited for the memory budget");
+                    return true;
+                }
+                sessionPeakBytes.accumulateAndGet(sessionMemory.getUsed(), Math::max);
+                try {
+                    sequence = reorderBuffer.reserve();
+                } catch (InterruptedException e) {
+                    sessionMemory.release(bytes);
+                    throw e;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
                 return false;
+            } finally {
+                queuedBytes.addAndGet(-bytes);
+            }
+            inTranslationBytes.addAndGet(bytes);
+            long currentSession = session;
+            long deadline = received + TimeUnit.MILLISECONDS.toNanos(DEADLINE_MS);
+            if(DEADLINE_MS <= 0 || startDeadline(textPacket, sequence, deadline)){
+                TraceContext.set(workerName + "/" + currentSession);
+                if(DEADLINE_MS > 0){
+                    TraceContext.setDeadline(deadline);
+                }
+                translate(textPacket, currentSession, sequence, deadline, bytes);
+            }else {
+                releaseSource(bytes);
+            }
+            TraceContext.clear();
+            event.end();
+            if(event.shouldCommit()){
+                event.worker = workerName;
+                event.session = currentSession;
+                event.sequence = sequence;
+                event.source = translatorSrc;
+                event.characters = textPacket.getText().length();
+                event.commit();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drops the previous packet if this one replaces it, and this one if it's late already.
+     *
+     * @return false if the packet is dropped
+     */
+    private boolean startDeadline(MCloudTextPacket textPacket, long sequence, long deadline){
+        Date startTime = textPacket.getStartTime();
+        if(startTime != null && startTime.equals(lastStartTime)){
+            int dropped = reorderBuffer.cancel(lastSequence);
+            if(dropped >= 0){
+                awaitingSend.addAndGet(-dropped);
+                droppedSuperseded.increment();
+                log.info("Dropping the previous hypothesis of " + textPacket);
             }
         }
+        lastStartTime = startTime;
+        lastSequence = sequence;
+        if(System.nanoTime() - deadline > 0){
+            droppedLate.increment();
+            log.warn("Dropping " + textPacket + ", it waited for the reorder window past its deadline");
+            reorderBuffer.complete(sequence);
+            return false;
+        }
         return true;
     }
 
+    private void translate(MCloudTextPacket textPacket, long currentSession, long sequence, long deadline,
+                           long bytes){
+        // the packet is complete once every target is translated (or failed)
+        List<Target> targets = sessionTargets;
+        AtomicInteger remaining = new AtomicInteger(targets.size());
+        AtomicBoolean late = new AtomicBoolean();
+        for(Target target: targets){
+            inTranslation.incrementAndGet();
+            boolean streaming = STREAMING_MODE && target.incrementalTranslation == null && target.modelName == null;
+            CompletableFuture<String> translation;
+            try {
+                if(target.incrementalTranslation != null){
+                    translation = target.incrementalTranslation.translate(textPacket);
+                }else if(target.modelName != null){
+                    translation = translator.translateAsync(textPacket.getText(), target.modelName);
+                }else if(streaming){
+                    translation = translator.translateStreaming(textPacket.getText(), translatorSrc,
+                            target.outputFingerPrint, new StreamedParts(textPacket, currentSession, sequence,
+                                    target.outputFingerPrint, deadline))
+                            .thenApply(ignored -> null);
+                }else {
+                    translation = translator.translateAsync(textPacket.getText(), translatorSrc,
+                            target.outputFingerPrint);
+                }
+            } catch (RuntimeException e){
+                translation = CompletableFuture.failedFuture(e);
+            }
+            translation.whenComplete((text, e) -> {
+                inTranslation.decrementAndGet();
+                if(DEADLINE_MS > 0 && System.nanoTime() - deadline > 0){
+                    // failed or not, nobody waits for it anymore
+                    late.set(true);
+                }else if(e != null){
+                    // an empty packet would look like a successful translation of nothing
+                    target.translationFailures.increment();
+                    log.error("Translation into " + target.outputFingerPrint + " failed, nothing sent for "
+                            + textPacket + ": "
+                            + (e.getCause() != null ? e.getCause().getMessage() : e.getMessage()));
+                }else if(!streaming){
+                    log.info("Translation: " + text);
+                    //TODO start\time, stopTime, offset?
+                    emit(currentSession, sequence, target.outputFingerPrint, textPacket, text,
+                            textPacket.getStartTime(), textPacket.getStopTime());
+                }
+                if(remaining.decrementAndGet() == 0){
+                    int dropped = late.get() ? reorderBuffer.cancel(sequence) : -1;
+                    if(dropped >= 0){
+                        awaitingSend.addAndGet(-dropped);
+                        droppedLate.increment();
+                        log.warn("Dropping " + textPacket + ", translated past its deadline");
+                    }
+                    reorderBuffer.complete(sequence);
+                    releaseSource(bytes);
+                }
+            });
+        }
+    }
+
+    private void emit(long currentSession, long sequence, String outputFingerPrint, MCloudTextPacket textPacket,
+                      String text, Date startTime, Date stopTime){
+        long bytes = textBytes(text);
+        awaitingSend.incrementAndGet();
+        awaitingSendBytes.addAndGet(bytes);
+        // the packet is taken already, its translations must not wait
+        sessionMemory.force(bytes);
+        boolean emitted = reorderBuffer.emit(sequence, new Translation(currentSession, sequence, outputFingerPrint,
+                text, new MCloudTextPacket(startTime, stopTime, textPacket.getTimeOffset(), outputFingerPrint, text)));
+        if(!emitted){
+            // reset or superseded meanwhile
+            awaitingSend.decrementAndGet();
+            releaseTranslation(bytes);
+        }
+    }
+
+    /**
+     * A buffered translation dropped by a reset or in the deadline mode.
+     */
+    private void dropped(Translation translation){
+        releaseTranslation(textBytes(translation.text));
+    }
+
+    private void releaseSource(long bytes){
+        inTranslationBytes.addAndGet(-bytes);
+        sessionMemory.release(bytes);
+    }
+
+    private void releaseTranslation(long bytes){
+        awaitingSendBytes.addAndGet(-bytes);
+        sessionMemory.release(bytes);
+    }
+
+    /**
+     * Heap taken by the chars of the text, at most 2 bytes each.
+     */
+    private static long textBytes(String text){
+        return 2L * text.length();
+    }
+
+    /**
+     * @return true when the text held by the sessions is close to MEMORY_BUDGET_BYTES, new sessions should not be
+     * accepted
+     */
+    public static boolean isMemoryExhausted(){
+        return memory.isAbove(MEMORY_REFUSE_FRACTION);
+    }
+
+    private void send(Translation translation){
+        awaitingSend.decrementAndGet();
+        releaseTranslation(textBytes(translation.text));
+        PacketSentEvent event = new PacketSentEvent();
+        event.begin();
+        try {
+            worker.sendPacketAsync(translation.packet);
+        } catch (MCloudException e) {
+            log.error(e.getMessage());
+        }
+        event.end();
+        if(event.shouldCommit()){
+            event.worker = workerName;
+            event.session = translation.session;
+            event.sequence = translation.sequence;
+            event.outputFingerprint = translation.outputFingerPrint;
+            event.characters = translation.text.length();
+            event.commit();
+        }
+    }
+
+    /**
+     * Blocks until every packet handed over by handleData has been translated and passed to the sending queue.
+     * procQueue.waitFinish only waits for handleData to return, so call this after it on FLUSH and DONE.
+     */
+    public void awaitPending() {
+        try {
+            reorderBuffer.awaitEmpty();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Called when a client has been accepted, to measure how long it takes until its first packet.
+     *
+     * @param workerName name of the worker, with the session number it identifies the session in the JFR events
+     * @param session number of the session in the worker
+     */
+    public void sessionStarted(String workerName, long session) {
+        this.workerName = workerName;
+        this.session = session;
+        sessionStart = System.nanoTime();
+    }
+
+    /**
+     * Forgets the state kept for the current client session. The state belongs to handleData, which may still be
+     * running on the processing thread, so it's forgotten there before the next packet.
+     */
+    public void resetSession() {
+        resetRequested = true;
+    }
+
+    private void forgetSession() {
+        lastStartTime = null;
+        for(Target target: targets){
+            if(target.incrementalTranslation != null){
+                target.incrementalTranslation.reset();
+            }
+        }
+    }
+
+    /**
+     * Forgets the translations still in flight, they won't be sent. Used on RESET and ERROR.
+     */
+    public void discardPending() {
+        // unblocks handleData if it waits for the memory budget
+        sessionMemory.reset();
+        int dropped = reorderBuffer.reset();
+        awaitingSend.addAndGet(-dropped);
+        if(dropped > 0){
+            log.info("Dropped " + dropped + " translations of a reset session");
+        }
+        resetSession();
+    }
+
     public void teardown() {
     }
 }
@@ -0,0 +1,153 @@
+package elitr.worker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Emits the results of concurrently processed items in the order the items came in. Every item reserves a sequence
+ * number, its results are passed to {@link #emit(long, Object)} (any number of them, e.g. translated lines as they
+ * arrive) and {@link #complete(long)} marks the item as done. Results of the oldest unfinished item go straight to the
+ * emitter, the others wait in the buffer until all the earlier items complete.
+ *
+ * At most window items may be unfinished, {@link #reserve()} blocks until the oldest one completes. The emitter is
+ * called under the buffer's lock, so it must not block for long.
+ */
+public class ReorderBuffer<T> {
+
+    private static final class Slot<T> {
+        private final List<T> pending = new ArrayList<>(1);
+        private boolean complete;
+    }
+
+    private final Consumer<T> emitter;
+    private final Consumer<T> onDrop;
+    private final Slot<T>[] slots;
+    // next sequence number to hand out
+    private long next;
+    // oldest unfinished sequence number
+    private long head;
+
+    public ReorderBuffer(int window, Consumer<T> emitter){
+        this(window, emitter, result -> {});
+    }
+
+    /**
+     * @param onDrop called with every buffered result {@link #cancel(long)} or {@link #reset()} drops, under the lock
+     */
+    @SuppressWarnings("unchecked")
+    public ReorderBuffer(int window, Consumer<T> emitter, Consumer<T> onDrop){
+        if(window < 1){
+            throw new IllegalArgumentException("The window must be positive.");
+        }
+        this.emitter = emitter;
+        this.onDrop = onDrop;
+        this.slots = new Slot[window];
+    }
+
+    /**
+     * @return sequence number of the next item, blocks while the window is full
+     */
+    public synchronized long reserve() throws InterruptedException {
+        while(next - head >= slots.length){
+            wait();
+        }
+        slots[index(next)] = new Slot<>();
+        return next++;
+    }
+
+    /**
+     * Emits a result of the item now if all the earlier items are complete, later otherwise. Results of complete
+     * items, or of items discarded by {@link #reset()}, are dropped.
+     *
+     * @return false if the result was dropped
+     */
+    public synchronized boolean emit(long sequence, T result){
+        if(sequence < head || slots[index(sequence)].complete){
+            return false;
+        }
+        if(sequence == head){
+            emitter.accept(result);
+        }else {
+            slots[index(sequence)].pending.add(result);
+        }
+        return true;
+    }
+
+    /**
+     * Marks the item as done, it won't emit anything else.
+     */
+    public synchronized void complete(long sequence){
+        if(sequence < head){
+            return;
+        }
+        slots[index(sequence)].complete = true;
+        while(head < next && slots[index(head)].complete){
+            slots[index(head)] = null;
+            head++;
+            if(head < next){
+                Slot<T> slot = slots[index(head)];
+                for(T result: slot.pending){
+                    emitter.accept(result);
+                }
+                slot.pending.clear();
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Completes the item and drops its results that are still buffered, e.g. when a newer item replaces it.
+     *
+     * @return number of buffered results dropped, -1 if the item was complete already
+     */
+    public synchronized int cancel(long sequence){
+        if(sequence < head || slots[index(sequence)].complete){
+            return -1;
+        }
+        List<T> pending = slots[index(sequence)].pending;
+        int dropped = pending.size();
+        pending.forEach(onDrop);
+        pending.clear();
+        complete(sequence);
+        return dropped;
+    }
+
+    /**
+     * Blocks until every reserved item is complete and emitted.
+     */
+    public synchronized void awaitEmpty() throws InterruptedException {
+        while(head < next){
+            wait();
+        }
+    }
+
+    /**
+     * Discards the unfinished items, whatever they emit later is dropped.
+     *
+     * @return number of buffered results dropped
+     */
+    public synchronized int reset(){
+        int dropped = 0;
+        for(long sequence = head; sequence < next; sequence++){
+            List<T> pending = slots[index(sequence)].pending;
+            dropped += pending.size();
+            pending.forEach(onDrop);
+            slots[index(sequence)] = null;
+        }
+        head = next;
+        notifyAll();
+        return dropped;
+    }
+
+    /**
+     * @return number of unfinished items
+     */
+    public synchronized int size(){
+        return (int) (next - head);
+    }
+
+    private int index(long sequence){
+        return (int) (sequence % slots.length);
+    }
+}
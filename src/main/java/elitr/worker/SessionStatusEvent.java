@@ -0,0 +1,29 @@
+package elitr.worker;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Handling of a FLUSH, DONE, RESET or ERROR packet, e.g. a FLUSH lasts until every earlier packet is sent.
+ */
+@Name("elitr.worker.SessionStatus")
+@Label("Session Status")
+@Category({"ELITR", "Worker"})
+@Description("Status packet of a session handled by the worker")
+@Enabled(false)
+@StackTrace(false)
+final class SessionStatusEvent extends jdk.jfr.Event {
+
+    @Label("Worker")
+    String worker;
+
+    @Label("Session")
+    long session;
+
+    @Label("Status")
+    String status;
+}
@@ -0,0 +1,17 @@
+package elitr.worker;
+
+/**
+ * Status packets of a client session, the data packets go straight to the {@link ProcessingEventListener}.
+ */
+public enum Signal {
+    /** Send everything received so far. */
+    FLUSH,
+    /** The client is done, send everything and end the session. */
+    DONE,
+    /** The client failed, drop what's in flight and end the session. */
+    ERROR,
+    /** Drop what's in flight and end the session. */
+    RESET,
+    /** Any other packet, ignored. */
+    UNKNOWN
+}
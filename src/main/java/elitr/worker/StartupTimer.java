@@ -0,0 +1,85 @@
+package elitr.worker;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Timing breakdown of the worker startup. The phases may run in parallel and repeat (e.g. once per worker), each is
+ * reported with the time from its first start to its last end and, if it ran more than once, the sum of the runs.
+ */
+class StartupTimer {
+
+    private static final class Phase {
+        private int count;
+        private long first;
+        private long last;
+        private long total;
+    }
+
+    private final long start = System.nanoTime();
+    private final Map<String, Phase> phases = new LinkedHashMap<>();
+
+    <T> T time(String phase, Supplier<T> action){
+        long begin = System.nanoTime();
+        try {
+            return action.get();
+        } finally {
+            record(phase, begin, System.nanoTime());
+        }
+    }
+
+    void time(String phase, Runnable action){
+        time(phase, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    synchronized void record(String phase, long beginNanos, long endNanos){
+        Phase times = phases.computeIfAbsent(phase, name -> new Phase());
+        if(times.count == 0 || beginNanos - times.first < 0){
+            times.first = beginNanos;
+        }
+        if(times.count == 0 || endNanos - times.last > 0){
+            times.last = endNanos;
+        }
+        times.count++;
+        times.total += endNanos - beginNanos;
+    }
+
+    /**
+     * Adds time spent by several threads, known only as a sum.
+     */
+    synchronized void recordTotal(String phase, long totalNanos){
+        Phase times = phases.computeIfAbsent(phase, name -> new Phase());
+        times.count = -1;
+        times.total += totalNanos;
+    }
+
+    synchronized String report(){
+        StringBuilder report = new StringBuilder("Started in ").append(millis(System.nanoTime() - start))
+                .append(" ms:");
+        String separator = " ";
+        for(Map.Entry<String, Phase> entry: phases.entrySet()){
+            Phase times = entry.getValue();
+            report.append(separator).append(entry.getKey()).append(' ');
+            if(times.count < 0){
+                report.append(millis(times.total)).append(" ms in total");
+            }else {
+                report.append(millis(times.last - times.first)).append(" ms");
+                if(times.count > 1){
+                    report.append(" (").append(times.count).append(" times, ").append(millis(times.total))
+                            .append(" ms in total)");
+                }
+            }
+            separator = ", ";
+        }
+        return report.toString();
+    }
+
+    private static long millis(long nanos){
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+}
@@ -1,28 +1,27 @@
 package elitr.worker;
 
 import java.io.IOException;
-import java.net.InetAddress;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import cz.cuni.mff.ufal.LindatTranslationClient;
 import cz.cuni.mff.ufal.Translator;
-import it.pervoice.eubridge.mcloud.MCloudDataType;
+import cz.cuni.mff.ufal.metrics.Counter;
+import cz.cuni.mff.ufal.metrics.Metrics;
+import cz.cuni.mff.ufal.metrics.MetricsExporter;
 import it.pervoice.eubridge.mcloud.MCloudException;
-import it.pervoice.eubridge.mcloud.jni.MCloudPacket;
-import it.pervoice.eubridge.mcloud.jni.MCloudQueue;
-import it.pervoice.eubridge.mcloud.jni.MCloudWorker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.management.JMException;
+
 public class Worker {
     private static final Logger log  = LoggerFactory.getLogger(Worker.class.getName());
 
@@ -32,33 +31,75 @@ public class Worker {
     private static final String serviceType = "mt";
     private static final String inOutType = "text";
 
-    private MCloudWorker mWorker;
-    private MCloudQueue procQueue;
-    private MCloudQueue sendQueue;
+    private static final Counter sessions = Metrics.counter("worker_sessions_total", "Client sessions accepted");
+
+    private WorkerTransport transport;
+    // true while new clients would only slow the running sessions down
+    private final BooleanSupplier saturated;
+    private ProcessingEventListener processingListener;
+    private final String name;
+    // sessions served by this worker so far
+    private long session;
+    private volatile boolean busy;
+    private volatile boolean draining;
+    private volatile long idleSince = System.nanoTime();
+    // called once the worker is connected for the first time
+    private volatile Runnable onConnected;
 
     public Worker (String name, String translatorSrcLang, String inputFingerprint, String outputFingerprint) throws MCloudException {
-        /*
-        Without synchronized this odd thing appears:
-        This machine has 4available processors.
-        [main] INFO elitr.worker.Worker - Using 2 threads
-        JMCloud native library loaded!
-        JMCloud native library loaded!
-        Codec not found!
-        ERROR (src/MCloud.c,2107): Setting audio encoder codec=RPCM samplerate=16000 bitrate=0 channels=1
-         */
-        synchronized (MCloudWorker.class) {
-            mWorker = new MCloudWorker(name);
+        this(name, translatorSrcLang, inputFingerprint, Collections.singletonList(outputFingerprint));
+    }
+
+    /**
+     * Registers a service for each of the outputFingerprints, the input is received once and translated into all of
+     * them.
+     */
+    public Worker (String name, String translatorSrcLang, String inputFingerprint, List<String> outputFingerprints) throws MCloudException {
+        this(name, translatorSrcLang, inputFingerprint, outputFingerprints, null);
+    }
+
+    /**
+     * @param modelName model translating the input instead of the language pairs, null to use the pairs
+     */
+    public Worker (String name, String translatorSrcLang, String inputFingerprint, List<String> outputFingerprints,
+                   String modelName) throws MCloudException {
+        this(name, new MCloudTransport(name), ProcessingEventListener.sharedTranslator(),
+                () -> LindatTranslationClient.shared().isSaturated(), translatorSrcLang, inputFingerprint,
+                outputFingerprints, modelName);
+    }
+
+    /**
+     * Lets the worker run without MCloud, e.g. over an {@link InMemoryTransport} in tests and benchmarks.
+     */
+    public Worker (String name, WorkerTransport transport, Translator translator, String translatorSrcLang,
+                   String inputFingerprint, List<String> outputFingerprints) throws MCloudException {
+        this(name, transport, translator, translatorSrcLang, inputFingerprint, outputFingerprints, null);
+    }
+
+    public Worker (String name, WorkerTransport transport, Translator translator, String translatorSrcLang,
+                   String inputFingerprint, List<String> outputFingerprints, String modelName) throws MCloudException {
+        this(name, transport, translator, () -> false, translatorSrcLang, inputFingerprint, outputFingerprints,
+                modelName);
+    }
+
+    /**
+     * @param saturated tells the worker to stop accepting clients for a while, e.g. when the translator sheds load
+     */
+    public Worker (String name, WorkerTransport transport, Translator translator, BooleanSupplier saturated,
+                   String translatorSrcLang, String inputFingerprint, List<String> outputFingerprints,
+                   String modelName) throws MCloudException {
+        this.name = name;
+        this.transport = transport;
+        this.saturated = saturated;
+        for (String outputFingerprint : outputFingerprints) {
+            log.info("Adding service: name=" + name + " service=" + serviceType + " inputFP=" + inputFingerprint
+                    + " inputType=" + inOutType + " outputFP=" + outputFingerprint + " outputType=" + inOutType);
+            transport.addService(name, serviceType, inputFingerprint, outputFingerprint);
         }
-        log.info("Adding service: name=" + name + " service=" + serviceType + " inputFP=" + inputFingerprint
-                + " inputType=" + inOutType + " outputFP=" + outputFingerprint + " outputType=" + inOutType);
-        mWorker.addService(name, serviceType, inputFingerprint, MCloudDataType.valueOf(inOutType),
-                outputFingerprint, MCloudDataType.valueOf(inOutType), null);
-        procQueue = mWorker.getProcessingQueue();
-        sendQueue = mWorker.getSendingQueue();
         log.info("Setting listeners to processing queue and sending queue");
-        ProcessingEventListener manager = new ProcessingEventListener(mWorker, translatorSrcLang, outputFingerprint);
-        procQueue.addGlobalListener(manager);
-        sendQueue.addGlobalListener(new SendingEventListener(manager));
+        processingListener = new ProcessingEventListener(transport, translator, translatorSrcLang,
+                outputFingerprints, modelName);
+        transport.setListener(processingListener);
     }
 
 
@@ -72,10 +113,69 @@ public class Worker {
 
         //log.info("Using " + nThreads + " threads");
 
+        StartupTimer startup = new StartupTimer();
+        // none of this needs the MCloud constructor lock, it runs while the workers set up their MCloud side, which
+        // waits for the translator only after its native constructor
+        CompletableFuture.runAsync(() -> startup.time("metrics", Worker::startMetrics));
+        CompletableFuture.runAsync(() -> startup.time("translator", ProcessingEventListener::sharedTranslator));
+
+        Properties props = startup.time("fingerprints mapping",
+                () -> loadFingerprintsMapping("input_fingerprints_mapping.properties"));
+
+        int minWorkers = Integer.parseInt(Optional.ofNullable(System.getenv("WORKERS_MIN")).orElse("1"));
+        int maxWorkers = Integer.parseInt(Optional.ofNullable(System.getenv("WORKERS_MAX")).orElse(String.valueOf(minWorkers)));
+        long idleSeconds = Long.parseLong(Optional.ofNullable(System.getenv("WORKER_IDLE_SECONDS")).orElse("300"));
+        boolean virtualThreads = Boolean.parseBoolean(Optional.ofNullable(System.getenv("VIRTUAL_THREADS")).orElse("false"));
+        boolean multiTarget = Boolean.parseBoolean(Optional.ofNullable(System.getenv("MULTI_TARGET")).orElse("false"));
+        boolean modelWorkers = Boolean.parseBoolean(Optional.ofNullable(System.getenv("MODEL_WORKERS")).orElse("false"));
+        WorkerPool pool = new WorkerPool(host, port, minWorkers, maxWorkers, idleSeconds, virtualThreads,
+                () -> LindatTranslationClient.shared().isSaturated());
+
+        // instant with CAPABILITIES_SNAPSHOT_PATH, the snapshot is revalidated in the background
+        Set<Map.Entry<String, String>> languagePairs = startup.time("capabilities",
+                () -> LindatTranslationClient.shared().getAvailableLanguagePairs());
+        if (multiTarget) {
+            // one registration per source, every packet is translated into all its targets
+            Map<String, List<String>> targets = new TreeMap<>();
+            for (Map.Entry<String, String> entry : languagePairs) {
+                targets.computeIfAbsent(entry.getKey(), src -> new ArrayList<>()).add(entry.getValue());
+            }
+            for (Map.Entry<String, List<String>> entry : targets.entrySet()) {
+                String src = entry.getKey();
+                String mapped_src = (String)props.getOrDefault(src, src);
+                pool.addSource(src, mapped_src, entry.getValue());
+            }
+        } else {
+            for (Map.Entry<String, String> entry : languagePairs) {
+                String src = entry.getKey();
+                String mapped_src = (String)props.getOrDefault(src, src);
+                String tgt = entry.getValue();
+                pool.addPair(src, mapped_src, tgt);
+            }
+        }
+
+        if (modelWorkers) {
+            // model=inputFingerprint outputFingerprint, the models have no fingerprints of their own
+            Properties models = loadFingerprintsMapping("model_fingerprints_mapping.properties");
+            for (String model : LindatTranslationClient.shared().getAvailableModels()) {
+                String[] fingerprints = models.getProperty(model, "").trim().split("\\s+");
+                if (fingerprints.length != 2) {
+                    log.info("No fingerprints for model " + model + " in model_fingerprints_mapping.properties,"
+                            + " not serving it");
+                    continue;
+                }
+                pool.addModel(model, fingerprints[0], fingerprints[1]);
+            }
+        }
+
+        pool.run(startup);
+    }
+
+    private static Properties loadFingerprintsMapping(String fileName) {
         Path selfPath = Paths.get(Worker.class.getProtectionDomain().getCodeSource().getLocation().getPath());
 
         Properties props = new Properties();
-        Path propPath = Paths.get(selfPath.getParent().toAbsolutePath().toString(),"input_fingerprints_mapping.properties");
+        Path propPath = Paths.get(selfPath.getParent().toAbsolutePath().toString(), fileName);
         if(Files.exists(propPath)){
             try {
                 props.load(Files.newBufferedReader(propPath));
@@ -83,93 +183,176 @@ public class Worker {
                 log.error("Error loading " + propPath.toAbsolutePath(), e);
             }
         }else{
-            log.info("Input fingreprints mapping file not found " + propPath.toAbsolutePath());
+            log.info("Fingerprints mapping file not found " + propPath.toAbsolutePath());
         }
+        return props;
+    }
 
+    /**
+     * Metrics are always available over JMX, over HTTP in the Prometheus format only if $METRICS_PORT is set.
+     */
+    private static void startMetrics() {
+        try {
+            MetricsExporter.registerJmx();
+        } catch (JMException e) {
+            log.error("Error registering the metrics MBean", e);
+        }
+        String metricsPort = System.getenv("METRICS_PORT");
+        if(metricsPort != null){
+            try {
+                MetricsExporter.startHttp(Integer.parseInt(metricsPort));
+                log.info("Serving metrics on port " + metricsPort);
+            } catch (IOException e) {
+                log.error("Error starting the metrics endpoint on port " + metricsPort, e);
+            }
+        }
+    }
 
-        List<Callable<Void>> callables = new LinkedList<>();
-
-        Translator translator = new LindatTranslationClient();
-        for (Map.Entry<String, String> entry : translator.getAvailableLanguagePairs()) {
-            String src = entry.getKey();
-            String mapped_src = (String)props.getOrDefault(src, src);
-            String tgt = entry.getValue();
-
-            Callable<Void> callable = () -> {
-                String workerName = String.format("LindatTranslationWorker-%s-%s-%s", InetAddress.getLocalHost().getHostName(),
-                                ProcessHandle.current().pid(), Thread.currentThread().getId());
-                Worker worker = new Worker(workerName, src, mapped_src, tgt);
-                try{
-                    worker.start(host, port);
-                }catch (MCloudException e){
-                    log.error("Error during processing. " + e.getMessage());
-                }finally {
-                    worker.stop();
-                }
-                return null;
-            };
-            callables.add(callable);
+    /**
+     * Serves clients until drained or interrupted, then disconnects.
+     */
+    public void run(String host, int port) {
+        try {
+            start(host, port);
+        } catch (MCloudException e) {
+            log.error("Error during processing. " + e.getMessage());
+        } finally {
+            try {
+                stop();
+            } catch (MCloudException e) {
+                log.error("Error stopping the worker. " + e.getMessage());
+            }
         }
+    }
+
+    boolean isBusy() {
+        return busy;
+    }
+
+    boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * @return System.nanoTime() at the end of the last session
+     */
+    long getIdleSince() {
+        return idleSince;
+    }
 
-        ExecutorService executorService = Executors.newFixedThreadPool(callables.size());
-        executorService.invokeAll(callables);
+    /**
+     * @param onConnected called once the worker is connected for the first time
+     */
+    void setOnConnected(Runnable onConnected) {
+        this.onConnected = onConnected;
+    }
+
+    /**
+     * Makes the worker exit once it's done with the current session, or the current waitForClient times out.
+     */
+    public void drain() {
+        draining = true;
     }
 
     private void start(String host, int port) throws MCloudException {
 
         connect(host, port);
 
-        while (!Thread.interrupted()) {
+        while (!Thread.interrupted() && !draining) {
+            if (saturated.getAsBoolean()) {
+                // the sessions already running would only get slower, let the mediator pick another worker
+                log.info("Translator is saturated, not accepting clients for a while");
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                continue;
+            }
+            if (ProcessingEventListener.isMemoryExhausted()) {
+                // a new session would only wait for the memory budget
+                log.info("Memory budget nearly used up, not accepting clients for a while");
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                continue;
+            }
             log.info("Waiting for clients");
             try {
-                mWorker.waitForClient();
+                if (!transport.waitForClient()) {
+                    continue;
+                }
+                busy = true;
                 log.info("Client request accepted ");
+                sessions.increment();
+                processingListener.sessionStarted(name, ++session);
             } catch (MCloudException e) {
                 log.info("WaitForClient error... timed out?");
                 connect(host, port);
                 continue;
             }
 
-            MCloudPacket pkt = null;
+            Signal signal = null;
             boolean proceed = true;
-            // please notice that if it's a DATA packet getNextPacketOrProcessAsync will process it
-            while (proceed && ((pkt = mWorker.getNextPacketOrProcessAsync()) != null)) {
-                switch (pkt.getType()) {
-                    case STATUS_FLUSH:
+            while (proceed && ((signal = transport.nextSignal()) != null)) {
+                SessionStatusEvent event = new SessionStatusEvent();
+                event.begin();
+                switch (signal) {
+                    case FLUSH:
                         log.info("FLUSH received");
                         log.info("Wait until all packages in processing queue has been processed");
-                        procQueue.waitFinish(false);
+                        transport.waitProcessingFinish(false);
+                        processingListener.awaitPending();
                         log.info("Tell the next Worker to flush too");
-                        mWorker.sendFlush();
+                        transport.sendFlush();
                         break;
-                    case STATUS_DONE:
+                    case DONE:
                         log.info("DONE received");
                         log.info("Wait until all packages in processing queue has been processed");
-                        procQueue.waitFinish(true);
+                        transport.waitProcessingFinish(true);
+                        processingListener.awaitPending();
                         log.info("Wait until all packages in sending queue has been sent");
-                        sendQueue.waitFinish(true);
+                        transport.waitSendingFinish(true);
                         log.info("Tell the next Worker there are no more data to be received");
-                        mWorker.sendDone();
+                        transport.sendDone();
                         log.info("DONE sent");
+                        processingListener.resetSession();
                         proceed = false;
                         break;
-                    case STATUS_ERROR:
+                    case ERROR:
                         log.info("ERROR received");
                         log.info("Stop processing packages immediately, and reset queue.");
-                        procQueue.breakQueue();
+                        // unblocks handleData if it waits for the reorder window, then drops what it handed over
+                        processingListener.discardPending();
+                        transport.breakProcessing();
+                        processingListener.discardPending();
                         proceed = false;
                         break;
-                    case STATUS_RESET:
+                    case RESET:
                         log.info("RESET received");
                         log.info("Stop processing packages immediately, and reset queue.");
-                        procQueue.breakQueue();
+                        // unblocks handleData if it waits for the reorder window, then drops what it handed over
+                        processingListener.discardPending();
+                        transport.breakProcessing();
+                        processingListener.discardPending();
                         proceed = false;
                         break;
                     default:
-                        log.warn("Received unknown message: " + pkt);
+                        log.warn("Received unknown message: " + signal);
                         break;
                 }
+                event.end();
+                if (event.shouldCommit()) {
+                    event.worker = name;
+                    event.session = session;
+                    event.status = signal.name();
+                    event.commit();
+                }
             }
+            busy = false;
+            idleSince = System.nanoTime();
         }
     }
 
@@ -177,7 +360,12 @@ public class Worker {
         while (!Thread.interrupted()) {
             try {
                 log.info("Connecting to MCloud: " + host + ":" + port);
-                mWorker.connect(host, port);
+                transport.connect(host, port);
+                Runnable connected = onConnected;
+                if (connected != null) {
+                    onConnected = null;
+                    connected.run();
+                }
                 break;
             } catch (MCloudException e) {
                 log.warn("Error connecting to MCloud. Retrying in a moment... [" + e.getMessage() + "]");
@@ -192,9 +380,8 @@ public class Worker {
     }
 
     private void stop() throws MCloudException {
-        log.error("wtf", new Throwable("wtf"));
         log.info("Stopping worker...");
-        mWorker.disconnect();
-        mWorker = null;
+        transport.disconnect();
+        transport = null;
     }
 }
@@ -0,0 +1,255 @@
+package elitr.worker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Runs between minWorkers and maxWorkers {@link Worker} instances per language pair (or per source language with
+ * all its targets, see {@link #addSource(String, String, List)}, or per model, see
+ * {@link #addModel(String, String, String)}). Once a second it checks every pair: when all its workers are serving a
+ * client another one is started (unless the translator is saturated), when a worker has been idle for idleSeconds and
+ * there are more than minWorkers it's drained. A drained worker exits when its
+ * waitForClient returns (times out or gets a client, which it serves first), MCloud has no way to interrupt the wait.
+ * When creating a worker fails, the pair waits before the next attempt, twice as long after every failure in a row
+ * (up to a minute).
+ *
+ * With virtual threads the blocking MCloud calls still occupy a carrier thread (they are native), so the scheduler
+ * parallelism is raised to fit all the workers unless jdk.virtualThreadScheduler.parallelism is set.
+ */
+public class WorkerPool {
+
+    private static final Logger log = LoggerFactory.getLogger(WorkerPool.class.getName());
+    private static final long CHECK_MILLIS = 1000;
+    private static final long MAX_RETRY_MILLIS = 60000;
+
+    private static class Pair {
+        private final String translatorSrcLang;
+        private final String inputFingerprint;
+        private final List<String> outputFingerprints;
+        // null for language pairs
+        private final String modelName;
+        private final List<Worker> workers = new CopyOnWriteArrayList<>();
+        private final AtomicInteger starting = new AtomicInteger();
+        // worker creations failed in a row, no new workers are started before retryAt (a System.nanoTime() value)
+        private volatile int failures;
+        private volatile long retryAt;
+
+        private Pair(String translatorSrcLang, String inputFingerprint, List<String> outputFingerprints,
+                     String modelName) {
+            this.translatorSrcLang = translatorSrcLang;
+            this.inputFingerprint = inputFingerprint;
+            this.outputFingerprints = outputFingerprints;
+            this.modelName = modelName;
+        }
+
+        @Override
+        public String toString() {
+            if (modelName != null) {
+                return "model:" + modelName + "(" + inputFingerprint + "-" + outputFingerprints.get(0) + ")";
+            }
+            return translatorSrcLang + "(" + inputFingerprint + ")-" + String.join(",", outputFingerprints);
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final int minWorkers;
+    private final int maxWorkers;
+    private final long idleNanos;
+    private final boolean virtualThreads;
+    private final BooleanSupplier saturated;
+    private final List<Pair> pairs = new ArrayList<>();
+    private ExecutorService executor;
+    private StartupTimer startup;
+    // initial workers not connected (or failed) yet, the startup is reported when it drops to 0
+    private final AtomicInteger unconnected = new AtomicInteger();
+    // initial workers not spawned yet, only touched by the rebalancing thread
+    private int initialSpawns;
+
+    /**
+     * @param saturated true while no more workers should be started
+     */
+    public WorkerPool(String host, int port, int minWorkers, int maxWorkers, long idleSeconds,
+                      boolean virtualThreads, BooleanSupplier saturated){
+        if(minWorkers < 1 || maxWorkers < minWorkers){
+            throw new IllegalArgumentException("Need 1 <= minWorkers <= maxWorkers.");
+        }
+        this.host = host;
+        this.port = port;
+        this.minWorkers = minWorkers;
+        this.maxWorkers = maxWorkers;
+        this.saturated = saturated;
+        this.idleNanos = TimeUnit.SECONDS.toNanos(idleSeconds);
+        this.virtualThreads = virtualThreads;
+    }
+
+    public void addPair(String translatorSrcLang, String inputFingerprint, String outputFingerprint){
+        pairs.add(new Pair(translatorSrcLang, inputFingerprint, Collections.singletonList(outputFingerprint), null));
+    }
+
+    /**
+     * Adds workers that receive the input once and translate it into all the outputFingerprints.
+     */
+    public void addSource(String translatorSrcLang, String inputFingerprint, List<String> outputFingerprints){
+        pairs.add(new Pair(translatorSrcLang, inputFingerprint, new ArrayList<>(outputFingerprints), null));
+    }
+
+    /**
+     * Adds workers that translate with the model, the models share their requests in flight, see
+     * {@link cz.cuni.mff.ufal.WorkStealingTranslator}.
+     */
+    public void addModel(String modelName, String inputFingerprint, String outputFingerprint){
+        pairs.add(new Pair(inputFingerprint, inputFingerprint, Collections.singletonList(outputFingerprint),
+                modelName));
+    }
+
+    /**
+     * Starts minWorkers workers for every pair and keeps adjusting their number until interrupted.
+     */
+    public void run() throws InterruptedException {
+        run(null);
+    }
+
+    /**
+     * Like {@link #run()}, logs the startup timing once the initial workers are connected.
+     */
+    void run(StartupTimer startup) throws InterruptedException {
+        this.startup = startup;
+        unconnected.set(startup != null ? pairs.size() * minWorkers : 0);
+        initialSpawns = unconnected.get();
+        executor = newExecutor(virtualThreads, pairs.size() * maxWorkers);
+        log.info("Running " + minWorkers + " to " + maxWorkers + " workers for each of " + pairs.size() + " pairs");
+        try {
+            while (!Thread.interrupted()) {
+                for (Pair pair : pairs) {
+                    rebalance(pair);
+                }
+                Thread.sleep(CHECK_MILLIS);
+            }
+        } finally {
+            for (Pair pair : pairs) {
+                pair.workers.forEach(Worker::drain);
+            }
+            executor.shutdown();
+        }
+    }
+
+    private void rebalance(Pair pair){
+        int active = pair.starting.get();
+        int busy = 0;
+        Worker longestIdle = null;
+        for (Worker worker : pair.workers) {
+            if (worker.isDraining()) {
+                continue;
+            }
+            active++;
+            if (worker.isBusy()) {
+                busy++;
+            } else if (longestIdle == null || worker.getIdleSince() - longestIdle.getIdleSince() < 0) {
+                longestIdle = worker;
+            }
+        }
+        boolean retrying = pair.failures > 0 && System.nanoTime() - pair.retryAt < 0;
+        if (active < minWorkers) {
+            // the first start, or some workers died
+            for (int i = active; i < minWorkers && !retrying; i++) {
+                spawn(pair);
+            }
+        } else if (busy == active && pair.starting.get() == 0 && active < maxWorkers && !retrying
+                && !saturated.getAsBoolean() && !ProcessingEventListener.isMemoryExhausted()) {
+            log.info("All " + active + " workers of " + pair + " are busy, starting another one");
+            spawn(pair);
+        } else if (active > minWorkers && longestIdle != null
+                && System.nanoTime() - longestIdle.getIdleSince() > idleNanos) {
+            log.info("Draining an idle worker of " + pair + ", " + (active - 1) + " remain");
+            longestIdle.drain();
+        }
+    }
+
+    private void spawn(Pair pair){
+        boolean initial = initialSpawns > 0;
+        if (initial) {
+            initialSpawns--;
+        }
+        pair.starting.incrementAndGet();
+        executor.submit(() -> {
+            Worker worker;
+            try {
+                String workerName = String.format("LindatTranslationWorker-%s-%s-%s",
+                        InetAddress.getLocalHost().getHostName(), ProcessHandle.current().pid(),
+                        Thread.currentThread().getId());
+                long creating = System.nanoTime();
+                worker = new Worker(workerName, pair.translatorSrcLang, pair.inputFingerprint,
+                        pair.outputFingerprints, pair.modelName);
+                long created = System.nanoTime();
+                if (initial) {
+                    startup.record("worker creation", creating, created);
+                    worker.setOnConnected(() -> connected(created));
+                }
+                pair.failures = 0;
+                pair.workers.add(worker);
+            } catch (Exception e) {
+                int failures = pair.failures + 1;
+                long retryMillis = Math.min(CHECK_MILLIS << Math.min(failures - 1, 16), MAX_RETRY_MILLIS);
+                pair.retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryMillis);
+                pair.failures = failures;
+                log.error("Error creating a worker for " + pair + ", retrying in " + retryMillis + " ms", e);
+                if (initial) {
+                    // reported without it, the replacement isn't an initial worker
+                    initialDone();
+                }
+                return null;
+            } finally {
+                pair.starting.decrementAndGet();
+            }
+            try {
+                worker.run(host, port);
+            } finally {
+                pair.workers.remove(worker);
+            }
+            return null;
+        });
+    }
+
+    private void connected(long created){
+        startup.record("mediator connect", created, System.nanoTime());
+        initialDone();
+    }
+
+    private void initialDone(){
+        if (unconnected.decrementAndGet() == 0) {
+            startup.recordTotal("MCloud constructor lock wait", MCloudTransport.getConstructorWaitNanos());
+            startup.recordTotal("MCloud constructor", MCloudTransport.getConstructorNanos());
+            log.info(startup.report());
+        }
+    }
+
+    private static ExecutorService newExecutor(boolean virtualThreads, int maxThreads){
+        if (virtualThreads) {
+            if (System.getProperty("jdk.virtualThreadScheduler.parallelism") == null) {
+                System.setProperty("jdk.virtualThreadScheduler.parallelism",
+                        String.valueOf(Math.max(maxThreads, Runtime.getRuntime().availableProcessors())));
+                System.setProperty("jdk.virtualThreadScheduler.maxPoolSize",
+                        String.valueOf(Math.max(maxThreads, 256)));
+            }
+            try {
+                // Java 21+, looked up reflectively so the worker still runs on 11
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                log.warn("Virtual threads are not available in this JVM, using platform threads");
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+}
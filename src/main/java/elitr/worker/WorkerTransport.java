@@ -0,0 +1,58 @@
+package elitr.worker;
+
+import it.pervoice.eubridge.mcloud.MCloudException;
+
+/**
+ * What a {@link Worker} needs from MCloud: the service registration, client sessions, the processing queue (feeding
+ * the data packets to the {@link ProcessingEventListener} in order) and the sending queue. {@link MCloudTransport}
+ * talks to the mediator, {@link InMemoryTransport} simulates the clients in the same JVM.
+ */
+public interface WorkerTransport extends PacketSender {
+
+    void addService(String name, String serviceType, String inputFingerprint, String outputFingerprint)
+            throws MCloudException;
+
+    /**
+     * Sets the listener the processing queue hands the data packets to.
+     */
+    void setListener(ProcessingEventListener listener);
+
+    void connect(String host, int port) throws MCloudException;
+
+    /**
+     * Blocks until a client is accepted.
+     *
+     * @return false if none came for a while, so the caller can check whether to go on
+     */
+    boolean waitForClient() throws MCloudException;
+
+    /**
+     * Hands the data packets of the session over to the processing queue until a status packet comes.
+     *
+     * @return the status, null when the session is over
+     */
+    Signal nextSignal() throws MCloudException;
+
+    /**
+     * Blocks until the processing queue has passed all the data packets to the listener.
+     *
+     * @param last whether the session is done
+     */
+    void waitProcessingFinish(boolean last) throws MCloudException;
+
+    /**
+     * Drops the data packets the listener hasn't got yet.
+     */
+    void breakProcessing() throws MCloudException;
+
+    /**
+     * Blocks until every packet given to {@link #sendPacketAsync} is sent.
+     */
+    void waitSendingFinish(boolean last) throws MCloudException;
+
+    void sendFlush() throws MCloudException;
+
+    void sendDone() throws MCloudException;
+
+    void disconnect() throws MCloudException;
+}
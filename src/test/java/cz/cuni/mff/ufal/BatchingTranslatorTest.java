@@ -0,0 +1,172 @@
+package cz.cuni.mff.ufal;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BatchingTranslatorTest {
+
+    /**
+     * Translates to upper case and records the batches with the trace context they were sent with.
+     */
+    private static class RecordingTranslator implements Translator {
+        private final List<List<String>> batches = Collections.synchronizedList(new ArrayList<>());
+        private final List<String> sessions = Collections.synchronizedList(new ArrayList<>());
+        private final List<Long> deadlines = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public String translate(String text, String sourceLanguage, String targetLanguage) {
+            return text.toUpperCase();
+        }
+
+        @Override
+        public String translate(String text, String modelName) {
+            return text.toUpperCase();
+        }
+
+        @Override
+        public CompletableFuture<String> translateAsync(String text, String sourceLanguage, String targetLanguage) {
+            return CompletableFuture.completedFuture(text.toUpperCase());
+        }
+
+        @Override
+        public CompletableFuture<String> translateAsync(String text, String modelName) {
+            return CompletableFuture.completedFuture(text.toUpperCase());
+        }
+
+        @Override
+        public CompletableFuture<List<String>> translateBatchAsync(List<String> texts, String sourceLanguage,
+                                                                   String targetLanguage) {
+            batches.add(new ArrayList<>(texts));
+            sessions.add(TraceContext.get());
+            deadlines.add(TraceContext.getDeadline());
+            List<String> translations = new ArrayList<>();
+            for (String text : texts) {
+                translations.add(text.toUpperCase());
+            }
+            return CompletableFuture.completedFuture(translations);
+        }
+
+        @Override
+        public Set<Map.Entry<String, String>> getAvailableLanguagePairs() {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public Set<String> getAvailableModels() {
+            return Collections.emptySet();
+        }
+    }
+
+    @Test
+    public void collectsTheTextsOfTheWindow() throws Exception {
+        RecordingTranslator delegate = new RecordingTranslator();
+        BatchingTranslator batching = new BatchingTranslator(delegate, 50, 16, 4000);
+        CompletableFuture<String> first = batching.translateAsync("a", "en", "cs");
+        CompletableFuture<String> other = batching.translateAsync("x", "en", "de");
+        CompletableFuture<String> second = batching.translateAsync("b", "en", "cs");
+        assertFalse(first.isDone());
+        assertEquals("B", second.get(5, TimeUnit.SECONDS));
+        assertEquals("A", first.join());
+        assertEquals("X", other.get(5, TimeUnit.SECONDS));
+        // one batch per language pair
+        assertEquals(2, delegate.batches.size());
+        assertTrue(delegate.batches.contains(Arrays.asList("a", "b")));
+        assertTrue(delegate.batches.contains(Collections.singletonList("x")));
+    }
+
+    @Test
+    public void sendsAFullBatchRightAway() {
+        RecordingTranslator delegate = new RecordingTranslator();
+        BatchingTranslator batching = new BatchingTranslator(delegate, 60000, 2, 10);
+        batching.translateAsync("a", "en", "cs");
+        assertTrue(delegate.batches.isEmpty());
+        assertEquals("B", batching.translateAsync("b", "en", "cs").join());
+        assertEquals(Collections.singletonList(Arrays.asList("a", "b")), delegate.batches);
+        // the characters would exceed the limit, the batch so far goes first
+        batching.translateAsync("cccccc", "en", "cs");
+        CompletableFuture<String> last = batching.translateAsync("dddddd", "en", "cs");
+        assertEquals(Collections.singletonList("cccccc"), delegate.batches.get(1));
+        assertFalse(last.isDone());
+    }
+
+    @Test
+    public void failsEveryTextOfAFailedBatch() throws Exception {
+        RecordingTranslator delegate = new RecordingTranslator() {
+            @Override
+            public CompletableFuture<List<String>> translateBatchAsync(List<String> texts, String sourceLanguage,
+                                                                       String targetLanguage) {
+                return CompletableFuture.failedFuture(new TranslationException("down"));
+            }
+        };
+        BatchingTranslator batching = new BatchingTranslator(delegate, 10, 16, 4000);
+        CompletableFuture<String> first = batching.translateAsync("a", "en", "cs");
+        CompletableFuture<String> second = batching.translateAsync("b", "en", "cs");
+        try {
+            second.get(5, TimeUnit.SECONDS);
+            fail("translated by a failed batch");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TranslationException);
+        }
+        assertTrue(first.isCompletedExceptionally());
+    }
+
+    @Test
+    public void failsEveryTextWhenTranslationsAreMissing() throws Exception {
+        RecordingTranslator delegate = new RecordingTranslator() {
+            @Override
+            public CompletableFuture<List<String>> translateBatchAsync(List<String> texts, String sourceLanguage,
+                                                                       String targetLanguage) {
+                return CompletableFuture.completedFuture(Collections.singletonList("A"));
+            }
+        };
+        BatchingTranslator batching = new BatchingTranslator(delegate, 10, 16, 4000);
+        CompletableFuture<String> first = batching.translateAsync("a", "en", "cs");
+        CompletableFuture<String> second = batching.translateAsync("b", "en", "cs");
+        try {
+            second.get(5, TimeUnit.SECONDS);
+            fail("translated without a translation");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TranslationException);
+        }
+        assertTrue(first.isCompletedExceptionally());
+    }
+
+    @Test
+    public void sendsTheBatchWithTheEarliestDeadline() throws Exception {
+        RecordingTranslator delegate = new RecordingTranslator();
+        BatchingTranslator batching = new BatchingTranslator(delegate, 50, 16, 4000);
+        try {
+            TraceContext.set("w/1", 200L);
+            CompletableFuture<String> first = batching.translateAsync("a", "en", "cs");
+            TraceContext.set("w/2", 100L);
+            CompletableFuture<String> second = batching.translateAsync("b", "en", "cs");
+            TraceContext.set("w/2", null);
+            CompletableFuture<String> third = batching.translateAsync("c", "en", "cs");
+            assertEquals("C", third.get(5, TimeUnit.SECONDS));
+            assertEquals("A", first.join());
+            assertEquals("B", second.join());
+            assertEquals(1, delegate.batches.size());
+            assertNull(delegate.sessions.get(0));
+            assertEquals(Long.valueOf(100), delegate.deadlines.get(0));
+
+            TraceContext.set("w/3", null);
+            batching.translateAsync("d", "en", "cs");
+            batching.translateAsync("e", "en", "cs").get(5, TimeUnit.SECONDS);
+            assertEquals("w/3", delegate.sessions.get(1));
+            assertNull(delegate.deadlines.get(1));
+        } finally {
+            TraceContext.clear();
+        }
+    }
+}
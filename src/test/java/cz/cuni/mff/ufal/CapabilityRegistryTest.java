@@ -0,0 +1,71 @@
+package cz.cuni.mff.ufal;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CapabilityRegistryTest {
+
+    private static final Capabilities EN_CS = new Capabilities(
+            Collections.singleton(new AbstractMap.SimpleEntry<>("en", "cs")), Collections.singleton("en-cs"));
+    private static final Capabilities EN_DE = new Capabilities(
+            Collections.singleton(new AbstractMap.SimpleEntry<>("en", "de")), Collections.emptySet());
+
+    @Test
+    public void startsFromTheSnapshotAndRevalidates() throws IOException, InterruptedException {
+        Path snapshot = Files.createTempDirectory("capabilities").resolve("capabilities.tsv");
+        assertEquals(EN_CS, new CapabilityRegistry(() -> EN_CS, 0, snapshot, "http://a").get());
+        assertTrue(Files.exists(snapshot));
+
+        CountDownLatch release = new CountDownLatch(1);
+        CapabilityRegistry registry = new CapabilityRegistry(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return EN_DE;
+        }, 0, snapshot, "http://a");
+        // doesn't wait for the loader
+        assertEquals(EN_CS, registry.get());
+        release.countDown();
+        for (int i = 0; i < 100 && !registry.get().equals(EN_DE); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(EN_DE, registry.get());
+        assertEquals(EN_DE, new CapabilityRegistry(() -> Capabilities.EMPTY, 0, snapshot, "http://a").get());
+    }
+
+    @Test
+    public void ignoresTheSnapshotOfAnotherKey() throws IOException {
+        Path snapshot = Files.createTempDirectory("capabilities").resolve("capabilities.tsv");
+        new CapabilityRegistry(() -> EN_CS, 0, snapshot, "http://a").get();
+        assertEquals(EN_DE, new CapabilityRegistry(() -> EN_DE, 0, snapshot, "http://b").get());
+    }
+
+    @Test
+    public void keepsTheSnapshotWhenTheRefreshFails() throws IOException, InterruptedException {
+        Path snapshot = Files.createTempDirectory("capabilities").resolve("capabilities.tsv");
+        new CapabilityRegistry(() -> EN_CS, 0, snapshot, "http://a").get();
+        CapabilityRegistry registry = new CapabilityRegistry(() -> Capabilities.EMPTY, 0, snapshot, "http://a");
+        assertEquals(EN_CS, registry.get());
+        registry.refresh();
+        assertEquals(EN_CS, registry.get());
+        assertEquals(EN_CS, new CapabilityRegistry(() -> Capabilities.EMPTY, 0, snapshot, "http://a").get());
+
+        // e.g. the models could not be listed
+        CapabilityRegistry failing = new CapabilityRegistry(() -> null, 0, snapshot, "http://a");
+        assertEquals(EN_CS, failing.get());
+        failing.refresh();
+        assertEquals(EN_CS, failing.get());
+        assertEquals(EN_CS, new CapabilityRegistry(() -> EN_DE, 0, snapshot, "http://a").get());
+    }
+}
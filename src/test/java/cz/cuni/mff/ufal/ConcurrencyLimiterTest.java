@@ -0,0 +1,134 @@
+package cz.cuni.mff.ufal;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ConcurrencyLimiterTest {
+
+    @Test
+    public void queuesOverTheLimit() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test-queue", 2, 1, 2, 10, 60000, 0);
+        ConcurrencyLimiter.Permit first = limiter.acquire().join();
+        limiter.acquire().join();
+        CompletableFuture<ConcurrencyLimiter.Permit> third = limiter.acquire();
+        assertFalse(third.isDone());
+        assertTrue(limiter.isSaturated());
+        first.release(false);
+        assertNotNull(third.join());
+        assertFalse(limiter.isSaturated());
+        assertEquals(2, limiter.getInFlight());
+    }
+
+    @Test
+    public void saturatedOnlyWhenRequestsKeepWaiting() throws InterruptedException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test-saturated", 1, 1, 1, 10, 60000, 100);
+        ConcurrencyLimiter.Permit first = limiter.acquire().join();
+        CompletableFuture<ConcurrencyLimiter.Permit> second = limiter.acquire();
+        assertFalse(limiter.isSaturated());
+        first.release(false);
+        // the queue was empty for a moment, the wait starts over
+        CompletableFuture<ConcurrencyLimiter.Permit> third = limiter.acquire();
+        assertFalse(limiter.isSaturated());
+        Thread.sleep(150);
+        assertTrue(limiter.isSaturated());
+        second.join().release(false);
+        third.join().release(false);
+        assertFalse(limiter.isSaturated());
+    }
+
+    @Test
+    public void comparesTheLatencyOfTextsOfSimilarLength() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test-sizes", 10, 1, 10, 10, 60000);
+        long millis = TimeUnit.MILLISECONDS.toNanos(1);
+        for (int i = 0; i < 20; i++) {
+            respond(limiter, 20, 5 * millis);
+        }
+        // a long text takes longer, that's not overload
+        for (int i = 0; i < 20; i++) {
+            respond(limiter, 2000, 200 * millis);
+            respond(limiter, 20, 5 * millis);
+        }
+        assertEquals(10, limiter.getLimit());
+        respond(limiter, 20, 50 * millis);
+        assertEquals(9, limiter.getLimit());
+        respond(limiter, 2000, 900 * millis);
+        assertEquals(8, limiter.getLimit());
+    }
+
+    private static void respond(ConcurrencyLimiter limiter, int characters, long latencyNanos) {
+        limiter.acquire(characters, null).join();
+        limiter.release(latencyNanos, characters, false);
+    }
+
+    @Test
+    public void shedsWhenTheQueueIsFull() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test-shed", 1, 1, 1, 1, 60000);
+        limiter.acquire().join();
+        CompletableFuture<ConcurrencyLimiter.Permit> queued = limiter.acquire();
+        CompletableFuture<ConcurrencyLimiter.Permit> shed = limiter.acquire();
+        assertFalse(queued.isDone());
+        try {
+            shed.join();
+            fail();
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+    }
+
+    @Test
+    public void shedsStaleRequests() throws InterruptedException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test-stale", 1, 1, 1, 10, 10);
+        ConcurrencyLimiter.Permit permit = limiter.acquire().join();
+        CompletableFuture<ConcurrencyLimiter.Permit> stale = limiter.acquire();
+        Thread.sleep(50);
+        permit.release(false);
+        assertTrue(stale.isCompletedExceptionally());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void servesTheEarliestDeadlineFirst() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test-deadline", 1, 1, 1, 10, 60000);
+        ConcurrencyLimiter.Permit permit = limiter.acquire().join();
+        long now = System.nanoTime();
+        CompletableFuture<ConcurrencyLimiter.Permit> late = limiter.acquire(now + TimeUnit.SECONDS.toNanos(30));
+        CompletableFuture<ConcurrencyLimiter.Permit> noDeadline = limiter.acquire();
+        CompletableFuture<ConcurrencyLimiter.Permit> urgent = limiter.acquire(now + TimeUnit.SECONDS.toNanos(10));
+        permit.release(false);
+        assertTrue(urgent.isDone());
+        assertFalse(late.isDone());
+        urgent.join().release(false);
+        assertTrue(late.isDone());
+        assertFalse(noDeadline.isDone());
+        assertTrue(limiter.acquire(now - 1).isCompletedExceptionally());
+    }
+
+    @Test
+    public void adaptsTheLimit() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test-adapt", 10, 2, 20, 10, 60000);
+        for (int i = 0; i < 10; i++) {
+            limiter.acquire().join().release(true);
+        }
+        assertEquals(3, limiter.getLimit());
+        for (int i = 0; i < 100; i++) {
+            // those over the limit wait for the earlier releases, a pause (GC, JIT) may cut the limit any time
+            List<CompletableFuture<ConcurrencyLimiter.Permit>> permits = new ArrayList<>();
+            for (int j = 0; j < 8; j++) {
+                permits.add(limiter.acquire());
+            }
+            for (CompletableFuture<ConcurrencyLimiter.Permit> permit : permits) {
+                permit.join().release(false);
+            }
+        }
+        assertTrue(limiter.getLimit() > 3);
+        assertTrue(limiter.getLimit() <= 20);
+    }
+}
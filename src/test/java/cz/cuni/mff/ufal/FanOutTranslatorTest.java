@@ -0,0 +1,70 @@
+package cz.cuni.mff.ufal;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+public class FanOutTranslatorTest {
+
+    private static final String TEXT = "First sentence here. Second one! Third one? Fourth sentence is the longest one. "
+            + "Fifth.";
+
+    @Test
+    public void splitsIntoAtMostParallelismPieces() {
+        for (int parallelism = 2; parallelism <= 6; parallelism++) {
+            List<String> pieces = new FanOutTranslator(null, 10, parallelism).split(TEXT);
+            assertTrue(pieces.size() >= 2);
+            assertTrue(pieces.size() <= parallelism);
+            assertEquals(TEXT.strip(), String.join(" ", pieces));
+        }
+        assertEquals(Arrays.asList("First sentence here. Second one! Third one?",
+                "Fourth sentence is the longest one. Fifth."), new FanOutTranslator(null, 10, 2).split(TEXT));
+    }
+
+    @Test
+    public void keepsShortTextsWhole() {
+        assertNull(new FanOutTranslator(null, TEXT.length() + 1, 4).split(TEXT));
+        assertNull(new FanOutTranslator(null, 10, 4).split("Just one long sentence without an end"));
+        assertNull(new FanOutTranslator(null, 10, 1).split(TEXT));
+    }
+
+    @Test
+    public void streamsThePiecesInOrder() {
+        PendingTranslator pieces = new PendingTranslator();
+        List<String> parts = Collections.synchronizedList(new ArrayList<>());
+        List<String> sources = Collections.synchronizedList(new ArrayList<>());
+        CompletableFuture<Void> done = new FanOutTranslator(pieces, 10, 3)
+                .translateStreaming(TEXT, "en", "cs", (part, sourceStart, sourceEnd) -> {
+                    parts.add(part);
+                    sources.add(TEXT.substring(sourceStart, sourceEnd));
+                });
+        assertEquals(3, pieces.pending.size());
+        pieces.pending.get(1).complete("2");
+        assertTrue(parts.isEmpty());
+        pieces.pending.get(0).complete("1");
+        assertEquals(Arrays.asList("1", "2"), parts);
+        assertFalse(done.isDone());
+        pieces.pending.get(2).complete("3");
+        assertTrue(done.isDone());
+        assertEquals(Arrays.asList("1", "2", "3"), parts);
+        assertEquals(pieces.texts, sources);
+    }
+
+    @Test
+    public void streamsShortTextsAsOnePart() {
+        PendingTranslator whole = new PendingTranslator();
+        List<String> spans = new ArrayList<>();
+        CompletableFuture<Void> done = new FanOutTranslator(whole, TEXT.length() + 1, 3)
+                .translateStreaming(TEXT, "en", "cs",
+                        (part, sourceStart, sourceEnd) -> spans.add(part + " " + sourceStart + "-" + sourceEnd));
+        whole.pending.get(0).complete("all");
+        assertTrue(done.isDone());
+        assertEquals(Collections.singletonList("all 0-" + TEXT.length()), spans);
+    }
+}
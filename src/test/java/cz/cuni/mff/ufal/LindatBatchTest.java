@@ -0,0 +1,98 @@
+package cz.cuni.mff.ufal;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Batched requests of {@link LindatTranslationClient} against a local stand-in for Lindat that translates every
+ * line to upper case with a segment per word, ending the last one with a newline like Lindat does.
+ */
+public class LindatBatchTest {
+
+    private HttpServer server;
+    private final AtomicInteger requests = new AtomicInteger();
+    // answers without the newline of the first line, so the lines can't be matched
+    private final AtomicBoolean mergeLines = new AtomicBoolean();
+
+    @Before
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 16);
+        server.createContext("/api/v1/languages", this::languages);
+        server.createContext("/api/v1/models", exchange -> respond(exchange, "{\"_links\": {\"models\": []}}"));
+        server.start();
+    }
+
+    @After
+    public void stop() {
+        server.stop(0);
+    }
+
+    private void languages(HttpExchange exchange) throws IOException {
+        if ("GET".equals(exchange.getRequestMethod())) {
+            respond(exchange, "{\"_links\": {\"languages\": [{\"source\": \"en\", \"target\": \"cs\"}]}}");
+            return;
+        }
+        requests.incrementAndGet();
+        String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.US_ASCII);
+        String text = URLDecoder.decode(body.substring(body.indexOf('=') + 1), StandardCharsets.UTF_8);
+        String[] lines = text.split("\n", -1);
+        List<String> segments = new ArrayList<>();
+        for (int i = 0; i < lines.length; i++) {
+            String[] words = lines[i].toUpperCase().split(" ");
+            for (int j = 0; j < words.length; j++) {
+                boolean newline = j == words.length - 1 && !(mergeLines.get() && i == 0 && lines.length > 1);
+                segments.add('"' + words[j] + (newline ? "\\n\"" : "\""));
+            }
+        }
+        respond(exchange, "[" + String.join(", ", segments) + "]");
+    }
+
+    private static void respond(HttpExchange exchange, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private LindatTranslationClient client() {
+        return new LindatTranslationClient("http://" + server.getAddress().getHostString() + ":"
+                + server.getAddress().getPort() + "/api/v1");
+    }
+
+    @Test
+    public void splitsTheResponseBackPerText() {
+        List<String> translations = client().translateBatchAsync(Arrays.asList("first one", "second", "third"),
+                "en", "cs").join();
+        assertEquals(Arrays.asList("FIRST ONE", "SECOND", "THIRD"), translations);
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void translatesOneByOneWhenTheLinesDontMatch() {
+        mergeLines.set(true);
+        List<String> translations = client().translateBatchAsync(Arrays.asList("first one", "second", "third"),
+                "en", "cs").join();
+        assertEquals(Arrays.asList("FIRST ONE", "SECOND", "THIRD"), translations);
+        // the batch and then every text alone
+        assertEquals(4, requests.get());
+    }
+}
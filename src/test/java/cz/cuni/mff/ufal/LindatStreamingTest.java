@@ -0,0 +1,111 @@
+package cz.cuni.mff.ufal;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Streamed requests of {@link LindatTranslationClient} against a local stand-in for Lindat that sends the translation
+ * of the first sentence and the rest only once the client passed the first one on.
+ */
+public class LindatStreamingTest {
+
+    private HttpServer server;
+    private final CountDownLatch firstPassed = new CountDownLatch(1);
+    private final AtomicInteger requests = new AtomicInteger();
+    // answers the next request with 500
+    private final AtomicBoolean failNext = new AtomicBoolean();
+
+    @Before
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 16);
+        server.createContext("/api/v1/languages", this::languages);
+        server.createContext("/api/v1/models", exchange -> respond(exchange, "{\"_links\": {\"models\": []}}"));
+        server.start();
+    }
+
+    @After
+    public void stop() {
+        server.stop(0);
+    }
+
+    private void languages(HttpExchange exchange) throws IOException {
+        if ("GET".equals(exchange.getRequestMethod())) {
+            respond(exchange, "{\"_links\": {\"languages\": [{\"source\": \"en\", \"target\": \"cs\"}]}}");
+            return;
+        }
+        exchange.getRequestBody().readAllBytes();
+        requests.incrementAndGet();
+        if (failNext.getAndSet(false)) {
+            exchange.sendResponseHeaders(500, -1);
+            exchange.close();
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write("[\"AHOJ.\", ".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            try {
+                firstPassed.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            out.write("\"JAK SE MAS?\\n\"]".getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void respond(HttpExchange exchange, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private LindatTranslationClient client() {
+        return new LindatTranslationClient("http://" + server.getAddress().getHostString() + ":"
+                + server.getAddress().getPort() + "/api/v1");
+    }
+
+    @Test
+    public void passesEveryLineOnAsItComes() {
+        List<String> parts = new CopyOnWriteArrayList<>();
+        String text = "Hello. How are you?";
+        client().translateStreaming(text, "en", "cs", (part, sourceStart, sourceEnd) -> {
+            parts.add(part + " " + text.substring(sourceStart, sourceEnd));
+            firstPassed.countDown();
+        }).orTimeout(10, TimeUnit.SECONDS).join();
+        assertEquals(Arrays.asList("AHOJ. Hello. ", "JAK SE MAS? How are you?"), parts);
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void translatesAgainWhenTheStreamFailsBeforeTheFirstPart() {
+        failNext.set(true);
+        firstPassed.countDown();
+        List<String> parts = new CopyOnWriteArrayList<>();
+        client().translateStreaming("Hello. How are you?", "en", "cs",
+                (part, sourceStart, sourceEnd) -> parts.add(part)).orTimeout(10, TimeUnit.SECONDS).join();
+        assertEquals(Arrays.asList("AHOJ. JAK SE MAS?"), parts);
+        assertEquals(2, requests.get());
+    }
+}
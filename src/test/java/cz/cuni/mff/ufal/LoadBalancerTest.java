@@ -0,0 +1,195 @@
+package cz.cuni.mff.ufal;
+
+import org.junit.Test;
+
+import javax.net.ssl.SSLSession;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class LoadBalancerTest {
+
+    private static final String SCOPE = "en-cs";
+
+    /**
+     * Only the status code matters to the hedging.
+     */
+    private static class StatusResponse implements HttpResponse<byte[]> {
+        private final int statusCode;
+
+        private StatusResponse(int statusCode) {
+            this.statusCode = statusCode;
+        }
+
+        @Override
+        public int statusCode() {
+            return statusCode;
+        }
+
+        @Override
+        public HttpRequest request() {
+            return null;
+        }
+
+        @Override
+        public Optional<HttpResponse<byte[]>> previousResponse() {
+            return Optional.empty();
+        }
+
+        @Override
+        public HttpHeaders headers() {
+            return HttpHeaders.of(Collections.emptyMap(), (name, value) -> true);
+        }
+
+        @Override
+        public byte[] body() {
+            return new byte[0];
+        }
+
+        @Override
+        public Optional<SSLSession> sslSession() {
+            return Optional.empty();
+        }
+
+        @Override
+        public URI uri() {
+            return null;
+        }
+
+        @Override
+        public HttpClient.Version version() {
+            return HttpClient.Version.HTTP_1_1;
+        }
+    }
+
+    private static List<Backend> backends(String test, int count) {
+        List<Backend> backends = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String apiUrl = "http://" + test + "-" + i;
+            backends.add(new Backend(apiUrl, new ConcurrencyLimiter(apiUrl, 10, 1, 10, 10, 60000), 0, 10));
+        }
+        return backends;
+    }
+
+    /**
+     * Records a request of the backend that took the given time.
+     */
+    private static void finish(LoadBalancer balancer, Backend backend, long millis, boolean failed) {
+        backend.start();
+        balancer.finish(backend, System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(millis), failed);
+    }
+
+    @Test
+    public void choosesTheCheaperOfTwo() {
+        List<Backend> backends = backends("p2c", 3);
+        LoadBalancer balancer = new LoadBalancer(backends, 0, 30, 3);
+        finish(balancer, backends.get(0), 10, false);
+        finish(balancer, backends.get(1), 20, false);
+        finish(balancer, backends.get(2), 40, false);
+        int[] chosen = new int[3];
+        for (int i = 0; i < 300; i++) {
+            chosen[backends.indexOf(balancer.choose(null, SCOPE))]++;
+        }
+        // the slowest never wins a pair, the fastest wins every pair it's in (2/3 of them)
+        assertEquals(0, chosen[2]);
+        assertTrue(Arrays.toString(chosen), chosen[0] > chosen[1]);
+        assertNotSame(backends.get(0), balancer.choose(backends.get(0), SCOPE));
+    }
+
+    @Test
+    public void ejectsAfterConsecutiveFailuresAtMostHalf() {
+        List<Backend> backends = backends("eject", 4);
+        LoadBalancer balancer = new LoadBalancer(backends, 2, 60, 100);
+        for (Backend backend : backends) {
+            finish(balancer, backend, 10, false);
+        }
+        finish(balancer, backends.get(0), 10, true);
+        assertFalse(backends.get(0).isEjected());
+        finish(balancer, backends.get(0), 10, true);
+        assertTrue(backends.get(0).isEjected());
+        finish(balancer, backends.get(1), 10, true);
+        finish(balancer, backends.get(1), 10, true);
+        assertTrue(backends.get(1).isEjected());
+        finish(balancer, backends.get(2), 10, true);
+        finish(balancer, backends.get(2), 10, true);
+        // half of them are out already
+        assertFalse(backends.get(2).isEjected());
+        for (int i = 0; i < 100; i++) {
+            Backend chosen = balancer.choose(null, SCOPE);
+            assertTrue(chosen == backends.get(2) || chosen == backends.get(3));
+        }
+    }
+
+    @Test
+    public void ejectsABackendSlowerThanTheMedian() {
+        List<Backend> backends = backends("slow", 3);
+        LoadBalancer balancer = new LoadBalancer(backends, 5, 60, 3);
+        finish(balancer, backends.get(1), 10, false);
+        finish(balancer, backends.get(2), 12, false);
+        finish(balancer, backends.get(0), 30, false);
+        assertFalse(backends.get(0).isEjected());
+        finish(balancer, backends.get(0), 200, false);
+        assertTrue(backends.get(0).isEjected());
+        assertFalse(backends.get(1).isEjected());
+    }
+
+    @Test
+    public void readmitsAndDoublesTheEjection() throws InterruptedException {
+        Backend backend = backends("readmit", 1).get(0);
+        long base = TimeUnit.MILLISECONDS.toNanos(100);
+        backend.eject(base);
+        assertTrue(backend.isEjected());
+        assertFalse(backend.readmit(5e6));
+        Thread.sleep(150);
+        assertFalse(backend.isEjected());
+        assertTrue(backend.readmit(5e6));
+        assertEquals(5e6, backend.getEwmaNanos(), 0);
+        assertFalse(backend.readmit(5e6));
+        // failed again right after coming back, out for 200 ms
+        backend.eject(base);
+        Thread.sleep(150);
+        assertTrue(backend.isEjected());
+        Thread.sleep(150);
+        assertFalse(backend.isEjected());
+    }
+
+    @Test
+    public void hedgeCompletesWithTheFirstGoodResponse() {
+        CompletableFuture<HttpResponse<byte[]>> result = new CompletableFuture<>();
+        AtomicInteger outstanding = new AtomicInteger(2);
+        LindatTranslationClient.completeHedged(result, outstanding, new StatusResponse(503), null, false);
+        assertFalse(result.isDone());
+        LindatTranslationClient.completeHedged(result, outstanding, new StatusResponse(200), null, true);
+        assertEquals(200, result.join().statusCode());
+
+        CompletableFuture<HttpResponse<byte[]>> won = new CompletableFuture<>();
+        outstanding.set(2);
+        LindatTranslationClient.completeHedged(won, outstanding, new StatusResponse(200), null, true);
+        LindatTranslationClient.completeHedged(won, outstanding, null, new IOException("late"), false);
+        assertEquals(200, won.join().statusCode());
+    }
+
+    @Test
+    public void hedgeFailsWhenAllResponsesFail() {
+        CompletableFuture<HttpResponse<byte[]>> result = new CompletableFuture<>();
+        AtomicInteger outstanding = new AtomicInteger(2);
+        LindatTranslationClient.completeHedged(result, outstanding, null, new IOException("first"), false);
+        assertFalse(result.isDone());
+        LindatTranslationClient.completeHedged(result, outstanding, new StatusResponse(429), null, true);
+        // the last one is passed on for the retry to decide
+        assertEquals(429, result.join().statusCode());
+    }
+}
@@ -0,0 +1,49 @@
+package cz.cuni.mff.ufal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Leaves every translation pending until the test completes it.
+ */
+class PendingTranslator implements Translator {
+    final List<CompletableFuture<String>> pending = new ArrayList<>();
+    final List<String> texts = new ArrayList<>();
+
+    @Override
+    public String translate(String text, String sourceLanguage, String targetLanguage) {
+        return translateAsync(text, sourceLanguage, targetLanguage).join();
+    }
+
+    @Override
+    public String translate(String text, String modelName) {
+        return translateAsync(text, modelName).join();
+    }
+
+    @Override
+    public CompletableFuture<String> translateAsync(String text, String sourceLanguage, String targetLanguage) {
+        return translateAsync(text, targetLanguage);
+    }
+
+    @Override
+    public synchronized CompletableFuture<String> translateAsync(String text, String modelName) {
+        CompletableFuture<String> translation = new CompletableFuture<>();
+        pending.add(translation);
+        texts.add(text);
+        return translation;
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> getAvailableLanguagePairs() {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public Set<String> getAvailableModels() {
+        return Collections.emptySet();
+    }
+}
@@ -0,0 +1,27 @@
+package cz.cuni.mff.ufal;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class SentencesTest {
+
+    @Test
+    public void splitsAfterTerminatorsFollowedByWhitespace() {
+        assertEquals(Arrays.asList("First one.", "Second?!", "\"Quoted.\"", "(Bracketed…)", "Unfinished"),
+                Sentences.split("  First one. Second?!  \"Quoted.\" (Bracketed…)\nUnfinished "));
+        assertEquals(Collections.singletonList("Version 1.2 is out."), Sentences.split("Version 1.2 is out."));
+        assertTrue(Sentences.split("   ").isEmpty());
+    }
+
+    @Test
+    public void tellsCompleteSentences() {
+        assertTrue(Sentences.isComplete("Done."));
+        assertTrue(Sentences.isComplete("Really?\" "));
+        assertFalse(Sentences.isComplete("Not yet"));
+        assertFalse(Sentences.isComplete(""));
+    }
+}
@@ -0,0 +1,92 @@
+package cz.cuni.mff.ufal;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TranslationCacheTest {
+
+    @Test
+    public void keyIgnoresWhitespace() {
+        assertEquals(TranslationCache.key("en-cs", "Hello  world "), TranslationCache.key("en-cs", " Hello\tworld"));
+        assertNotEquals(TranslationCache.key("en-cs", "Hello"), TranslationCache.key("en-de", "Hello"));
+    }
+
+    @Test
+    public void countsHitsAndMisses() {
+        TranslationCache cache = new TranslationCache(10, 1 << 20, 0);
+        assertNull(cache.get("a"));
+        cache.put("a", "A");
+        assertEquals("A", cache.get("a"));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void keepsFrequentEntries() {
+        TranslationCache cache = new TranslationCache(2, 1 << 20, 0);
+        for (int i = 0; i < 5; i++) {
+            cache.get("greeting");
+        }
+        cache.put("greeting", "Hello");
+        cache.get("name");
+        cache.get("name");
+        cache.put("name", "Name");
+        // seen only once, must not push out the frequent ones
+        cache.get("once");
+        cache.put("once", "Once");
+        assertEquals(2, cache.size());
+        assertEquals("Hello", cache.get("greeting"));
+        assertEquals("Name", cache.get("name"));
+        assertEquals(1, cache.getRejections());
+        assertEquals(0, cache.getEvictions());
+    }
+
+    @Test
+    public void evictsNothingWhenTheCandidateLosesToALaterVictim() {
+        // room for two small entries, the candidate needs both of them out
+        TranslationCache cache = new TranslationCache(100, 400, 0);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        for (int i = 0; i < 5; i++) {
+            cache.get("b");
+        }
+        cache.get("c");
+        cache.get("c");
+        cache.put("c", "C".repeat(71));
+        assertEquals(2, cache.size());
+        assertEquals("A", cache.get("a"));
+        assertEquals("B", cache.get("b"));
+        assertNull(cache.get("c"));
+        assertEquals(0, cache.getEvictions());
+        assertEquals(1, cache.getRejections());
+    }
+
+    @Test
+    public void keepsTheOldTranslationWhenAnUpdateIsRejected() {
+        TranslationCache cache = new TranslationCache(100, 400, 0);
+        for (int i = 0; i < 5; i++) {
+            cache.get("greeting");
+        }
+        cache.put("greeting", "Hello");
+        cache.put("x", "X");
+        // the bigger translation would need the frequent greeting out
+        cache.put("x", "X".repeat(59));
+        assertEquals("X", cache.get("x"));
+        assertEquals("Hello", cache.get("greeting"));
+        cache.put("x", "Y");
+        assertEquals("Y", cache.get("x"));
+        assertEquals(2, cache.size());
+        // too big for the cache at all
+        cache.put("x", "Z".repeat(1000));
+        assertEquals("Y", cache.get("x"));
+    }
+
+    @Test
+    public void respectsByteLimit() {
+        TranslationCache cache = new TranslationCache(100, 1000, 0);
+        cache.put("a", "x".repeat(1000));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.bytes());
+    }
+}
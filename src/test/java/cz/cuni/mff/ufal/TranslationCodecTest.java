@@ -0,0 +1,128 @@
+package cz.cuni.mff.ufal;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TranslationCodecTest {
+
+    private static final List<List<String>> RESPONSES = Arrays.asList(
+            Arrays.asList(),
+            Arrays.asList("Tohle je jednoduchý test.\n"),
+            Arrays.asList("První věta. ", "Druhá věta.\n", "Třetí řádek.\n"),
+            Arrays.asList("literal \\n in the middle\\n", "next\\n  two spaces"),
+            Arrays.asList("quotes \" and \\ and / and \t tab", "emoji 😀 and \u0001 control  "),
+            Arrays.asList("   ", "\n")
+    );
+
+    @Test
+    public void parseTranslationMatchesStringJoin() throws IOException {
+        TranslationCodec codec = TranslationCodec.get();
+        for (List<String> lines : RESPONSES) {
+            byte[] json = toJson(lines);
+            assertEquals(reference(lines), codec.parseTranslation(json));
+            assertEquals(reference(lines), codec.parseTranslation(new OneByteInputStream(json)));
+            assertEquals(reference(lines), codec.join(lines));
+        }
+    }
+
+    @Test
+    public void forEachLineReturnsDecodedLines() throws IOException {
+        TranslationCodec codec = TranslationCodec.get();
+        for (List<String> lines : RESPONSES) {
+            List<String> parsed = new ArrayList<>();
+            codec.forEachLine(new OneByteInputStream(toJson(lines)), parsed::add);
+            assertEquals(lines, parsed);
+            assertEquals(lines, codec.parseLines(toJson(lines)));
+        }
+    }
+
+    @Test
+    public void parsesUnicodeEscapes() throws IOException {
+        byte[] json = "[\"a\\u00e9\\ud83d\\ude00\"]".getBytes(StandardCharsets.UTF_8);
+        assertEquals("aé😀", TranslationCodec.get().parseTranslation(json));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsErrorObject() throws IOException {
+        TranslationCodec.get().parseTranslation("{\"message\": \"error\"}".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void encodeFormMatchesUrlEncoder() {
+        String[] texts = {"This is a simple test.", "Příliš žluťoučký kůň ~ 100% & co?",
+                "emoji 😀\nnew line", "lonely \uD83D surrogate", "*-._+="};
+        for (String text : texts) {
+            String expected = "input_text=" + URLEncoder.encode(text, StandardCharsets.UTF_8);
+            assertEquals(expected, new String(TranslationCodec.get().encodeForm(text), StandardCharsets.US_ASCII));
+        }
+    }
+
+    // the way the translation used to be built from the lines DslJson returned
+    private static String reference(List<String> lines) {
+        StringBuilder sb = new StringBuilder();
+        for (String line : lines) {
+            sb.append(line);
+            sb.append(' ');
+        }
+        return sb.toString().replace("\\n ", "\\n").stripTrailing();
+    }
+
+    private static byte[] toJson(List<String> lines) {
+        StringBuilder sb = new StringBuilder("[");
+        for (String line : lines) {
+            if (sb.length() > 1) {
+                sb.append(", ");
+            }
+            sb.append('"');
+            for (char c : line.toCharArray()) {
+                if (c == '"' || c == '\\') {
+                    sb.append('\\').append(c);
+                } else if (c == '\n') {
+                    sb.append("\\n");
+                } else if (c == '\t') {
+                    sb.append("\\t");
+                } else if (c < 0x20) {
+                    sb.append(String.format("\\u%04x", (int) c));
+                } else {
+                    sb.append(c);
+                }
+            }
+            sb.append('"');
+        }
+        return sb.append(']').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // makes the parser refill its buffer in the middle of every UTF-8 sequence and escape
+    private static class OneByteInputStream extends InputStream {
+        private final byte[] bytes;
+        private int pos;
+
+        private OneByteInputStream(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int read() {
+            return pos < bytes.length ? bytes[pos++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (pos >= bytes.length) {
+                return -1;
+            }
+            b[off] = bytes[pos++];
+            return 1;
+        }
+    }
+}
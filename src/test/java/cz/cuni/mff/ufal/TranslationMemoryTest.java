@@ -0,0 +1,102 @@
+package cz.cuni.mff.ufal;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+public class TranslationMemoryTest {
+
+    @Test
+    public void storesAndReopens() throws IOException {
+        Path directory = Files.createTempDirectory("memory");
+        String key = TranslationCache.key("en-cs", "This is a simple test.");
+        try (TranslationMemory memory = TranslationMemory.open(directory, 1 << 20)) {
+            assertNull(memory.get(key));
+            memory.put(key, "Tohle je jednoduchý test 😀.");
+            memory.put(TranslationCache.key("en-de", "This is a simple test."), "Das ist ein einfacher Test.");
+            assertEquals("Tohle je jednoduchý test 😀.", memory.get(key));
+            memory.put(key, "Toto je jednoduchý test.");
+            assertEquals("Toto je jednoduchý test.", memory.get(key));
+            assertEquals(2, memory.size());
+        }
+        try (TranslationMemory memory = TranslationMemory.open(directory, 1 << 20)) {
+            assertEquals("Toto je jednoduchý test.", memory.get(key));
+            assertEquals("Das ist ein einfacher Test.",
+                    memory.get(TranslationCache.key("en-de", "This  is a simple test.")));
+            assertNull(memory.get(TranslationCache.key("en-cs", "This is a simple test")));
+        }
+    }
+
+    @Test
+    public void compactsWhenFull() throws IOException {
+        Path directory = Files.createTempDirectory("memory");
+        try (TranslationMemory memory = TranslationMemory.open(directory, 8192)) {
+            for (int i = 0; i < 1000; i++) {
+                memory.put(TranslationCache.key("en-cs", "sentence " + i), "věta " + i);
+                assertEquals("věta " + i, memory.get(TranslationCache.key("en-cs", "sentence " + i)));
+            }
+            assertTrue(memory.bytes() <= 8192);
+            assertNull(memory.get(TranslationCache.key("en-cs", "sentence 0")));
+            // the newest ones were moved intact
+            for (int i = 990; i < 1000; i++) {
+                assertEquals("věta " + i, memory.get(TranslationCache.key("en-cs", "sentence " + i)));
+            }
+        }
+    }
+
+    @Test
+    public void writesOnTheWriterThread() throws IOException {
+        Path directory = Files.createTempDirectory("memory");
+        try (TranslationMemory memory = TranslationMemory.open(directory, 8192)) {
+            CompletableFuture<Void> last = null;
+            for (int i = 0; i < 300; i++) {
+                last = memory.putAsync(TranslationCache.key("en-cs", "sentence " + i), "věta " + i);
+            }
+            last.join();
+            assertEquals("věta 299", memory.get(TranslationCache.key("en-cs", "sentence 299")));
+            PendingTranslator delegate = new PendingTranslator();
+            TranslationMemoryTranslator translator = new TranslationMemoryTranslator(delegate, memory);
+            CompletableFuture<String> translation = translator.translateAsync("hello", "en", "cs");
+            delegate.pending.get(0).complete("ahoj");
+            assertEquals("ahoj", translation.join());
+            memory.putAsync(TranslationCache.key("en-cs", "flush"), "x").join();
+            assertEquals("ahoj", memory.get(TranslationCache.key("en-cs", "hello")));
+        }
+    }
+
+    @Test
+    public void recoversFromATornWrite() throws IOException {
+        Path directory = Files.createTempDirectory("memory");
+        long end;
+        try (TranslationMemory memory = TranslationMemory.open(directory, 1 << 16)) {
+            memory.put(TranslationCache.key("en-cs", "first"), "první");
+            end = memory.bytes();
+            memory.put(TranslationCache.key("en-cs", "second"), "druhá");
+        }
+        try (RandomAccessFile log = new RandomAccessFile(directory.resolve("memory.log").toFile(), "rw")) {
+            // damage the value of the second record
+            log.seek(recordEnd(end) - 1);
+            log.write('X');
+        }
+        try (TranslationMemory memory = TranslationMemory.open(directory, 1 << 16)) {
+            assertEquals("první", memory.get(TranslationCache.key("en-cs", "first")));
+            assertNull(memory.get(TranslationCache.key("en-cs", "second")));
+            assertEquals(1, memory.size());
+            memory.put(TranslationCache.key("en-cs", "third"), "třetí");
+            assertEquals("třetí", memory.get(TranslationCache.key("en-cs", "third")));
+        }
+    }
+
+    // the record header has 20 bytes, the value is at the end
+    private static long recordEnd(long start) {
+        return start + 20 + TranslationCache.key("en-cs", "second").getBytes(StandardCharsets.UTF_8).length
+                + "druhá".getBytes(StandardCharsets.UTF_8).length;
+    }
+}
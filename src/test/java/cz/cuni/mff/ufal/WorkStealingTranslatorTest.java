@@ -0,0 +1,89 @@
+package cz.cuni.mff.ufal;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+public class WorkStealingTranslatorTest {
+
+    @Test
+    public void idleSlotsStealFromTheBusyModel() {
+        PendingTranslator delegate = new PendingTranslator();
+        WorkStealingTranslator translator = new WorkStealingTranslator(delegate, 2);
+        // the second model gets its slot before the first one has any work
+        translator.translateAsync("b1", "b");
+        assertEquals(1, delegate.pending.size());
+        delegate.pending.get(0).complete("B1");
+        List<CompletableFuture<String>> results = new ArrayList<>();
+        for (int i = 1; i <= 4; i++) {
+            results.add(translator.translateAsync("a" + i, "a"));
+        }
+        // the slot of model b is idle, so it takes a request of a
+        assertEquals(3, delegate.pending.size());
+        assertEquals(2, translator.getQueued("a"));
+        delegate.pending.get(1).complete("A1");
+        assertEquals("A1", results.get(0).join());
+        assertEquals(Collections.singletonList("a3"), delegate.texts.subList(3, 4));
+    }
+
+    @Test
+    public void aModelGetsItsSlotBackFirst() {
+        PendingTranslator delegate = new PendingTranslator();
+        WorkStealingTranslator translator = new WorkStealingTranslator(delegate, 2);
+        translator.translateAsync("a1", "a");
+        translator.translateAsync("b1", "b");
+        delegate.pending.get(1).complete("B1");
+        for (int i = 2; i <= 5; i++) {
+            translator.translateAsync("a" + i, "a");
+        }
+        // a1 in the slot of a, a2 stolen by the slot of b
+        assertEquals(3, delegate.pending.size());
+        translator.translateAsync("b2", "b");
+        assertEquals(3, translator.getQueued("a"));
+        assertEquals(1, translator.getQueued("b"));
+        // the slot of b frees up and serves b although a has the longer queue
+        delegate.pending.get(2).complete("A2");
+        assertEquals("b2", delegate.texts.get(3));
+        assertEquals(0, translator.getQueued("b"));
+    }
+
+    @Test
+    public void drainsRequestsFailingRightAwayWithoutRecursion() {
+        PendingTranslator delegate = new PendingTranslator() {
+            @Override
+            public synchronized CompletableFuture<String> translateAsync(String text, String modelName) {
+                if (pending.isEmpty()) {
+                    return super.translateAsync(text, modelName);
+                }
+                // e.g. the circuit is open
+                return CompletableFuture.failedFuture(new TranslationException("open"));
+            }
+        };
+        WorkStealingTranslator translator = new WorkStealingTranslator(delegate, 1);
+        translator.translateAsync("first", "a");
+        List<CompletableFuture<String>> results = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            results.add(translator.translateAsync("queued", "a"));
+        }
+        assertEquals(100000, translator.getQueued("a"));
+        delegate.pending.get(0).complete("FIRST");
+        assertEquals(0, translator.getQueued("a"));
+        for (CompletableFuture<String> result : results) {
+            assertTrue(result.isCompletedExceptionally());
+        }
+    }
+
+    @Test
+    public void passesLanguagePairsThrough() {
+        PendingTranslator delegate = new PendingTranslator();
+        WorkStealingTranslator translator = new WorkStealingTranslator(delegate, 1);
+        translator.translateAsync("a1", "a");
+        translator.translateAsync("text", "en", "cs");
+        assertEquals(2, delegate.pending.size());
+    }
+}
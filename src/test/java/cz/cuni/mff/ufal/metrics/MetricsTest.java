@@ -0,0 +1,90 @@
+package cz.cuni.mff.ufal.metrics;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+
+    @Test
+    public void quantileIsTheUpperBoundOfItsBucket() {
+        Histogram histogram = Metrics.histogram("test_quantile_seconds", "Quantiles");
+        for (int i = 0; i < 90; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(700));
+        }
+        for (int i = 0; i < 9; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(40));
+        }
+        histogram.record(TimeUnit.SECONDS.toNanos(100));
+        assertEquals(100, histogram.getCount());
+        assertEquals(0.001, histogram.getQuantileUpperBound(0.5), 0);
+        assertEquals(0.001, histogram.getQuantileUpperBound(0.9), 0);
+        assertEquals(0.05, histogram.getQuantileUpperBound(0.91), 0);
+        assertEquals(0.05, histogram.getQuantileUpperBound(0.99), 0);
+        assertEquals(Double.POSITIVE_INFINITY, histogram.getQuantileUpperBound(1), 0);
+        // a value on a bound belongs to its bucket
+        Histogram bounds = Metrics.histogram("test_bound_seconds", "Bounds");
+        bounds.record(TimeUnit.MILLISECONDS.toNanos(10));
+        assertEquals(0.01, bounds.getQuantileUpperBound(0.5), 0);
+    }
+
+    @Test
+    public void writesTheExpositionFormat() {
+        Metrics.counter("test_format_total", "Counted \"things\"", "scope", "en-cs").add(3);
+        Metrics.counter("test_format_total", "Counted \"things\"", "scope", "say \"hi\"").increment();
+        Metrics.histogram("test_format_seconds", "Timed").record(TimeUnit.MILLISECONDS.toNanos(3));
+        AtomicLong hits = new AtomicLong(7);
+        Metrics.counter("test_format_hits_total", "Hits", hits::get);
+        Metrics.gauge("test_format_queued", "Queued", () -> 2);
+        String text = Metrics.toPrometheusText();
+
+        assertEquals(1, occurrences(text, "# HELP test_format_total "));
+        assertTrue(text, text.contains("# TYPE test_format_total counter\n"
+                + "test_format_total{scope=\"en-cs\"} 3\n"
+                + "test_format_total{scope=\"say \\\"hi\\\"\"} 1\n"));
+        assertTrue(text, text.contains("# TYPE test_format_seconds histogram\n"
+                + "test_format_seconds_bucket{le=\"0.001\"} 0\n"
+                + "test_format_seconds_bucket{le=\"0.0025\"} 0\n"
+                + "test_format_seconds_bucket{le=\"0.005\"} 1\n"));
+        assertTrue(text, text.contains("test_format_seconds_bucket{le=\"+Inf\"} 1\n"
+                + "test_format_seconds_sum 0.003\n"
+                + "test_format_seconds_count 1\n"));
+        assertTrue(text, text.contains("# TYPE test_format_hits_total counter\ntest_format_hits_total 7\n"));
+        hits.incrementAndGet();
+        assertTrue(Metrics.toPrometheusText().contains("test_format_hits_total 8\n"));
+        assertTrue(text, text.contains("# TYPE test_format_queued gauge\ntest_format_queued 2\n"));
+        for (String line : text.split("\n")) {
+            assertTrue(line, line.startsWith("# HELP ") || line.startsWith("# TYPE ")
+                    || line.matches("[a-z_]+(\\{.*})? [0-9.E+-]+|[a-z_]+(\\{.*})? (NaN|\\+Inf)"));
+        }
+    }
+
+    @Test
+    public void collectsTheJmxAttributes() {
+        Histogram histogram = Metrics.histogram("test_jmx_seconds", "Timed", "backend", "a");
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(20));
+        Map<String, Object> values = new HashMap<>();
+        histogram.collect(values);
+        assertEquals(1L, values.get("test_jmx_seconds_count{backend=\"a\"}"));
+        assertEquals(0.025, values.get("test_jmx_seconds_p50_upper_bound{backend=\"a\"}"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnotherTypeUnderTheSameName() {
+        Metrics.counter("test_type_clash", "Counter");
+        Metrics.histogram("test_type_clash", "Histogram");
+    }
+
+    private static int occurrences(String text, String part) {
+        int count = 0;
+        for (int i = text.indexOf(part); i >= 0; i = text.indexOf(part, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+}
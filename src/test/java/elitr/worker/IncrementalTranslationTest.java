@@ -0,0 +1,134 @@
+package elitr.worker;
+
+import cz.cuni.mff.ufal.TranslationCache;
+import cz.cuni.mff.ufal.TranslationMemory;
+import cz.cuni.mff.ufal.Translator;
+import it.pervoice.eubridge.mcloud.jni.MCloudTextPacket;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class IncrementalTranslationTest {
+
+    /**
+     * Translates to upper case and records the sentences sent.
+     */
+    private static class RecordingTranslator implements Translator {
+        private final List<List<String>> batches = new ArrayList<>();
+        private int singles;
+
+        @Override
+        public String translate(String text, String sourceLanguage, String targetLanguage) {
+            return text.toUpperCase();
+        }
+
+        @Override
+        public String translate(String text, String modelName) {
+            return text.toUpperCase();
+        }
+
+        @Override
+        public CompletableFuture<String> translateAsync(String text, String sourceLanguage, String targetLanguage) {
+            singles++;
+            return CompletableFuture.completedFuture(text.toUpperCase());
+        }
+
+        @Override
+        public CompletableFuture<String> translateAsync(String text, String modelName) {
+            singles++;
+            return CompletableFuture.completedFuture(text.toUpperCase());
+        }
+
+        @Override
+        public CompletableFuture<List<String>> translateBatchAsync(List<String> texts, String sourceLanguage,
+                                                                   String targetLanguage) {
+            batches.add(new ArrayList<>(texts));
+            return CompletableFuture.completedFuture(texts.stream().map(String::toUpperCase)
+                    .collect(Collectors.toList()));
+        }
+
+        @Override
+        public Set<Map.Entry<String, String>> getAvailableLanguagePairs() {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public Set<String> getAvailableModels() {
+            return Collections.emptySet();
+        }
+    }
+
+    private static MCloudTextPacket packet(long start, String text) {
+        return new MCloudTextPacket(new Date(start), new Date(start + 1000), 0, "en", text);
+    }
+
+    @Test
+    public void reusesTheCompletedSentencesOfTheSameUtterance() {
+        RecordingTranslator translator = new RecordingTranslator();
+        IncrementalTranslation incremental = new IncrementalTranslation(translator, "en", "cs");
+        assertEquals("HELLO THERE. HOW ARE", incremental.translate(packet(0, "Hello there. How are")).join());
+        assertEquals("HELLO THERE. HOW ARE YOU? FINE",
+                incremental.translate(packet(0, "Hello there. How are you? Fine")).join());
+        assertEquals(Arrays.asList(Arrays.asList("Hello there.", "How are"), Arrays.asList("How are you?", "Fine")),
+                translator.batches);
+        // a revised sentence and everything after it is translated again
+        incremental.translate(packet(0, "Hello there. Who are you? Fine")).join();
+        assertEquals(Arrays.asList("Who are you?", "Fine"), translator.batches.get(2));
+    }
+
+    @Test
+    public void startsOverOnANewUtteranceOrReset() {
+        RecordingTranslator translator = new RecordingTranslator();
+        IncrementalTranslation incremental = new IncrementalTranslation(translator, "en", "cs");
+        incremental.translate(packet(0, "Hello there. How are")).join();
+        incremental.translate(packet(5000, "Hello there. How are")).join();
+        assertEquals(Arrays.asList("Hello there.", "How are"), translator.batches.get(1));
+        incremental.reset();
+        incremental.translate(packet(5000, "Hello there. How are")).join();
+        assertEquals(Arrays.asList("Hello there.", "How are"), translator.batches.get(2));
+    }
+
+    @Test
+    public void sendsOnlyTheSentencesNotCachedAsOneBatch() {
+        RecordingTranslator client = new RecordingTranslator();
+        Translator translator = ProcessingEventListener.createTranslator(client, null,
+                new TranslationCache(100, 1 << 20, 0));
+        IncrementalTranslation incremental = new IncrementalTranslation(translator, "en", "cs");
+        incremental.translate(packet(0, "Hello there. How are")).join();
+        assertEquals("HELLO THERE. HOW ARE YOU?",
+                incremental.translate(packet(5000, "Hello there. How are you?")).join());
+        assertEquals(Arrays.asList(Arrays.asList("Hello there.", "How are"), Collections.singletonList("How are you?")),
+                client.batches);
+        assertEquals(0, client.singles);
+    }
+
+    @Test
+    public void readsTheTranslationMemoryInBatches() throws Exception {
+        Path directory = Files.createTempDirectory("memory");
+        RecordingTranslator client = new RecordingTranslator();
+        try (TranslationMemory memory = TranslationMemory.open(directory, 1 << 16)) {
+            Translator translator = ProcessingEventListener.createTranslator(client, memory, null);
+            new IncrementalTranslation(translator, "en", "cs").translate(packet(0, "Hello there. How are")).join();
+        }
+        try (TranslationMemory memory = TranslationMemory.open(directory, 1 << 16)) {
+            Translator translator = ProcessingEventListener.createTranslator(client, memory, null);
+            assertEquals("HELLO THERE. HOW ARE YOU?", new IncrementalTranslation(translator, "en", "cs")
+                    .translate(packet(0, "Hello there. How are you?")).join());
+        }
+        assertEquals(Arrays.asList(Arrays.asList("Hello there.", "How are"), Collections.singletonList("How are you?")),
+                client.batches);
+        assertEquals(0, client.singles);
+    }
+}
@@ -0,0 +1,77 @@
+package elitr.worker;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+public class MemoryBudgetTest {
+
+    @Test
+    public void blocksUntilReleased() throws Exception {
+        MemoryBudget jvm = new MemoryBudget(null, 0);
+        MemoryBudget session = new MemoryBudget(jvm, 100);
+        assertTrue(session.acquire(80));
+        CompletableFuture<Boolean> second = acquireAsync(session, 40);
+        try {
+            second.get(200, TimeUnit.MILLISECONDS);
+            fail("acquired over the limit");
+        } catch (TimeoutException expected) {
+        }
+        session.release(80);
+        assertTrue(second.get(5, TimeUnit.SECONDS));
+        assertEquals(40, session.getUsed());
+        assertEquals(40, jvm.getUsed());
+        assertEquals(80, session.getPeak());
+    }
+
+    @Test
+    public void parentLimitsAllSessions() throws Exception {
+        MemoryBudget jvm = new MemoryBudget(null, 100);
+        MemoryBudget first = new MemoryBudget(jvm, 0);
+        MemoryBudget second = new MemoryBudget(jvm, 0);
+        assertTrue(first.acquire(60));
+        // a session holding nothing always gets one packet
+        assertTrue(second.acquire(60));
+        assertTrue(jvm.isAbove(0.9));
+        CompletableFuture<Boolean> third = acquireAsync(second, 10);
+        try {
+            third.get(200, TimeUnit.MILLISECONDS);
+            fail("acquired over the parent limit");
+        } catch (TimeoutException expected) {
+        }
+        first.release(60);
+        assertTrue(third.get(5, TimeUnit.SECONDS));
+        assertFalse(jvm.isAbove(0.9));
+    }
+
+    @Test
+    public void resetWakesUpWaiting() throws Exception {
+        MemoryBudget session = new MemoryBudget(null, 10);
+        assertTrue(session.acquire(10));
+        CompletableFuture<Boolean> waiting = acquireAsync(session, 10);
+        Thread.sleep(100);
+        session.reset();
+        assertFalse(waiting.get(5, TimeUnit.SECONDS));
+        assertEquals(10, session.getUsed());
+        session.force(20);
+        assertEquals(30, session.getUsed());
+    }
+
+    private static CompletableFuture<Boolean> acquireAsync(MemoryBudget budget, long bytes){
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        Thread thread = new Thread(() -> {
+            try {
+                result.complete(budget.acquire(bytes));
+            } catch (InterruptedException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return result;
+    }
+}
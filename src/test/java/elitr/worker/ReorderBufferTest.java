@@ -0,0 +1,105 @@
+package elitr.worker;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ReorderBufferTest {
+
+    @Test
+    public void emitsInOrder() throws InterruptedException {
+        List<String> emitted = new ArrayList<>();
+        ReorderBuffer<String> buffer = new ReorderBuffer<>(4, emitted::add);
+        long first = buffer.reserve();
+        long second = buffer.reserve();
+        long third = buffer.reserve();
+        buffer.emit(third, "c");
+        buffer.complete(third);
+        buffer.emit(second, "b1");
+        buffer.emit(second, "b2");
+        assertTrue(emitted.isEmpty());
+        buffer.emit(first, "a");
+        assertEquals(Arrays.asList("a"), emitted);
+        buffer.complete(first);
+        assertEquals(Arrays.asList("a", "b1", "b2"), emitted);
+        buffer.emit(second, "b3");
+        buffer.complete(second);
+        assertEquals(Arrays.asList("a", "b1", "b2", "b3", "c"), emitted);
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void skipsItemsWithoutResults() throws InterruptedException {
+        List<String> emitted = new ArrayList<>();
+        ReorderBuffer<String> buffer = new ReorderBuffer<>(4, emitted::add);
+        long first = buffer.reserve();
+        long second = buffer.reserve();
+        buffer.emit(second, "b");
+        buffer.complete(second);
+        buffer.complete(first);
+        assertEquals(Arrays.asList("b"), emitted);
+    }
+
+    @Test
+    public void blocksWhileTheWindowIsFull() throws InterruptedException {
+        ReorderBuffer<String> buffer = new ReorderBuffer<>(2, result -> {});
+        long first = buffer.reserve();
+        buffer.reserve();
+        CountDownLatch reserved = new CountDownLatch(1);
+        Thread thread = new Thread(() -> {
+            try {
+                buffer.reserve();
+                reserved.countDown();
+            } catch (InterruptedException ignored) {
+            }
+        });
+        thread.start();
+        assertFalse(reserved.await(100, TimeUnit.MILLISECONDS));
+        buffer.complete(first);
+        assertTrue(reserved.await(5, TimeUnit.SECONDS));
+        thread.join();
+    }
+
+    @Test
+    public void resetDropsPendingResults() throws InterruptedException {
+        List<String> emitted = new ArrayList<>();
+        ReorderBuffer<String> buffer = new ReorderBuffer<>(4, emitted::add);
+        long first = buffer.reserve();
+        long second = buffer.reserve();
+        buffer.emit(second, "b");
+        assertEquals(1, buffer.reset());
+        buffer.emit(first, "a");
+        buffer.complete(first);
+        buffer.complete(second);
+        assertTrue(emitted.isEmpty());
+        buffer.awaitEmpty();
+        long third = buffer.reserve();
+        buffer.emit(third, "c");
+        assertEquals(Arrays.asList("c"), emitted);
+    }
+
+    @Test
+    public void cancelDropsTheItem() throws InterruptedException {
+        List<String> emitted = new ArrayList<>();
+        ReorderBuffer<String> buffer = new ReorderBuffer<>(4, emitted::add);
+        long first = buffer.reserve();
+        long second = buffer.reserve();
+        long third = buffer.reserve();
+        buffer.emit(second, "b");
+        buffer.emit(third, "c");
+        buffer.complete(third);
+        assertEquals(1, buffer.cancel(second));
+        buffer.emit(second, "b2");
+        assertEquals(-1, buffer.cancel(second));
+        buffer.emit(first, "a");
+        buffer.complete(first);
+        assertEquals(Arrays.asList("a", "c"), emitted);
+        assertEquals(0, buffer.size());
+    }
+}
@@ -0,0 +1,160 @@
+package elitr.worker;
+
+import cz.cuni.mff.ufal.Translator;
+import it.pervoice.eubridge.mcloud.jni.MCloudTextPacket;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class WorkerTest {
+
+    /**
+     * "Translates" by prefixing the target language, after a random delay so the translations finish out of order.
+     */
+    private static class DelayingTranslator implements Translator {
+        private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4, r -> {
+            Thread thread = new Thread(r, "delaying-translator");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        @Override
+        public String translate(String text, String sourceLanguage, String targetLanguage) {
+            return translateAsync(text, sourceLanguage, targetLanguage).join();
+        }
+
+        @Override
+        public String translate(String text, String modelName) {
+            return translateAsync(text, modelName).join();
+        }
+
+        @Override
+        public CompletableFuture<String> translateAsync(String text, String sourceLanguage, String targetLanguage) {
+            return translateAsync(text, targetLanguage);
+        }
+
+        @Override
+        public CompletableFuture<String> translateAsync(String text, String modelName) {
+            CompletableFuture<String> translation = new CompletableFuture<>();
+            scheduler.schedule(() -> translation.complete(modelName + ":" + text),
+                    ThreadLocalRandom.current().nextInt(20), TimeUnit.MILLISECONDS);
+            return translation;
+        }
+
+        @Override
+        public Set<Map.Entry<String, String>> getAvailableLanguagePairs() {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public Set<String> getAvailableModels() {
+            return Collections.emptySet();
+        }
+    }
+
+    private InMemoryTransport transport;
+    private DelayingTranslator translator;
+    private Worker worker;
+    private Thread thread;
+
+    @Before
+    public void startWorker() throws Exception {
+        transport = new InMemoryTransport();
+        translator = new DelayingTranslator();
+        worker = new Worker("test", transport, translator, "en", "en", Arrays.asList("cs", "de"));
+        thread = new Thread(() -> worker.run("localhost", 0));
+        thread.start();
+    }
+
+    @After
+    public void stopWorker() throws InterruptedException {
+        worker.drain();
+        thread.join(5000);
+        translator.scheduler.shutdownNow();
+    }
+
+    @Test
+    public void sendsTranslationsInOrderBeforeFlushAndDone() throws InterruptedException {
+        InMemoryTransport.ClientSession client = transport.connectClient();
+        for (int i = 0; i < 20; i++) {
+            client.send(packet("p" + i));
+        }
+        client.send(Signal.FLUSH);
+        client.send(packet("last"));
+        client.send(Signal.DONE);
+
+        List<String> received = receiveUntil(client, Signal.FLUSH);
+        assertEquals(40, received.size());
+        for (int i = 0; i < 20; i++) {
+            List<String> pair = received.subList(2 * i, 2 * i + 2);
+            assertTrue(pair.toString(), pair.contains("cs:p" + i) && pair.contains("de:p" + i));
+        }
+        List<String> rest = receiveUntil(client, Signal.DONE);
+        assertEquals(2, rest.size());
+        assertTrue(rest.contains("cs:last") && rest.contains("de:last"));
+    }
+
+    @Test
+    public void servesTheNextClientAfterReset() throws InterruptedException {
+        InMemoryTransport.ClientSession first = transport.connectClient();
+        first.send(packet("dropped"));
+        first.send(Signal.RESET);
+        InMemoryTransport.ClientSession second = transport.connectClient();
+        second.send(packet("kept"));
+        second.send(Signal.DONE);
+        List<String> received = receiveUntil(second, Signal.DONE);
+        assertEquals(2, received.size());
+        assertTrue(received.contains("cs:kept") && received.contains("de:kept"));
+    }
+
+    @Test
+    public void translatesOnlyIntoTheRequestedOutput() throws InterruptedException {
+        InMemoryTransport.ClientSession client = transport.connectClient(
+                "<service><inputFingerPrint>en</inputFingerPrint><outputFingerPrint>de</outputFingerPrint></service>");
+        client.send(packet("first"));
+        client.send(packet("second"));
+        client.send(Signal.DONE);
+        assertEquals(Arrays.asList("de:first", "de:second"), receiveUntil(client, Signal.DONE));
+
+        // one that asks for none of them gets all
+        InMemoryTransport.ClientSession other = transport.connectClient("<outputFingerPrint>fr</outputFingerPrint>");
+        other.send(packet("third"));
+        other.send(Signal.DONE);
+        List<String> received = receiveUntil(other, Signal.DONE);
+        assertEquals(2, received.size());
+        assertTrue(received.contains("cs:third") && received.contains("de:third"));
+    }
+
+    private static MCloudTextPacket packet(String text) {
+        return new MCloudTextPacket(new Date(), new Date(), 0, "en", text);
+    }
+
+    private static List<String> receiveUntil(InMemoryTransport.ClientSession client, Signal signal)
+            throws InterruptedException {
+        List<String> received = new ArrayList<>();
+        while (true) {
+            InMemoryTransport.Output output = client.receive(5, TimeUnit.SECONDS);
+            assertNotNull("Nothing received in time after " + received, output);
+            if (output.getSignal() == signal) {
+                return received;
+            }
+            assertNull(output.getSignal());
+            received.add(((MCloudTextPacket) output.getPacket()).getText());
+        }
+    }
+}